@@ -0,0 +1,309 @@
+package nz.bradley.neil.cpu.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * <p>
+ *     <b>Debug Map</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     What a program's addresses were in its source: the labels, the
+ *     data symbols with their sizes, and the source line each address
+ *     was assembled from.  The Assembler writes one next to each binary,
+ *     as a <code>.dbg</code> file, and tools read it with
+ *     {@link #open(Path)}, which maps the file rather than reading it.
+ *     Every lookup is a binary search of the mapped file, so is
+ *     O(log n), and allocates only the names it returns.
+ * </p>
+ * <p>
+ *     <b>Format</b>
+ *     <br>
+ *     Integers are 32-bit big-endian, like the machine's.  Tables are
+ *     sorted by address, unsigned, and names are offsets into the
+ *     string table, each string there being a 16-bit length followed by
+ *     that many bytes of UTF-8.
+ *     <ul>
+ *         <li>Magic <code>8DBG</code>, and the version, 1.</li>
+ *         <li>Labels: count, then (address, name) for each.</li>
+ *         <li>Data symbols: count, then (address, size, name) for each,
+ *             with one entry per symbol.</li>
+ *         <li>Lines: count, then (address, line) for each address that
+ *             starts an instruction or data, lines counting from 1
+ *             through the whole source.</li>
+ *         <li>Files: count, then (first line, name) for each source
+ *             file, in order.</li>
+ *         <li>Strings: length in bytes, then the strings.</li>
+ *     </ul>
+ * </p>
+ */
+public final class DebugMap {
+
+    private static final int MAGIC = 0x3844_4247;   // "8DBG"
+    private static final int VERSION = 1;
+
+    /**
+     * A data symbol.
+     *
+     * @param name      The symbol.
+     * @param address   Where it starts.
+     * @param size      Its size in bytes.
+     */
+    public record Symbol(String name, int address, int size) {
+    }
+
+    private final ByteBuffer buffer;
+    private final int labels, labelCount;
+    private final int symbols, symbolCount;
+    private final int lines, lineCount;
+    private final int files, fileCount;
+    private final int strings;
+
+    private DebugMap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a version " + VERSION + " debug map");
+        }
+        int position = 8;
+        labelCount = buffer.getInt(position);
+        labels = position + 4;
+        position = labels + labelCount * 8;
+        symbolCount = buffer.getInt(position);
+        symbols = position + 4;
+        position = symbols + symbolCount * 12;
+        lineCount = buffer.getInt(position);
+        lines = position + 4;
+        position = lines + lineCount * 8;
+        fileCount = buffer.getInt(position);
+        files = position + 4;
+        position = files + fileCount * 8;
+        strings = position + 4;
+    }
+
+    /**
+     * Maps a <code>.dbg</code> file.
+     *
+     * @param file  The file.
+     * @return      Its map.
+     * @throws IOException  If the file can't be mapped.
+     */
+    public static DebugMap open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping outlives the channel.
+            return new DebugMap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a map already in memory.
+     *
+     * @param bytes The map, as written by a {@link Builder}.
+     * @return      Its map.
+     */
+    public static DebugMap wrap(byte[] bytes) {
+        return new DebugMap(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param address   An address.
+     * @return          The closest label at or below it, or null.
+     */
+    public String label(int address) {
+        int i = floor(labels, 8, labelCount, address);
+        return i < 0 ? null : string(buffer.getInt(labels + i * 8 + 4));
+    }
+
+    /**
+     * @param address   An address.
+     * @return          The data symbol holding it, or null.
+     */
+    public Symbol symbol(int address) {
+        int i = floor(symbols, 12, symbolCount, address);
+        if (i < 0) {
+            return null;
+        }
+        int record = symbols + i * 12;
+        int start = buffer.getInt(record);
+        int size = buffer.getInt(record + 4);
+        if (Integer.toUnsignedLong(address) - Integer.toUnsignedLong(start) >= size) {
+            return null;
+        }
+        return new Symbol(string(buffer.getInt(record + 8)), start, size);
+    }
+
+    /**
+     * @param address   An address.
+     * @return          The source line of the instruction or data at or
+     *                  below it, counting through every file, or
+     *                  <code>0</code> if there is none.
+     */
+    public int line(int address) {
+        int i = floor(lines, 8, lineCount, address);
+        return i < 0 ? 0 : buffer.getInt(lines + i * 8 + 4);
+    }
+
+    /**
+     * @param address   An address.
+     * @return          Its source file and line, as
+     *                  <code>file:line</code>, or just the line if the
+     *                  source had no file names.  Null if there is no
+     *                  line.
+     */
+    public String location(int address) {
+        int line = line(address);
+        if (line == 0) {
+            return null;
+        }
+        // Files are in line order, so the same search finds the file.
+        int i = floor(files, 8, fileCount, line, false);
+        if (i < 0) {
+            return Integer.toString(line);
+        }
+        int first = buffer.getInt(files + i * 8);
+        return string(buffer.getInt(files + i * 8 + 4)) + ":" + (line - first + 1);
+    }
+
+    /**
+     * @return Every label, by address, for tools that want them all.
+     */
+    public NavigableMap<Integer, String> labels() {
+        NavigableMap<Integer, String> all = new TreeMap<>(Integer::compareUnsigned);
+        for (int i = 0; i < labelCount; i++) {
+            all.putIfAbsent(buffer.getInt(labels + i * 8), string(buffer.getInt(labels + i * 8 + 4)));
+        }
+        return all;
+    }
+
+    private int floor(int table, int size, int count, int key) {
+        return floor(table, size, count, key, true);
+    }
+
+    // Index of the last record whose first field is at or below the key.
+    private int floor(int table, int size, int count, int key, boolean unsigned) {
+        int low = 0, high = count - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = buffer.getInt(table + mid * size);
+            if ((unsigned ? Integer.compareUnsigned(value, key) : Integer.compare(value, key)) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private String string(int offset) {
+        int length = buffer.getShort(strings + offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(strings + offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Collects a program's debug information, and writes it out in the
+     * map's format.
+     */
+    public static final class Builder {
+
+        private final List<int[]> labels = new ArrayList<>();
+        private final List<int[]> symbols = new ArrayList<>();
+        private final List<int[]> lines = new ArrayList<>();
+        private final List<int[]> files = new ArrayList<>();
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private ByteBuffer strings = ByteBuffer.allocate(1024);
+
+        /**
+         * @param name      A label.
+         * @param address   Its address.
+         * @return          This builder.
+         */
+        public Builder label(String name, int address) {
+            labels.add(new int[]{address, name(name)});
+            return this;
+        }
+
+        /**
+         * @param name      A data symbol.
+         * @param address   Where it starts.
+         * @param size      Its size in bytes.
+         * @return          This builder.
+         */
+        public Builder symbol(String name, int address, int size) {
+            symbols.add(new int[]{address, size, name(name)});
+            return this;
+        }
+
+        /**
+         * @param address   An address starting an instruction or data.
+         * @param line      The source line it was assembled from.
+         * @return          This builder.
+         */
+        public Builder line(int address, int line) {
+            lines.add(new int[]{address, line});
+            return this;
+        }
+
+        /**
+         * @param name      A source file.
+         * @param firstLine Its first line, counting through every file.
+         * @return          This builder.
+         */
+        public Builder file(String name, int firstLine) {
+            files.add(new int[]{firstLine, name(name)});
+            return this;
+        }
+
+        private int name(String name) {
+            return offsets.computeIfAbsent(name, key -> {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > 0xFFFF) {
+                    throw new IllegalArgumentException("Name too long: " + key.substring(0, 32));
+                }
+                if (strings.remaining() < bytes.length + 2) {
+                    strings = ByteBuffer.allocate(Math.max(strings.capacity() * 2, strings.position() + bytes.length + 2))
+                            .put(strings.flip());
+                }
+                int offset = strings.position();
+                strings.putShort((short)bytes.length).put(bytes);
+                return offset;
+            });
+        }
+
+        /**
+         * @return The map, in its file format.
+         */
+        public byte[] toBytes() {
+            Comparator<int[]> byAddress = (a, b) -> Integer.compareUnsigned(a[0], b[0]);
+            labels.sort(byAddress);
+            symbols.sort(byAddress);
+            lines.sort(byAddress);
+            files.sort(Comparator.comparingInt(a -> a[0]));
+            int size = 8
+                    + 4 + labels.size() * 8
+                    + 4 + symbols.size() * 12
+                    + 4 + lines.size() * 8
+                    + 4 + files.size() * 8
+                    + 4 + strings.position();
+            ByteBuffer out = ByteBuffer.allocate(size).putInt(MAGIC).putInt(VERSION);
+            for (List<int[]> table: List.of(labels, symbols, lines, files)) {
+                out.putInt(table.size());
+                for (int[] record: table) {
+                    for (int field: record) {
+                        out.putInt(field);
+                    }
+                }
+            }
+            out.putInt(strings.position()).put(strings.array(), 0, strings.position());
+            return out.array();
+        }
+    }
+}
@@ -504,21 +504,15 @@ public enum Instruction {
         return this.value;
     }
 
+    /**
+     * Decodes an instruction byte.  See {@link InstructionTable} for
+     * the operand nibble and encoded length.
+     *
+     * @param value The raw instruction byte.
+     * @return      The {@link Instruction} it encodes.
+     */
     public static Instruction ofValue(byte value) {
-        // Look for exact match first.
-        for (var i: Instruction.values()) {
-            if (i.value == value) {
-                return i;
-            }
-        }
-        // Inexact matches second.
-        value &= 0xF0;
-        for (var i: Instruction.values()) {
-            if (i.value == value) {
-                return i;
-            }
-        }
-        throw new InstructionException("Could not match the specified instruction value: " + value);
+        return InstructionTable.instruction(value);
     }
 
 }
@@ -0,0 +1,125 @@
+package nz.bradley.neil.cpu.api;
+
+/**
+ * <p>
+ *     <b>Instruction Decode Table</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Every one of the 256 possible instruction bytes decodes to exactly
+ *     one {@link Instruction}.  This table is built once, when the class
+ *     is loaded, so decoding is a single array load, never allocates,
+ *     and never throws.
+ * </p>
+ * <p>
+ *     <b>Operands</b>
+ *     <br>
+ *     Instructions in the range <code>0x00 - 0xEF</code> carry a 4-bit
+ *     operand (a register number, or a small unsigned integer) in the
+ *     low nibble.  Instructions in the range <code>0xF0 - 0xFF</code>
+ *     use the low nibble as part of the opcode, so their operand is
+ *     always <code>0</code>.  Those in the range <code>0xF0 - 0xF6</code>
+ *     are followed by a 4-byte immediate value.
+ * </p>
+ */
+public final class InstructionTable {
+
+    /**
+     * Size, in bytes, of the immediate value that follows LDN, STN and
+     * the jump instructions.
+     */
+    public static final int IMMEDIATE_SIZE = 4;
+
+    private static final Instruction[] INSTRUCTIONS = new Instruction[256];
+    private static final byte[] OPERANDS = new byte[256];
+    private static final byte[] LENGTHS = new byte[256];
+
+    static {
+        Instruction[] values = Instruction.values();
+        for (int b = 0; b < 256; b++) {
+            Instruction match = null;
+            for (var i: values) {
+                if ((i.getValue() & 0xFF) == b) {
+                    match = i;
+                    break;
+                }
+            }
+            if (match == null) {
+                for (var i: values) {
+                    if ((i.getValue() & 0xFF) == (b & 0xF0)) {
+                        match = i;
+                        break;
+                    }
+                }
+            }
+            if (match == null) {
+                throw new InstructionException("No instruction decodes from value: " + b);
+            }
+            INSTRUCTIONS[b] = match;
+            OPERANDS[b] = (byte)(hasOperand(match) ? b & 0x0F : 0);
+            LENGTHS[b] = (byte)(hasImmediate(match) ? 1 + IMMEDIATE_SIZE : 1);
+        }
+    }
+
+    private InstructionTable() {
+    }
+
+    /**
+     * Decodes an instruction byte.
+     *
+     * @param value The raw instruction byte.
+     * @return      The {@link Instruction} it encodes.
+     */
+    public static Instruction instruction(byte value) {
+        return INSTRUCTIONS[value & 0xFF];
+    }
+
+    /**
+     * Gets the 4-bit operand embedded in an instruction byte.
+     *
+     * @param value The raw instruction byte.
+     * @return      The operand, or <code>0</code> if the instruction
+     *              doesn't take one.
+     */
+    public static int operand(byte value) {
+        return OPERANDS[value & 0xFF];
+    }
+
+    /**
+     * Gets the encoded length of an instruction, including any
+     * immediate value.
+     *
+     * @param value The raw instruction byte.
+     * @return      <code>1</code>, or <code>5</code> for instructions
+     *              followed by an immediate value.
+     */
+    public static int length(byte value) {
+        return LENGTHS[value & 0xFF];
+    }
+
+    /**
+     * Checks whether an instruction embeds a 4-bit operand in its low
+     * nibble.
+     *
+     * @param instruction   The instruction to check.
+     * @return              True for SEL through SSR.
+     */
+    public static boolean hasOperand(Instruction instruction) {
+        return (instruction.getValue() & 0xF0) != 0xF0;
+    }
+
+    /**
+     * Checks whether an instruction is followed by a 4-byte immediate
+     * value.
+     *
+     * @param instruction   The instruction to check.
+     * @return              True for LDN, STN and the jump instructions.
+     */
+    public static boolean hasImmediate(Instruction instruction) {
+        return switch (instruction) {
+            case LDN, STN, J, JZ, JN, JC, JV -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package nz.bradley.neil.cpu.api;
+
+/**
+ * <p>
+ *     Interrupt Line
+ * </p>
+ * <p>
+ *     A single line into the interrupt controller, handed to an
+ *     {@link MMIO} unit through {@link MMIO#connect(InterruptLine)}.
+ *     Raising the line marks the unit's interrupt as pending; it stays
+ *     pending until the CPU services it, and raising it again before
+ *     then has no further effect.
+ * </p>
+ */
+public interface InterruptLine {
+
+    /**
+     * Marks this line's interrupt as pending.
+     */
+    void raise();
+}
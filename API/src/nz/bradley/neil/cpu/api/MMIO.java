@@ -1,5 +1,8 @@
 package nz.bradley.neil.cpu.api;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -60,6 +63,30 @@ public interface MMIO {
      */
     boolean hasInterrupt();
 
+    /**
+     * Gets the priority of the MMIO unit's interrupt.  When several
+     * interrupts are pending, the highest priority is serviced first;
+     * ties go to the unit configured first.
+     *
+     * @return The interrupt priority, <code>0</code> by default.
+     */
+    default int getInterruptPriority() {
+        return 0;
+    }
+
+    /**
+     * Connects the MMIO unit to its line into the interrupt controller.
+     * A unit that accepts the line raises it when its interrupt occurs,
+     * rather than waiting to be polled through {@link #hasInterrupt()}.
+     *
+     * @param line  The unit's interrupt line.
+     * @return      {@link Boolean#TRUE} if the unit will raise the line,
+     *              {@link Boolean#FALSE} to be polled every cycle.
+     */
+    default boolean connect(InterruptLine line) {
+        return false;
+    }
+
     byte readByte(int offset);
 
     int readInteger(int offset);
@@ -68,7 +95,45 @@ public interface MMIO {
 
     void writeInteger(int offset, int data);
 
+    /**
+     * Attaches the MMIO unit to the clock that drives it.  A unit that
+     * accepts the scheduler will only be sent {@link #sendClock()} on
+     * the cycles it asks for through
+     * {@link Scheduler#schedule(MMIO, long)}; this includes units that
+     * never need a clock at all.  A unit that declines will be sent
+     * {@link #sendClock()} on every cycle.
+     *
+     * @param scheduler The scheduler for this unit's clock.
+     * @return          {@link Boolean#TRUE} if the unit schedules its
+     *                  own clock, {@link Boolean#FALSE} to be clocked
+     *                  every cycle.
+     */
+    default boolean attach(Scheduler scheduler) {
+        return false;
+    }
+
     void sendClock();
 
     void sendReset();
+
+    /**
+     * Writes the MMIO unit's state, for a snapshot of the machine:
+     * everything that changes as it runs, but nothing it was configured
+     * with.  Units without such state need not write anything.
+     *
+     * @param out   Where to write the state.
+     * @throws IOException  If it can't be written.
+     */
+    default void saveState(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Reads back the state written by {@link #saveState(DataOutput)},
+     * into a unit configured the same way, and attached to its clock.
+     *
+     * @param in    The state.
+     * @throws IOException  If it can't be read.
+     */
+    default void restoreState(DataInput in) throws IOException {
+    }
 }
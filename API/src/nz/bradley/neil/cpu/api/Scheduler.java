@@ -0,0 +1,39 @@
+package nz.bradley.neil.cpu.api;
+
+/**
+ * <p>
+ *     Clock Scheduler
+ * </p>
+ * <p>
+ *     Lets an {@link MMIO} unit be clocked only on the cycles where it
+ *     has work to do, rather than on every cycle.  A unit that accepts
+ *     a scheduler in {@link MMIO#attach(Scheduler)} is sent
+ *     {@link MMIO#sendClock()} only on the cycles it has asked for, and
+ *     must work out anything that should have happened in between
+ *     itself, for example when it is next read.
+ * </p>
+ */
+public interface Scheduler {
+
+    /**
+     * Deadline meaning the unit does not need to be clocked again.
+     */
+    long NEVER = Long.MAX_VALUE;
+
+    /**
+     * Gets the cycle currently being executed.  Units clocked on this
+     * cycle have already been sent {@link MMIO#sendClock()}.
+     *
+     * @return The current cycle count.
+     */
+    long getCycle();
+
+    /**
+     * Asks for the unit to be sent {@link MMIO#sendClock()} on the given
+     * cycle.  This replaces any deadline the unit had already asked for.
+     *
+     * @param mmio  The unit to clock.
+     * @param cycle The cycle to clock it on, or {@link #NEVER}.
+     */
+    void schedule(MMIO mmio, long cycle);
+}
@@ -0,0 +1,73 @@
+package nz.bradley.neil.cpu.api;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DebugMapTest {
+
+    private static byte[] sample() {
+        return new DebugMap.Builder()
+                .label("start", 6)
+                .label("program", 0)
+                .label("high", 0x8000_0000)
+                .symbol("message", 0x40, 12)
+                .symbol("message", 0x4C, 12)
+                .line(0, 2)
+                .line(5, 4)
+                .line(6, 6)
+                .line(0x40, 9)
+                .file("main.asm", 1)
+                .file("data.asm", 8)
+                .toBytes();
+    }
+
+    @Test
+    void labelsAreFoundAtOrBelow() {
+        DebugMap map = DebugMap.wrap(sample());
+        assertEquals("program", map.label(0));
+        assertEquals("program", map.label(5));
+        assertEquals("start", map.label(6));
+        assertEquals("start", map.label(0x7FFF_FFFF));
+        assertEquals("high", map.label(0xFFFF_FFFF));
+        assertEquals(3, map.labels().size());
+    }
+
+    @Test
+    void symbolsAreFoundWithinTheirSize() {
+        DebugMap map = DebugMap.wrap(sample());
+        assertNull(map.symbol(0x3F));
+        assertEquals(new DebugMap.Symbol("message", 0x40, 12), map.symbol(0x4B));
+        assertEquals(new DebugMap.Symbol("message", 0x4C, 12), map.symbol(0x4C));
+        assertNull(map.symbol(0x58));
+    }
+
+    @Test
+    void linesAreFoundByFile() {
+        DebugMap map = DebugMap.wrap(sample());
+        assertEquals(2, map.line(0));
+        assertEquals(4, map.line(5));
+        assertEquals("main.asm:6", map.location(6));
+        assertEquals("data.asm:2", map.location(0x41));
+    }
+
+    @Test
+    void mapsFiles() throws IOException {
+        Path file = Files.createTempFile("debug", ".dbg");
+        try {
+            Files.write(file, sample());
+            assertEquals("start", DebugMap.open(file).label(7));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        assertThrows(IllegalArgumentException.class, () -> DebugMap.wrap(new byte[64]));
+    }
+}
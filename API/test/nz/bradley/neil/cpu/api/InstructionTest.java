@@ -1,4 +1,47 @@
 package nz.bradley.neil.cpu.api;
 
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class InstructionTest {
+
+    @Test
+    void everyByteDecodes() {
+        for (int b = 0; b < 256; b++) {
+            assertNotNull(InstructionTable.instruction((byte)b));
+        }
+    }
+
+    @Test
+    void exactMatchesDecodeToThemselves() {
+        for (var i: Instruction.values()) {
+            assertEquals(i, Instruction.ofValue(i.getValue()));
+            assertEquals(0, InstructionTable.operand(i.getValue()));
+        }
+    }
+
+    @Test
+    void operandIsLowNibble() {
+        assertEquals(Instruction.SEL, InstructionTable.instruction((byte)0x07));
+        assertEquals(7, InstructionTable.operand((byte)0x07));
+        assertEquals(Instruction.SSR, InstructionTable.instruction((byte)0xEF));
+        assertEquals(15, InstructionTable.operand((byte)0xEF));
+    }
+
+    @Test
+    void fourthNibbleInstructionsHaveNoOperand() {
+        assertEquals(Instruction.HLT, InstructionTable.instruction((byte)0xFF));
+        assertEquals(0, InstructionTable.operand((byte)0xFF));
+        assertEquals(Instruction.J, InstructionTable.instruction((byte)0xF2));
+        assertEquals(0, InstructionTable.operand((byte)0xF2));
+    }
+
+    @Test
+    void lengthsIncludeImmediates() {
+        assertEquals(1, InstructionTable.length((byte)0x81));
+        assertEquals(5, InstructionTable.length(Instruction.LDN.getValue()));
+        assertEquals(5, InstructionTable.length(Instruction.JV.getValue()));
+        assertEquals(1, InstructionTable.length(Instruction.COM.getValue()));
+    }
 }
@@ -1,208 +1,539 @@
 package nz.bradley.neil.cpu.assembler;
 
+import nz.bradley.neil.cpu.api.DebugMap;
 import nz.bradley.neil.cpu.api.Instruction;
 import nz.bradley.neil.cpu.api.InstructionException;
+import nz.bradley.neil.cpu.api.InstructionTable;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+/**
+ * <p>
+ *     <b>Assembler</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Assembles source into a program, ready to load at address
+ *     <code>0</code>.  Each instance keeps the state of the assembly it
+ *     is doing, and of the last one it did, for {@link #getLabels()}
+ *     and {@link #debugMap(Map)}; there is no state shared between
+ *     instances, so any number may assemble in parallel, one per
+ *     thread.
+ * </p>
+ * <p>
+ *     <b>Diagnostics</b>
+ *     <br>
+ *     A line that can't be assembled doesn't stop the assembly: it is
+ *     reported in the {@link Result}, with its line number, and the
+ *     following lines are assembled as usual, so every error is found
+ *     in one pass.  A result with any diagnostics has no image.
+ * </p>
+ * <p>
+ *     <b>Separate Assembly</b>
+ *     <br>
+ *     Each source file can be assembled on its own, into an
+ *     {@link ObjectFile}, and the objects linked by {@link #link(List)};
+ *     a {@link BuildCache} keeps objects until their sources change.  A
+ *     program linked from objects is the same as one assembled from all
+ *     its sources at once.
+ * </p>
+ * <p>
+ *     <b>Optimisation</b>
+ *     <br>
+ *     An assembler made with {@link #Assembler(boolean)} runs the
+ *     {@link Optimiser} over the program before linking it, and reports
+ *     what it saved in {@link #getOptimisation()}.  Off by default, so a
+ *     program is assembled exactly as written.
+ * </p>
+ */
 public class Assembler {
 
+    private static final Pattern LINE = Pattern.compile("\\R");
+    private static final int DATA_ALIGNMENT = 4;
+
+    /**
+     * A line that couldn't be assembled.
+     *
+     * @param line      The line, counting from 1.
+     * @param message   What was wrong with it.
+     */
+    public record Diagnostic(int line, String message) {
+        @Override
+        public String toString() {
+            return "Line " + line + ": " + message;
+        }
+    }
+
+    /**
+     * What an assembly produced.
+     *
+     * @param image         The program, or null if there were
+     *                      diagnostics.
+     * @param diagnostics   The lines that couldn't be assembled.
+     */
+    public record Result(byte[] image, List<Diagnostic> diagnostics) {
+
+        public boolean succeeded() {
+            return diagnostics.isEmpty();
+        }
+
+        /**
+         * @return The program, read-only.
+         * @throws IllegalStateException If there were diagnostics.
+         */
+        public ByteBuffer buffer() {
+            return ByteBuffer.wrap(orElseThrow()).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return The program.
+         * @throws IllegalStateException If there were diagnostics,
+         *                               reporting the first.
+         */
+        public byte[] orElseThrow() {
+            if (!succeeded()) {
+                throw new IllegalStateException(diagnostics.get(0).toString());
+            }
+            return image;
+        }
+    }
+
+    /**
+     * What the {@link Optimiser} did to a program.
+     *
+     * @param bytesSaved    How much smaller the code is.
+     * @param cyclesSaved   Instructions removed, each saving a cycle
+     *                      every time it would have run.
+     * @param rewrites      How often each rewrite was made.
+     * @param skipped       Why the program wasn't optimised, or null.
+     */
+    public record Optimisation(int bytesSaved, int cyclesSaved, Map<String, Integer> rewrites, String skipped) {
+        @Override
+        public String toString() {
+            if (skipped != null) {
+                return "Not optimised: " + skipped;
+            }
+            return "Optimised: " + bytesSaved + " bytes, " + cyclesSaved + " cycles per pass " + rewrites;
+        }
+    }
+
     public static void main(String[] args) {
-        if (args.length < 2) {
+        // Options come first.
+        boolean compileOnly = false;
+        boolean optimise = false;
+        Path cache = null;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("-"); first++) {
+            if (args[first].equals("-c")) {
+                compileOnly = true;
+            } else if (args[first].equals("-O")) {
+                optimise = true;
+            } else if (args[first].equals("--cache") && first + 1 < args.length) {
+                cache = Path.of(args[++first]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (args.length - first < 2) {
             usage();
             return;
         }
-        List<String> inFiles = List.of(Arrays.copyOf(args, args.length - 1));
+        List<Path> inFiles = Arrays.stream(args, first, args.length - 1).map(Path::of).toList();
         String outFile = args[args.length - 1];
-        if (inFiles.isEmpty() || outFile == null || outFile.isBlank()) {
+        if (inFiles.isEmpty() || outFile == null || outFile.isBlank() || compileOnly && inFiles.size() > 1) {
             usage();
             return;
         }
 
-        assemble(concatenateFiles(inFiles), outFile);
+        if (!new Assembler(optimise).assemble(inFiles, outFile, cache, compileOnly)) {
+            System.exit(1);
+        }
     }
 
 
     private static void usage() {
-        System.err.println("Usage: java Assembler source1 [source2 ...] output");
+        System.err.println("Usage: java Assembler [-O] [--cache dir] source1 [source2 ...] output");
+        System.err.println("       java Assembler [--cache dir] -c source object");
+        System.err.println("Sources ending in .o are object files, linked as they are.");
+        System.err.println("-O optimises the program as it is linked, reporting what it saved.");
     }
 
 
-    private static List<String> concatenateFiles(List<String> files) {
-        List<String> lines = new LinkedList<>();
-        files.forEach(file -> {
-            try {
-                lines.addAll(Files.readAllLines(Path.of(file)));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-        return lines;
-    }
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> symbolLines = new HashMap<>();
+    private final List<int[]> lineAddresses = new ArrayList<>();
+    private final List<Map.Entry<String, int[]>> dataSymbols = new ArrayList<>();
+    private final Map<String, Integer> files = new LinkedHashMap<>();
+    private final boolean optimise;
+    private Optimisation optimisation;
 
+    public Assembler() {
+        this(false);
+    }
 
-    private static final Map<String, byte[]> symbols = new HashMap<>();
-    private static final Map<String, List<Integer>> symbolReferences = new HashMap<>();
-    private static final Map<String, byte[]> labels = new HashMap<>();
-    private static final Map<String, List<Integer>> labelReferences = new HashMap<>();
-    private static int count;
-    private static int index;
-    private static byte[] bytes;
+    /**
+     * @param optimise  Whether to optimise programs as they are linked.
+     */
+    public Assembler(boolean optimise) {
+        this.optimise = optimise;
+    }
 
-    private static void assemble(List<String> lines, String outFile) {
+    private boolean assemble(List<Path> inFiles, String outFile, Path cacheDirectory, boolean compileOnly) {
         try {
-            count = 0;
-            index = 0;
-            bytes = new byte[lines.size() * 5];  // Worst case scenario
-            // is all jumps.
-            for (String line: lines) {
-                // Strip comments.
-                if (line.contains(";")) {
-                    line = line.substring(0, line.indexOf(";"));
+            BuildCache cache = cacheDirectory == null ? null : new BuildCache(cacheDirectory);
+            List<ObjectFile> objects = compile(inFiles, inFile -> {
+                if (inFile.toString().endsWith(".o")) {
+                    return ObjectFile.read(inFile);
                 }
-                line = line.strip();
-
-                if (!line.isBlank()) {
-                    if (line.charAt(0) == '.') {
-                        processData(line.substring(1));
-                    } else if (line.charAt(0) == ':') {
-                        processLabel(line.substring(1));
-                    } else if (line.charAt(0) == '_') {
-                        processAddress(line.substring(1));
-                    } else {
-                        processInstruction(line);
-                    }
+                return cache == null ? ObjectFile.compile(inFile) : cache.compile(inFile);
+            });
+            if (compileOnly) {
+                List<Diagnostic> diagnostics = objects.get(0).getDiagnostics();
+                diagnostics.forEach(System.err::println);
+                if (diagnostics.isEmpty()) {
+                    objects.get(0).write(Path.of(outFile));
                 }
-                count++;
+                return diagnostics.isEmpty();
             }
-            linkData();
-            linkLabels();
-            Files.write(Path.of(outFile), Arrays.copyOf(bytes, index));
+            Result result = link(objects);
+            if (!result.succeeded()) {
+                result.diagnostics().forEach(System.err::println);
+                return false;
+            }
+            if (optimisation != null) {
+                System.err.println(optimisation);
+            }
+            Files.write(Path.of(outFile), result.image());
+            Files.write(Path.of(outFile + ".map"), labelMap());
+            Files.write(Path.of(outFile + ".dbg"), debugMap(getFiles()));
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
-    private static void processData(String line) {
-        String[] parts = line.split("\\s+", 3);
-        String symbol = parts[1].replaceAll("[$%!]", "");
-        byte[] value = null;
-        ByteBuffer buffer;
+    /**
+     * Assembles source lines into a program, on a new assembler.
+     *
+     * @param lines The source.
+     * @return      The program, ready to load at address <code>0</code>.
+     * @throws IllegalStateException If any line couldn't be assembled.
+     */
+    public static byte[] assemble(List<String> lines) {
+        return new Assembler().assemble(lines.stream()).orElseThrow();
+    }
 
-        switch (parts[0]) {
-            case "int" -> {
-                buffer = ByteBuffer.allocate(4);
-                value = buffer.putInt(HexFormat.fromHexDigits(parts[2])).array();
-            }
-            case "raw" -> {
-                buffer = ByteBuffer.allocate(parts[2].length() / 2);
-                for (int i = 0; i < parts[2].length(); i += 2) {
-                    buffer.put((byte)HexFormat.fromHexDigits(parts[2], i, i + 2));
+    /**
+     * Assembles source text into a program.
+     *
+     * @param source    The source, with lines ending in any line
+     *                  terminator.
+     * @return          The program, or the lines that couldn't be
+     *                  assembled.
+     */
+    public Result assemble(CharSequence source) {
+        return assemble(LINE.splitAsStream(source));
+    }
+
+    /**
+     * Assembles source lines into a program.
+     *
+     * @param lines The source, in order.
+     * @return      The program, or the lines that couldn't be assembled.
+     */
+    public Result assemble(Stream<String> lines) {
+        Fragment fragment = new Fragment();
+        lines.forEachOrdered(fragment::add);
+        files.clear();
+        return linkFragments(List.of(fragment));
+    }
+
+    /**
+     * Assembles source files into a program, as if they were one file.
+     * Each file is assembled by {@link ObjectFile#compile(Path)}, in
+     * parallel, and the objects linked.  The program is the same as
+     * assembling the files' lines one after the other.
+     *
+     * @param sources   The files, in order.
+     * @return          The program, or the lines that couldn't be
+     *                  assembled.
+     * @throws IOException  If a file can't be mapped.
+     */
+    public Result assembleFiles(List<Path> sources) throws IOException {
+        return link(compile(sources, ObjectFile::compile));
+    }
+
+    private interface Compiler {
+        ObjectFile compile(Path file) throws IOException;
+    }
+
+    // Gets each file's object, in parallel.
+    private static List<ObjectFile> compile(List<Path> files, Compiler compiler) throws IOException {
+        try {
+            return files.parallelStream().map(file -> {
+                try {
+                    return compiler.compile(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-                value = buffer.array();
-            }
-            case "text" -> value = parts[2].getBytes(StandardCharsets.UTF_8);
+            }).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
 
-        if (value == null) {
-            throw new RuntimeException("Invalid data type found at " + count + ": " + line);
+    /**
+     * Links object files into a program.  Lines are counted from the
+     * first object's first line through all of them, as if their
+     * sources were one file, and each source's first line is kept for
+     * {@link #getFiles()}.
+     *
+     * @param objects   The objects, in order.
+     * @return          The program, or the lines that couldn't be
+     *                  assembled or linked.
+     */
+    public Result link(List<ObjectFile> objects) {
+        files.clear();
+        int line = 1;
+        List<Fragment> fragments = new ArrayList<>();
+        for (var object: objects) {
+            files.putIfAbsent(object.getSource(), line);
+            line += object.getLines();
+            fragments.addAll(object.fragments());
         }
-        if (symbols.containsKey(symbol)) {
-            throw new RuntimeException("Duplicate symbol found at " + count + ": " + line);
-        }
-        symbols.put(symbol, value);
+        return linkFragments(fragments);
     }
 
-    private static void processLabel(String label) {
-        if (labels.containsKey(label)) {
-            throw new RuntimeException("Duplicate label detected at " + count + ": " + label);
+    // Places the fragments one after another, then the data, and fixes
+    // up every reference.
+    private Result linkFragments(List<Fragment> fragments) {
+        labels.clear();
+        symbolLines.clear();
+        lineAddresses.clear();
+        dataSymbols.clear();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        if (optimise) {
+            var optimised = Optimiser.optimise(fragments);
+            fragments = optimised.getKey();
+            optimisation = optimised.getValue();
         }
-        labels.put(label, ByteBuffer.allocate(4).putInt(index).array());
-    }
 
-    private static void processAddress(String line) {
-        int address = HexFormat.fromHexDigits(line.replace("0x", "").replace(":", ""));
-        if (address < index) {
-            throw new RuntimeException("Address below index at " + count + ": " + line);
+        // Each segment's address, less its start in the fragment's code.
+        int[][] bases = new int[fragments.size()][];
+        int[] firstLines = new int[fragments.size()];
+        int index = 0;
+        int line = 1;
+        for (int f = 0; f < fragments.size(); f++) {
+            Fragment fragment = fragments.get(f);
+            firstLines[f] = line;
+            line += fragment.lines;
+            for (var diagnostic: fragment.diagnostics) {
+                diagnostics.add(new Diagnostic(firstLines[f] + diagnostic.line(), diagnostic.message()));
+            }
+            bases[f] = new int[fragment.segments.size()];
+            for (int s = 0; s < bases[f].length; s++) {
+                Fragment.Segment segment = fragment.segments.get(s);
+                if (s > 0 && segment.address() < index) {
+                    diagnostics.add(new Diagnostic(firstLines[f] + segment.line(), "Address below index: " + segment.text()));
+                } else if (s > 0) {
+                    index = segment.address();
+                }
+                bases[f][s] = index - segment.start();
+                index += end(fragment, s) - segment.start();
+            }
         }
-        byte[] nop = compile(Instruction.NOP);
-        while (index < address) {
-            System.arraycopy(nop, 0, bytes, index, nop.length);
-            index += nop.length;
+        int codeEnd = index;
+
+        Map<String, Fragment.Data> symbols = new LinkedHashMap<>();
+        for (int f = 0; f < fragments.size(); f++) {
+            for (var label: fragments.get(f).labels) {
+                if (labels.putIfAbsent(label.name(), bases[f][label.segment()] + label.position()) != null) {
+                    diagnostics.add(new Diagnostic(firstLines[f] + label.line(), "Duplicate label: " + label.name()));
+                }
+            }
+            for (var symbol: fragments.get(f).symbols) {
+                if (symbols.putIfAbsent(symbol.name(), symbol) != null) {
+                    diagnostics.add(new Diagnostic(firstLines[f] + symbol.line(), "Duplicate symbol: " + symbol.name()));
+                } else {
+                    symbolLines.put(symbol.name(), firstLines[f] + symbol.line());
+                }
+            }
         }
-    }
+        diagnostics.sort(Comparator.comparingInt(Diagnostic::line));
 
-    private static void processInstruction(String line) {
-        String[] parts = line.split("\\s+", 2);
-        Instruction instruction = Instruction.valueOf(parts[0]);
-        int param = 0;
-        if (parts.length > 1) {
-            // Allow for readability, but ignore otherwise.
-            parts[1] = parts[1].replaceAll("[$%!]", "");
-            if (Character.isDigit(parts[1].charAt(0))) {
-                param = Integer.parseInt(parts[1]);
-            } else {
-                switch (instruction) {
-                    case J, JZ, JN, JC, JV -> {
-                        labelReferences.putIfAbsent(parts[1], new LinkedList<>());
-                        labelReferences.get(parts[1]).add(index + 1);
-                    }
-                    case LDN, STN -> {
-                        symbolReferences.putIfAbsent(parts[1], new LinkedList<>());
-                        symbolReferences.get(parts[1]).add(index + 1);
-                    }
+        // Each referenced symbol is placed once, after the code and in
+        // the order defined.
+        Map<String, Integer> missing = new LinkedHashMap<>();
+        Set<String> referenced = new HashSet<>();
+        for (int f = 0; f < fragments.size(); f++) {
+            for (var reference: fragments.get(f).symbolReferences) {
+                if (referenced.add(reference.name()) && !symbols.containsKey(reference.name())) {
+                    missing.put(reference.name(), firstLines[f] + reference.line());
                 }
             }
         }
-        byte[] built = buildInstruction(instruction, param);
-        System.arraycopy(built, 0, bytes, index, built.length);
-        index += built.length;
-    }
+        missing.forEach((name, at) -> diagnostics.add(new Diagnostic(at, "Symbol not found: " + name)));
+        Map<String, Integer> addresses = new HashMap<>();
+        for (var symbol: symbols.values()) {
+            if (referenced.contains(symbol.name())) {
+                index = align(index);
+                addresses.put(symbol.name(), index);
+                dataSymbols.add(Map.entry(symbol.name(), new int[]{index, symbol.value().length}));
+                index += symbol.value().length;
+            }
+        }
 
-    private static void linkData() {
-        for (var symbol: symbolReferences.keySet()) {
-            if (!symbols.containsKey(symbol)) {
-                throw new RuntimeException("Symbol not found: " + symbol);
+        // The array is zeroed, so padding between data is too.
+        byte[] image = new byte[index];
+        Arrays.fill(image, 0, codeEnd, Instruction.NOP.getValue());
+        for (int f = 0; f < fragments.size(); f++) {
+            Fragment fragment = fragments.get(f);
+            for (int s = 0; s < bases[f].length; s++) {
+                int start = fragment.segments.get(s).start();
+                System.arraycopy(fragment.code(), start, image, bases[f][s] + start, end(fragment, s) - start);
             }
-            for (var reference: symbolReferences.get(symbol)) {
-                var pos = ByteBuffer.allocate(4).putInt(index).array();
-                var data = symbols.get(symbol);
-                // Might need to extend the array here.
-                if (index + data.length > bytes.length) {
-                    bytes = Arrays.copyOf(bytes, bytes.length * 2 + data.length);
-                }
-                System.arraycopy(data, 0, bytes, index, data.length);
-                System.arraycopy(pos, 0, bytes, reference, 4);
-                index += data.length;
+            for (var instruction: fragment.instructions) {
+                lineAddresses.add(new int[]{
+                        bases[f][instruction.segment()] + instruction.position(),
+                        firstLines[f] + instruction.line()
+                });
             }
         }
-    }
+        for (var symbol: dataSymbols) {
+            byte[] value = symbols.get(symbol.getKey()).value();
+            System.arraycopy(value, 0, image, symbol.getValue()[0], value.length);
+        }
 
-    private static void linkLabels() {
-        for (var label: labelReferences.keySet()) {
-            if (!labels.containsKey(label)) {
-                throw new RuntimeException("Label not found: " + label);
+        missing.clear();
+        for (int f = 0; f < fragments.size(); f++) {
+            for (var reference: fragments.get(f).symbolReferences) {
+                Integer address = addresses.get(reference.name());
+                if (address != null) {
+                    putInt(image, bases[f][reference.segment()] + reference.position(), address);
+                }
             }
-            for (var reference: labelReferences.get(label)) {
-                System.arraycopy(labels.get(label), 0, bytes,reference, 4);
+            for (var reference: fragments.get(f).labelReferences) {
+                Integer address = labels.get(reference.name());
+                if (address != null) {
+                    putInt(image, bases[f][reference.segment()] + reference.position(), address);
+                } else {
+                    missing.putIfAbsent(reference.name(), firstLines[f] + reference.line());
+                }
             }
         }
+        missing.forEach((name, at) -> diagnostics.add(new Diagnostic(at, "Label not found: " + name)));
+
+        List<Diagnostic> found = List.copyOf(diagnostics);
+        return new Result(found.isEmpty() ? image : null, found);
+    }
+
+    private static int end(Fragment fragment, int segment) {
+        return segment + 1 < fragment.segments.size()
+                ? fragment.segments.get(segment + 1).start()
+                : fragment.length;
+    }
+
+    private static void putInt(byte[] image, int at, int value) {
+        image[at] = (byte)(value >>> 24);
+        image[at + 1] = (byte)(value >>> 16);
+        image[at + 2] = (byte)(value >>> 8);
+        image[at + 3] = (byte)value;
+    }
+
+    private static int align(int address) {
+        return (address + DATA_ALIGNMENT - 1) & -DATA_ALIGNMENT;
+    }
+
+    /**
+     * Gets the labels of the program this assembler last assembled.
+     *
+     * @return  Each label's address, by name.
+     */
+    public Map<String, Integer> getLabels() {
+        return new HashMap<>(labels);
+    }
+
+    /**
+     * Gets the files this assembler last assembled, if it assembled
+     * files, for {@link #debugMap(Map)}.
+     *
+     * @return  Each file's first line, counting from 1 through all of
+     *          them, in order.
+     */
+    public Map<String, Integer> getFiles() {
+        return new LinkedHashMap<>(files);
+    }
+
+    /**
+     * @return  What the optimiser did to the program this assembler last
+     *          assembled, or null if it doesn't optimise.
+     */
+    public Optimisation getOptimisation() {
+        return optimisation;
+    }
+
+    /**
+     * Lists the labels of the program this assembler last assembled, for
+     * debuggers and profilers: one line per label, in address order,
+     * holding the address in hex and the label.
+     *
+     * @return  The lines.
+     */
+    public List<String> labelMap() {
+        List<String> lines = new ArrayList<>();
+        getLabels().entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(label -> lines.add(String.format("%08X %s", label.getValue(), label.getKey())));
+        return lines;
+    }
+
+    /**
+     * Builds the {@link DebugMap} of the program this assembler last
+     * assembled: its labels, its data symbols, and the source line of
+     * each instruction and symbol.
+     *
+     * @param files Each source file's first line, counting from 1
+     *              through all of them, or empty if the source wasn't
+     *              read from files.
+     * @return      The map, in its file format.
+     */
+    public byte[] debugMap(Map<String, Integer> files) {
+        DebugMap.Builder map = new DebugMap.Builder();
+        // In order, so the same program always gives the same map.
+        new TreeMap<>(labels).forEach(map::label);
+        for (var symbol: dataSymbols) {
+            int[] at = symbol.getValue();
+            map.symbol(symbol.getKey(), at[0], at[1]);
+            map.line(at[0], symbolLines.get(symbol.getKey()));
+        }
+        for (int[] line: lineAddresses) {
+            map.line(line[0], line[1]);
+        }
+        files.forEach(map::file);
+        return map.toBytes();
     }
 
     public static byte[] buildInstruction(
             final Instruction instruction,
             final int param
     ) {
-        return switch (instruction) {
-            case SEL, LDR, STR, JR, CP, AND, OR, XOR, ADD, SUB, MUL, DIV, SHL, SHR, SSR -> compileWithValue(instruction, param);
-            case LDN, STN, J, JZ, JN, JC, JV -> compileWithInteger(instruction, param);
-            default -> compile(instruction);
-        };
+        if (InstructionTable.hasOperand(instruction)) {
+            return compileWithValue(instruction, param);
+        } else if (InstructionTable.hasImmediate(instruction)) {
+            return compileWithInteger(instruction, param);
+        } else {
+            return compile(instruction);
+        }
     }
 
     private static byte[] compile(final Instruction instruction) {
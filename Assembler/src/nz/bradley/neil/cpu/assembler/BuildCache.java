@@ -0,0 +1,111 @@
+package nz.bradley.neil.cpu.assembler;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     <b>Build Cache</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Keeps the {@link ObjectFile} of every source file assembled, in a
+ *     directory, by a SHA-256 hash of the file's name and content, so a
+ *     file is only assembled again once it has changed.  Changing one
+ *     file of a program then costs assembling that file, and linking.
+ * </p>
+ * <p>
+ *     <b>Entries</b>
+ *     <br>
+ *     Objects with diagnostics aren't kept, so their errors are
+ *     reported every build.  Entries are written to a temporary file and
+ *     moved into place, so builds may share a cache.  Nothing is ever
+ *     removed; delete the directory to clear it.
+ * </p>
+ */
+public final class BuildCache {
+
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param directory Where to keep objects, created if need be.
+     * @throws IOException  If the directory can't be created.
+     */
+    public BuildCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Gets a source file's object, assembling it if it has changed.
+     *
+     * @param source    The file.
+     * @return          Its object.
+     * @throws IOException  If the file can't be read, or the object
+     *                      written.
+     */
+    public ObjectFile compile(Path source) throws IOException {
+        Path entry = directory.resolve(key(source) + ".o");
+        if (Files.exists(entry)) {
+            try {
+                ObjectFile object = ObjectFile.read(entry);
+                hits.incrementAndGet();
+                return object;
+            } catch (IOException e) {
+                // From another version, or damaged; assemble it again.
+            }
+        }
+        misses.incrementAndGet();
+        ObjectFile object = ObjectFile.compile(source);
+        if (object.getDiagnostics().isEmpty()) {
+            Path temporary = Files.createTempFile(directory, "object", ".tmp");
+            try {
+                object.write(temporary);
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        return object;
+    }
+
+    private static String key(Path source) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte)ObjectFile.VERSION);
+            digest.update(source.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @return Objects read from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Objects assembled.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,421 @@
+package nz.bradley.neil.cpu.assembler;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.InstructionException;
+import nz.bradley.neil.cpu.api.InstructionTable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * <p>
+ *     <b>Fragment</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     A run of source lines, lexed and encoded without knowing where
+ *     they will end up.  Positions are offsets into the fragment's own
+ *     code, and lines count from the fragment's first; the
+ *     {@link Assembler} gives each fragment its address and first line
+ *     when it links them, in order.  Fragments share nothing, so any
+ *     number can be built in parallel.
+ * </p>
+ * <p>
+ *     <b>Segments</b>
+ *     <br>
+ *     An address line (<code>_0x..:</code>) pads to an absolute address,
+ *     which isn't known until the code before it is placed, so it
+ *     starts a new segment.  Every position is kept with its segment,
+ *     and each segment is placed, after its padding, by the linker.
+ * </p>
+ * <p>
+ *     <b>Lexing</b>
+ *     <br>
+ *     Lines are lexed as bytes, with the same rules as splitting on
+ *     whitespace: only ASCII whitespace separates, and names and text
+ *     are kept as written, in UTF-8.
+ * </p>
+ */
+final class Fragment {
+
+    private static final int[] MNEMONICS;
+    private static final Instruction[] BY_MNEMONIC;
+
+    static {
+        Instruction[] instructions = Instruction.values();
+        Arrays.sort(instructions, Comparator.comparingInt(i -> pack(i.name())));
+        MNEMONICS = new int[instructions.length];
+        for (int i = 0; i < instructions.length; i++) {
+            MNEMONICS[i] = pack(instructions[i].name());
+        }
+        BY_MNEMONIC = instructions;
+    }
+
+    // Mnemonics are a few ASCII letters, so fit an int.
+    private static int pack(String mnemonic) {
+        int packed = 0;
+        for (int i = 0; i < mnemonic.length(); i++) {
+            packed = packed << 8 | mnemonic.charAt(i);
+        }
+        return packed;
+    }
+
+    /**
+     * A name used at a position.
+     */
+    record Use(String name, int segment, int position, int line) {
+    }
+
+    /**
+     * A data symbol's value.
+     */
+    record Data(String name, byte[] value, int line) {
+    }
+
+    /**
+     * Where a segment starts in the code, and the address it pads to.
+     */
+    record Segment(int start, int address, String text, int line) {
+    }
+
+    private byte[] code = new byte[256];
+    int length;
+    int lines;
+
+    final List<Segment> segments = new ArrayList<>(List.of(new Segment(0, -1, "", 0)));
+    final List<Use> labels = new ArrayList<>();
+    final List<Use> labelReferences = new ArrayList<>();
+    final List<Use> symbolReferences = new ArrayList<>();
+    final List<Data> symbols = new ArrayList<>();
+    final List<Use> instructions = new ArrayList<>();
+    final List<Assembler.Diagnostic> diagnostics = new ArrayList<>();
+
+    byte[] code() {
+        return code;
+    }
+
+    /**
+     * Replaces the code, for the {@link Optimiser}, which moves
+     * everything else to match.
+     */
+    void setCode(byte[] code, int length) {
+        this.code = code;
+        this.length = length;
+    }
+
+    /**
+     * Assembles a line.
+     *
+     * @param line  The line, without its terminator.
+     */
+    void add(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        add(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Assembles every line in part of a buffer.  A final line without a
+     * terminator counts, but an empty one doesn't, as when reading
+     * lines from a file.
+     */
+    void addAll(ByteBuffer source, int start, int end) {
+        int line = start;
+        int i = start;
+        while (i < end) {
+            byte b = source.get(i);
+            if (b == '\n' || b == '\r') {
+                add(source, line, i);
+                i += b == '\r' && i + 1 < end && source.get(i + 1) == '\n' ? 2 : 1;
+                line = i;
+            } else {
+                i++;
+            }
+        }
+        if (line < end) {
+            add(source, line, end);
+        }
+    }
+
+    private void add(ByteBuffer source, int start, int end) {
+        try {
+            addLine(source, start, end);
+        } catch (RuntimeException e) {
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            diagnostics.add(new Assembler.Diagnostic(lines, message));
+        }
+        lines++;
+    }
+
+    /**
+     * Writes the fragment, as part of an {@link ObjectFile}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeInt(lines);
+        out.writeInt(segments.size());
+        for (var segment: segments) {
+            out.writeInt(segment.start());
+            out.writeInt(segment.address());
+            out.writeUTF(segment.text());
+            out.writeInt(segment.line());
+        }
+        for (List<Use> uses: List.of(labels, labelReferences, symbolReferences)) {
+            out.writeInt(uses.size());
+            for (var use: uses) {
+                out.writeUTF(use.name());
+                out.writeInt(use.segment());
+                out.writeInt(use.position());
+                out.writeInt(use.line());
+            }
+        }
+        out.writeInt(symbols.size());
+        for (var symbol: symbols) {
+            out.writeUTF(symbol.name());
+            out.writeInt(symbol.value().length);
+            out.write(symbol.value());
+            out.writeInt(symbol.line());
+        }
+        // Instructions have no name.
+        out.writeInt(instructions.size());
+        for (var instruction: instructions) {
+            out.writeInt(instruction.segment());
+            out.writeInt(instruction.position());
+            out.writeInt(instruction.line());
+        }
+        out.writeInt(diagnostics.size());
+        for (var diagnostic: diagnostics) {
+            out.writeInt(diagnostic.line());
+            out.writeUTF(diagnostic.message());
+        }
+    }
+
+    /**
+     * Reads a fragment written by {@link #write(DataOutputStream)}.
+     */
+    static Fragment read(DataInputStream in) throws IOException {
+        Fragment fragment = new Fragment();
+        fragment.length = in.readInt();
+        fragment.code = in.readNBytes(fragment.length);
+        fragment.lines = in.readInt();
+        fragment.segments.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            fragment.segments.add(new Segment(in.readInt(), in.readInt(), in.readUTF(), in.readInt()));
+        }
+        for (List<Use> uses: List.of(fragment.labels, fragment.labelReferences, fragment.symbolReferences)) {
+            for (int i = in.readInt(); i > 0; i--) {
+                uses.add(new Use(in.readUTF(), in.readInt(), in.readInt(), in.readInt()));
+            }
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = in.readUTF();
+            byte[] value = in.readNBytes(in.readInt());
+            fragment.symbols.add(new Data(name, value, in.readInt()));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            fragment.instructions.add(new Use(null, in.readInt(), in.readInt(), in.readInt()));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            fragment.diagnostics.add(new Assembler.Diagnostic(in.readInt(), in.readUTF()));
+        }
+        return fragment;
+    }
+
+    private void addLine(ByteBuffer source, int start, int end) {
+        // Strip comments.
+        for (int i = start; i < end; i++) {
+            if (source.get(i) == ';') {
+                end = i;
+                break;
+            }
+        }
+        while (start < end && isStripped(source.get(start))) {
+            start++;
+        }
+        while (end > start && isStripped(source.get(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+
+        switch (source.get(start)) {
+            case '.' -> addData(source, start + 1, end);
+            case ':' -> labels.add(use(string(source, start + 1, end)));
+            case '_' -> addSegment(string(source, start + 1, end));
+            default -> addInstruction(source, start, end);
+        }
+    }
+
+    private void addData(ByteBuffer source, int start, int end) {
+        int typeEnd = skipWord(source, start, end);
+        int nameStart = skipSpace(source, typeEnd, end);
+        int nameEnd = skipWord(source, nameStart, end);
+        int valueStart = skipSpace(source, nameEnd, end);
+        if (typeEnd == end || nameEnd == end) {
+            throw new RuntimeException("Invalid data: " + string(source, start, end));
+        }
+        String type = string(source, start, typeEnd);
+        String symbol = name(source, nameStart, nameEnd);
+        byte[] value = switch (type) {
+            case "int" -> {
+                if (end - valueStart > 8) {
+                    throw new RuntimeException("Invalid int: " + string(source, valueStart, end));
+                }
+                yield ByteBuffer.allocate(4).putInt((int)hex(source, valueStart, end)).array();
+            }
+            case "raw" -> {
+                if ((end - valueStart) % 2 != 0) {
+                    throw new RuntimeException("Invalid raw data: " + string(source, valueStart, end));
+                }
+                byte[] raw = new byte[(end - valueStart) / 2];
+                for (int i = 0; i < raw.length; i++) {
+                    raw[i] = (byte)hex(source, valueStart + i * 2, valueStart + i * 2 + 2);
+                }
+                yield raw;
+            }
+            case "text" -> {
+                byte[] text = new byte[end - valueStart];
+                source.get(valueStart, text);
+                yield text;
+            }
+            default -> throw new RuntimeException("Invalid data type: " + string(source, start, end));
+        };
+        symbols.add(new Data(symbol, value, lines));
+    }
+
+    private void addSegment(String text) {
+        int address = HexFormat.fromHexDigits(text.replace("0x", "").replace(":", ""));
+        segments.add(new Segment(length, address, text, lines));
+    }
+
+    private void addInstruction(ByteBuffer source, int start, int end) {
+        int mnemonicEnd = skipWord(source, start, end);
+        Instruction instruction = instruction(source, start, mnemonicEnd);
+        int param = 0;
+        if (mnemonicEnd < end) {
+            int operandStart = skipSpace(source, mnemonicEnd, end);
+            // Allow for readability, but ignore otherwise.
+            String operand = name(source, operandStart, end);
+            if (operand.isEmpty()) {
+                throw new RuntimeException("Missing operand: " + string(source, start, end));
+            }
+            if (Character.isDigit(operand.charAt(0))) {
+                param = Integer.parseInt(operand);
+            } else {
+                switch (instruction) {
+                    case J, JZ, JN, JC, JV -> labelReferences.add(use(operand, length + 1));
+                    case LDN, STN -> symbolReferences.add(use(operand, length + 1));
+                }
+            }
+        }
+        if (InstructionTable.hasOperand(instruction) && (param < 0 || param > 15)) {
+            throw new InstructionException("Value " + param + " out of range.");
+        }
+        instructions.add(use(null));
+        reserve(1 + InstructionTable.IMMEDIATE_SIZE);
+        if (InstructionTable.hasOperand(instruction)) {
+            code[length++] = (byte)(instruction.getValue() | param);
+        } else if (InstructionTable.hasImmediate(instruction)) {
+            code[length++] = instruction.getValue();
+            code[length++] = (byte)(param >>> 24);
+            code[length++] = (byte)(param >>> 16);
+            code[length++] = (byte)(param >>> 8);
+            code[length++] = (byte)param;
+        } else {
+            code[length++] = instruction.getValue();
+        }
+    }
+
+    private static Instruction instruction(ByteBuffer source, int start, int end) {
+        int found = -1;
+        if (end - start <= 4) {
+            int packed = 0;
+            for (int i = start; i < end; i++) {
+                packed = packed << 8 | source.get(i) & 0xFF;
+            }
+            found = Arrays.binarySearch(MNEMONICS, packed);
+        }
+        if (found < 0) {
+            throw new InstructionException("Unknown instruction: " + string(source, start, end));
+        }
+        return BY_MNEMONIC[found];
+    }
+
+    private Use use(String name) {
+        return use(name, length);
+    }
+
+    private Use use(String name, int position) {
+        return new Use(name, segments.size() - 1, position, lines);
+    }
+
+    private void reserve(int size) {
+        if (length + size > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + size));
+        }
+    }
+
+    private static long hex(ByteBuffer source, int start, int end) {
+        if (start == end) {
+            throw new RuntimeException("Missing hex digits");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(source.get(i), 16);
+            if (digit < 0) {
+                throw new RuntimeException("Invalid hex digits: " + string(source, start, end));
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    // What String.strip removes, in ASCII.
+    private static boolean isStripped(byte b) {
+        return b == ' ' || b >= 0x09 && b <= 0x0D || b >= 0x1C && b <= 0x1F;
+    }
+
+    // What \s matches.
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b >= 0x09 && b <= 0x0D;
+    }
+
+    private static int skipWord(ByteBuffer source, int i, int end) {
+        while (i < end && !isSpace(source.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipSpace(ByteBuffer source, int i, int end) {
+        while (i < end && isSpace(source.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // A name, without the characters allowed for readability.
+    private static String name(ByteBuffer source, int start, int end) {
+        byte[] name = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = source.get(i);
+            if (b != '$' && b != '%' && b != '!') {
+                name[length++] = b;
+            }
+        }
+        return new String(name, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer source, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        source.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,188 @@
+package nz.bradley.neil.cpu.assembler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * <p>
+ *     <b>Object File</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     A source file, assembled but not linked: its code, with every
+ *     label and data reference left for {@link Assembler#link(List)} to
+ *     fill in, so each file of a program can be assembled on its own,
+ *     and only again when it changes.  Labels and data symbols are
+ *     global, so everything a file defines is exported, and everything
+ *     it uses but doesn't define is imported.
+ * </p>
+ * <p>
+ *     <b>Format</b>
+ *     <br>
+ *     Magic <code>8OBJ</code> and the version, the source's name, then
+ *     each {@link Fragment} the source was cut into, in order.  The
+ *     format is only read back by the same version of the Assembler;
+ *     anything else is rejected, and reassembled by a
+ *     {@link BuildCache}.
+ * </p>
+ */
+public final class ObjectFile {
+
+    static final int MAGIC = 0x384F_424A;     // "8OBJ"
+    static final int VERSION = 1;
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final String source;
+    private final List<Fragment> fragments;
+
+    private ObjectFile(String source, List<Fragment> fragments) {
+        this.source = source;
+        this.fragments = fragments;
+    }
+
+    /**
+     * Assembles a source file.  The file is memory-mapped, and cut into
+     * chunks of about {@value #CHUNK_SIZE} bytes, at line ends, which are
+     * lexed and encoded in parallel.
+     *
+     * @param source    The file.
+     * @return          Its object.  Lines that couldn't be assembled are
+     *                  reported when it's linked.
+     * @throws IOException  If the file can't be mapped.
+     */
+    public static ObjectFile compile(Path source) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        List<int[]> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < mapped.limit()) {
+            int end = Math.min(start + CHUNK_SIZE, mapped.limit());
+            while (end < mapped.limit() && mapped.get(end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(new int[]{start, end});
+            start = end;
+        }
+        return new ObjectFile(source.toString(), chunks.parallelStream().map(chunk -> {
+            Fragment fragment = new Fragment();
+            fragment.addAll(mapped, chunk[0], chunk[1]);
+            return fragment;
+        }).toList());
+    }
+
+    /**
+     * Reads an object file.
+     *
+     * @param bytes The file, as written by {@link #toBytes()}.
+     * @return      The object.
+     * @throws IOException  If it isn't an object file of this version.
+     */
+    public static ObjectFile read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a version " + VERSION + " object file");
+        }
+        String source = in.readUTF();
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            fragments.add(Fragment.read(in));
+        }
+        return new ObjectFile(source, fragments);
+    }
+
+    public static ObjectFile read(Path file) throws IOException {
+        return read(Files.readAllBytes(file));
+    }
+
+    /**
+     * @return The object, in its file format.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(source);
+            out.writeInt(fragments.size());
+            for (var fragment: fragments) {
+                fragment.write(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void write(Path file) throws IOException {
+        Files.write(file, toBytes());
+    }
+
+    /**
+     * @return The name of the source file.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return Lines in the source file.
+     */
+    public int getLines() {
+        return fragments.stream().mapToInt(fragment -> fragment.lines).sum();
+    }
+
+    /**
+     * @return Labels and data symbols defined in the file.
+     */
+    public Set<String> getExports() {
+        Set<String> exports = new TreeSet<>();
+        for (var fragment: fragments) {
+            fragment.labels.forEach(label -> exports.add(label.name()));
+            fragment.symbols.forEach(symbol -> exports.add(symbol.name()));
+        }
+        return exports;
+    }
+
+    /**
+     * @return Labels and data symbols used in the file, but not defined
+     *         in it.
+     */
+    public Set<String> getImports() {
+        Set<String> imports = new TreeSet<>();
+        for (var fragment: fragments) {
+            fragment.labelReferences.forEach(reference -> imports.add(reference.name()));
+            fragment.symbolReferences.forEach(reference -> imports.add(reference.name()));
+        }
+        imports.removeAll(getExports());
+        return imports;
+    }
+
+    /**
+     * @return Lines that couldn't be assembled, counting from the file's
+     *         first line.
+     */
+    public List<Assembler.Diagnostic> getDiagnostics() {
+        List<Assembler.Diagnostic> diagnostics = new ArrayList<>();
+        int first = 1;
+        for (var fragment: fragments) {
+            for (var diagnostic: fragment.diagnostics) {
+                diagnostics.add(new Assembler.Diagnostic(first + diagnostic.line(), diagnostic.message()));
+            }
+            first += fragment.lines;
+        }
+        return diagnostics;
+    }
+
+    List<Fragment> fragments() {
+        return fragments;
+    }
+}
@@ -0,0 +1,412 @@
+package nz.bradley.neil.cpu.assembler;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.InstructionTable;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * <p>
+ *     <b>Optimiser</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     A peephole pass over a program's {@link Fragment}s, before they
+ *     are linked, rewriting instructions into fewer or shorter ones that
+ *     leave every register, flag and $TARGET as they were:
+ *     <ul>
+ *         <li><code>SEL r</code> when <code>r</code> is already
+ *             $TARGET is removed.</li>
+ *         <li><code>SEL</code> straight after another
+ *             <code>SEL</code> removes the first.</li>
+ *         <li><code>J</code> to the instruction after it is
+ *             removed.</li>
+ *         <li><code>LDN 0</code> and <code>LDN 1</code> become
+ *             <code>CLR</code> and <code>UNO</code>.</li>
+ *         <li><code>CLR; INC</code> becomes <code>UNO</code>, and
+ *             <code>UNO; DEC</code> becomes <code>CLR</code>.</li>
+ *     </ul>
+ *     Every instruction takes a cycle, so each one removed saves a
+ *     cycle each time it would have run.
+ * </p>
+ * <p>
+ *     <b>$TARGET</b>
+ *     <br>
+ *     $TARGET is tracked across basic blocks: a label jumped to has the
+ *     $TARGET every jump to it, and the code falling into it, agree on,
+ *     if they do.  $TARGET is unknown at the start of the program, at
+ *     address lines, and at labels nothing jumps to, or whose address
+ *     is loaded, which may be reached by <code>JR</code>.
+ * </p>
+ * <p>
+ *     <b>Assumptions</b>
+ *     <br>
+ *     Interrupt handlers return with $TARGET as they found it, as the
+ *     corpus handlers do by selecting it again before
+ *     <code>JR 15</code>.  Code addresses come only from labels, so
+ *     programs that jump to a number aren't optimised, since moving
+ *     code would break them; nor should code that reads itself as
+ *     data be.
+ * </p>
+ */
+final class Optimiser {
+
+    private static final int UNKNOWN = -1;
+    private static final int UNREACHED = -2;
+
+    private enum Kind { LABEL, SEGMENT, INSTRUCTION }
+
+    private static final class Item {
+        final Kind kind;
+        final int fragment;
+        final int position;
+        final int line;
+        String label;           // A label's name, or a jump's target.
+        Instruction instruction;
+        int param;
+        int immediate;
+        boolean numeric;        // The immediate isn't a reference.
+        Instruction replacement;
+        boolean removed;
+
+        Item(Kind kind, int fragment, int position, int line) {
+            this.kind = kind;
+            this.fragment = fragment;
+            this.position = position;
+            this.line = line;
+        }
+    }
+
+    private final List<Fragment> fragments;
+    private final List<Item> items = new ArrayList<>();
+    private final Map<String, Integer> rewrites = new TreeMap<>();
+
+    private Optimiser(List<Fragment> fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Optimises a program.
+     *
+     * @param fragments The program's fragments, in order, which are left
+     *                  as they are.
+     * @return          The optimised fragments, and what was saved, or
+     *                  the fragments unchanged, and why.
+     */
+    static Map.Entry<List<Fragment>, Assembler.Optimisation> optimise(List<Fragment> fragments) {
+        Optimiser optimiser = new Optimiser(fragments);
+        String reason = optimiser.decode();
+        if (reason != null) {
+            return Map.entry(fragments, new Assembler.Optimisation(0, 0, Map.of(), reason));
+        }
+        optimiser.rewrite(optimiser.trackTarget());
+        List<Fragment> optimised = new ArrayList<>();
+        int before = 0, after = 0, removed = 0;
+        for (int f = 0; f < fragments.size(); f++) {
+            Fragment fragment = optimiser.rebuild(f);
+            before += fragments.get(f).length;
+            after += fragment.length;
+            removed += fragments.get(f).instructions.size() - fragment.instructions.size();
+            optimised.add(fragment);
+        }
+        return Map.entry(optimised, new Assembler.Optimisation(
+                before - after, removed, Collections.unmodifiableMap(optimiser.rewrites), null
+        ));
+    }
+
+    // Lists every label, address line and instruction in source order,
+    // or says why the program can't be optimised.
+    private String decode() {
+        Set<String> defined = new HashSet<>();
+        int first = 1;
+        for (int f = 0; f < fragments.size(); f++) {
+            Fragment fragment = fragments.get(f);
+            if (!fragment.diagnostics.isEmpty()) {
+                return "The program has errors";
+            }
+            Map<Integer, String> jumps = new HashMap<>();
+            fragment.labelReferences.forEach(reference -> jumps.put(reference.position(), reference.name()));
+            Set<Integer> symbols = new HashSet<>();
+            fragment.symbolReferences.forEach(reference -> symbols.add(reference.position()));
+
+            List<Item> merged = new ArrayList<>();
+            for (var label: fragment.labels) {
+                if (!defined.add(label.name())) {
+                    return "Duplicate label: " + label.name();
+                }
+                Item item = new Item(Kind.LABEL, f, label.position(), label.line());
+                item.label = label.name();
+                merged.add(item);
+            }
+            for (var segment: fragment.segments.subList(1, fragment.segments.size())) {
+                merged.add(new Item(Kind.SEGMENT, f, segment.start(), segment.line()));
+            }
+            for (var use: fragment.instructions) {
+                Item item = new Item(Kind.INSTRUCTION, f, use.position(), use.line());
+                byte value = fragment.code()[use.position()];
+                item.instruction = InstructionTable.instruction(value);
+                item.param = InstructionTable.operand(value);
+                if (InstructionTable.hasImmediate(item.instruction)) {
+                    item.immediate = ByteBuffer.wrap(fragment.code(), use.position() + 1, 4).getInt();
+                    item.label = jumps.get(use.position() + 1);
+                    item.numeric = item.label == null && !symbols.contains(use.position() + 1);
+                    if (isJump(item.instruction) && item.label == null) {
+                        return "Line " + (first + use.line()) + ": Jump to an address, not a label";
+                    }
+                }
+                merged.add(item);
+            }
+            // One item per line, so line order is source order.
+            merged.sort(Comparator.comparingInt(item -> item.line));
+            items.addAll(merged);
+            first += fragment.lines;
+        }
+        return null;
+    }
+
+    // Finds $TARGET on entry to each label, by iterating to a fixed
+    // point: labels start unreached, and only become less known.
+    private Map<String, Integer> trackTarget() {
+        Map<String, Integer> entry = new HashMap<>();
+        Set<String> jumpedTo = new HashSet<>();
+        Set<String> loaded = new HashSet<>();
+        for (var item: items) {
+            if (item.kind == Kind.INSTRUCTION && item.label != null) {
+                (isJump(item.instruction) ? jumpedTo : loaded).add(item.label);
+            }
+        }
+        jumpedTo.removeAll(loaded);
+        for (var item: items) {
+            if (item.kind == Kind.LABEL) {
+                entry.put(item.label, jumpedTo.contains(item.label) ? UNREACHED : UNKNOWN);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            Map<String, Integer> next = new HashMap<>();
+            int target = UNKNOWN;
+            boolean falls = true;
+            for (var item: items) {
+                switch (item.kind) {
+                    case SEGMENT -> {
+                        target = UNKNOWN;
+                        falls = true;
+                    }
+                    case LABEL -> {
+                        if (falls) {
+                            next.merge(item.label, target, Optimiser::meet);
+                        }
+                        target = entry.get(item.label);
+                        falls = true;
+                    }
+                    case INSTRUCTION -> {
+                        if (isJump(item.instruction)) {
+                            next.merge(item.label, target, Optimiser::meet);
+                        }
+                        if (item.instruction == Instruction.SEL && falls) {
+                            target = item.param;
+                        }
+                        if (isEnd(item.instruction)) {
+                            falls = false;
+                            target = UNREACHED;
+                        }
+                    }
+                }
+            }
+            changed = false;
+            for (var label: entry.entrySet()) {
+                if (label.getValue() == UNKNOWN) {
+                    continue;
+                }
+                int updated = next.getOrDefault(label.getKey(), UNREACHED);
+                if (updated != label.getValue()) {
+                    label.setValue(updated);
+                    changed = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    private static int meet(int a, int b) {
+        if (a == UNREACHED) {
+            return b;
+        }
+        if (b == UNREACHED) {
+            return a;
+        }
+        return a == b ? a : UNKNOWN;
+    }
+
+    // Marks the rewrites, walking the program with $TARGET as known.
+    private void rewrite(Map<String, Integer> entry) {
+        int target = UNKNOWN;
+        Item previous = null;   // The last instruction kept, if nothing since.
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            switch (item.kind) {
+                case SEGMENT -> {
+                    target = UNKNOWN;
+                    previous = null;
+                }
+                case LABEL -> {
+                    target = entry.get(item.label);
+                    previous = null;
+                }
+                case INSTRUCTION -> {
+                    Instruction instruction = item.instruction;
+                    if (instruction == Instruction.SEL && item.param == target) {
+                        remove(item, "SEL of $TARGET");
+                        continue;
+                    }
+                    if (instruction == Instruction.SEL && previous != null && previous.instruction == Instruction.SEL) {
+                        remove(previous, "SEL followed by SEL");
+                    } else if (instruction == Instruction.J && jumpsToNext(i)) {
+                        remove(item, "J to the next instruction");
+                        continue;
+                    } else if (instruction == Instruction.LDN && item.numeric && (item.immediate == 0 || item.immediate == 1)) {
+                        replace(item, item.immediate == 0 ? Instruction.CLR : Instruction.UNO, "LDN 0 or 1");
+                    } else if (instruction == Instruction.INC && previous != null && is(previous, Instruction.CLR)) {
+                        replace(previous, Instruction.UNO, "CLR; INC");
+                        remove(item, null);
+                        continue;
+                    } else if (instruction == Instruction.DEC && previous != null && is(previous, Instruction.UNO)) {
+                        replace(previous, Instruction.CLR, "UNO; DEC");
+                        remove(item, null);
+                        continue;
+                    }
+                    if (instruction == Instruction.SEL) {
+                        target = item.param;
+                    }
+                    if (isEnd(instruction)) {
+                        target = UNREACHED;
+                    }
+                    previous = item;
+                }
+            }
+        }
+    }
+
+    private static boolean is(Item item, Instruction instruction) {
+        return (item.replacement == null ? item.instruction : item.replacement) == instruction;
+    }
+
+    private boolean jumpsToNext(int i) {
+        for (int j = i + 1; j < items.size() && items.get(j).kind == Kind.LABEL; j++) {
+            if (items.get(j).label.equals(items.get(i).label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(Item item, String rewrite) {
+        item.removed = true;
+        if (rewrite != null) {
+            rewrites.merge(rewrite, 1, Integer::sum);
+        }
+    }
+
+    private void replace(Item item, Instruction replacement, String rewrite) {
+        item.replacement = replacement;
+        rewrites.merge(rewrite, 1, Integer::sum);
+    }
+
+    // Copies a fragment with its rewrites, moving everything after a
+    // rewrite down to close the gap.
+    private Fragment rebuild(int f) {
+        Fragment old = fragments.get(f);
+        List<Item> instructions = new ArrayList<>();
+        for (var item: items) {
+            if (item.fragment == f && item.kind == Kind.INSTRUCTION) {
+                instructions.add(item);
+            }
+        }
+        instructions.sort(Comparator.comparingInt(item -> item.position));
+        int[] oldPositions = new int[instructions.size()];
+        int[] newPositions = new int[instructions.size() + 1];
+        byte[] code = new byte[old.length];
+        int length = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            Item item = instructions.get(i);
+            oldPositions[i] = item.position;
+            newPositions[i] = length;
+            int size = InstructionTable.length(old.code()[item.position]);
+            if (item.replacement != null) {
+                code[length++] = item.replacement.getValue();
+            } else if (!item.removed) {
+                System.arraycopy(old.code(), item.position, code, length, size);
+                length += size;
+            }
+        }
+        newPositions[instructions.size()] = length;
+
+        Fragment fragment = new Fragment();
+        fragment.setCode(code, length);
+        fragment.lines = old.lines;
+        fragment.segments.clear();
+        for (var segment: old.segments) {
+            fragment.segments.add(new Fragment.Segment(
+                    moved(segment.start(), oldPositions, newPositions),
+                    segment.address(), segment.text(), segment.line()
+            ));
+        }
+        for (var label: old.labels) {
+            fragment.labels.add(move(label, label.position(), oldPositions, newPositions));
+        }
+        for (int i = 0; i < instructions.size(); i++) {
+            Item item = instructions.get(i);
+            Fragment.Use use = old.instructions.get(i);
+            if (!item.removed) {
+                fragment.instructions.add(move(use, use.position(), oldPositions, newPositions));
+            }
+        }
+        Set<Integer> gone = new HashSet<>();
+        for (var item: instructions) {
+            if (item.removed || item.replacement != null) {
+                gone.add(item.position + 1);
+            }
+        }
+        for (var reference: old.labelReferences) {
+            if (!gone.contains(reference.position())) {
+                fragment.labelReferences.add(move(reference, reference.position() - 1, oldPositions, newPositions, 1));
+            }
+        }
+        for (var reference: old.symbolReferences) {
+            fragment.symbolReferences.add(move(reference, reference.position() - 1, oldPositions, newPositions, 1));
+        }
+        fragment.symbols.addAll(old.symbols);
+        return fragment;
+    }
+
+    private static Fragment.Use move(Fragment.Use use, int position, int[] oldPositions, int[] newPositions) {
+        return move(use, position, oldPositions, newPositions, 0);
+    }
+
+    private static Fragment.Use move(Fragment.Use use, int position, int[] oldPositions, int[] newPositions, int offset) {
+        return new Fragment.Use(use.name(), use.segment(), moved(position, oldPositions, newPositions) + offset, use.line());
+    }
+
+    // The new position of the first instruction at or after an old one.
+    private static int moved(int position, int[] oldPositions, int[] newPositions) {
+        int i = Arrays.binarySearch(oldPositions, position);
+        return newPositions[i >= 0 ? i : -i - 1];
+    }
+
+    private static boolean isJump(Instruction instruction) {
+        return switch (instruction) {
+            case J, JZ, JN, JC, JV -> true;
+            default -> false;
+        };
+    }
+
+    // Instructions that never go on to the next.
+    private static boolean isEnd(Instruction instruction) {
+        return switch (instruction) {
+            case J, JR, RST, HLT -> true;
+            default -> false;
+        };
+    }
+}
@@ -1,4 +1,154 @@
 package nz.bradley.neil.cpu.assembler;
 
+import nz.bradley.neil.cpu.api.DebugMap;
+import org.junit.jupiter.api.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class AssemblerTest {
+
+    @Test
+    void labelsAreMappedByAddress() {
+        Assembler assembler = new Assembler();
+        assertTrue(assembler.assemble(String.join("\n",
+                ":program",
+                "    J   start",
+                "_0x05:",
+                "    HLT",
+                ":start",
+                "    SEL 1",
+                ":loop",
+                "    J   loop"
+        )).succeeded());
+        assertEquals(Map.of("program", 0, "start", 6, "loop", 7), assembler.getLabels());
+        assertEquals(List.of("00000000 program", "00000006 start", "00000007 loop"), assembler.labelMap());
+    }
+
+    @Test
+    void debugMapHoldsLinesAndData() {
+        Assembler assembler = new Assembler();
+        assembler.assemble(String.join("\r\n",
+                ".text message hello",
+                ":program",
+                "    LDN message",
+                "    LDN message",
+                "    HLT"
+        )).orElseThrow();
+        DebugMap map = DebugMap.wrap(assembler.debugMap(Map.of("main.asm", 1)));
+        assertEquals("main.asm:3", map.location(0));
+        assertEquals("main.asm:4", map.location(5));
+        assertEquals("main.asm:5", map.location(10));
+        assertEquals(new DebugMap.Symbol("message", 12, 5), map.symbol(16));
+        assertNull(map.symbol(17));
+        assertEquals("main.asm:1", map.location(12));
+        assertEquals("program", map.label(11));
+    }
+
+    @Test
+    void dataIsPlacedOnceAndAligned() {
+        byte[] program = Assembler.assemble(List.of(
+                ".text message hello",
+                ".int unused 1",
+                ".int value 2A",
+                "    LDN message",
+                "    LDN value",
+                "    LDN message",
+                "    HLT"
+        ));
+        // Code is 16 bytes, then "hello", padded to 4, and the int.
+        assertEquals(28, program.length);
+        assertArrayEquals(new byte[]{0, 0, 0, 16}, Arrays.copyOfRange(program, 1, 5));
+        assertArrayEquals(new byte[]{0, 0, 0, 24}, Arrays.copyOfRange(program, 6, 10));
+        assertArrayEquals(new byte[]{0, 0, 0, 16}, Arrays.copyOfRange(program, 11, 15));
+        assertArrayEquals("hello".getBytes(), Arrays.copyOfRange(program, 16, 21));
+        assertArrayEquals(new byte[]{0, 0, 0, 0x2A}, Arrays.copyOfRange(program, 24, 28));
+    }
+
+    @Test
+    void everyBadLineIsDiagnosed() {
+        Assembler.Result result = new Assembler().assemble(String.join("\n",
+                ":start",
+                "    SEL 16",
+                "    FOO",
+                "    J   nowhere",
+                ":start",
+                "    LDN missing"
+        ));
+        assertFalse(result.succeeded());
+        assertNull(result.image());
+        assertEquals(
+                List.of(2, 3, 5, 6, 4),
+                result.diagnostics().stream().map(Assembler.Diagnostic::line).toList()
+        );
+        assertThrows(IllegalStateException.class, result::orElseThrow);
+    }
+
+    @Test
+    void assemblesInParallel() throws Exception {
+        List<String> source = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            source.add(".int value" + i + " " + Integer.toHexString(i));
+            source.add(":block" + i);
+            source.add("    LDN value" + i);
+            source.add("    JZ  block" + i);
+        }
+        byte[] expected = Assembler.assemble(source);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> new Assembler().assemble(source.stream()).orElseThrow()));
+            }
+            for (var result: results) {
+                assertArrayEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void filesAssembleAsOneSource() throws Exception {
+        List<String> first = List.of(
+                ":program",
+                "    J   start",
+                "_0x05:",
+                "    HLT",
+                ".text message hello"
+        );
+        // Large enough to be cut into chunks.
+        List<String> second = new ArrayList<>();
+        second.add(":start");
+        for (int i = 0; i < 100_000; i++) {
+            second.add("    LDN message    ; Load the message's address.");
+            second.add("    JZ  start");
+        }
+        second.add("_0x" + Integer.toHexString(2_000_000) + ":");
+        second.add("    J   program");
+        Path dir = Files.createTempDirectory("assembler");
+        Path a = Files.write(dir.resolve("a.asm"), first);
+        Path b = Files.write(dir.resolve("b.asm"), second);
+        try {
+            List<String> lines = new ArrayList<>(first);
+            lines.addAll(second);
+            Assembler assembler = new Assembler();
+            assertArrayEquals(Assembler.assemble(lines), assembler.assembleFiles(List.of(a, b)).orElseThrow());
+            assertEquals(List.of(1, 6), List.copyOf(assembler.getFiles().values()));
+            assertEquals(Map.of("program", 0, "start", 6), assembler.getLabels());
+        } finally {
+            Files.delete(a);
+            Files.delete(b);
+            Files.delete(dir);
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package nz.bradley.neil.cpu.assembler;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BuildCacheTest {
+
+    private Path dir;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("cache");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (Path file: files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void unchangedSourcesAreNotReassembled() throws IOException {
+        Path source = Files.write(dir.resolve("main.asm"), List.of(":start", "    J   start"));
+        BuildCache cache = new BuildCache(dir.resolve("cache"));
+        byte[] first = cache.compile(source).toBytes();
+        assertArrayEquals(first, cache.compile(source).toBytes());
+        assertArrayEquals(first, new BuildCache(dir.resolve("cache")).compile(source).toBytes());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        Files.write(source, List.of(":start", "    HLT"));
+        assertFalse(Arrays.equals(first, cache.compile(source).toBytes()));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void failedSourcesAreNotKept() throws IOException {
+        Path source = Files.write(dir.resolve("bad.asm"), List.of("    FOO"));
+        BuildCache cache = new BuildCache(dir.resolve("cache"));
+        assertFalse(cache.compile(source).getDiagnostics().isEmpty());
+        assertFalse(cache.compile(source).getDiagnostics().isEmpty());
+        assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,79 @@
+package nz.bradley.neil.cpu.assembler;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectFileTest {
+
+    private static final List<String> MAIN = List.of(
+            ":program",
+            "    J   start",
+            "_0x05:",
+            "    HLT",
+            ":start",
+            "    LDN message",
+            "    J   print"
+    );
+
+    private static final List<String> LIBRARY = List.of(
+            ".text message hello",
+            ":print",
+            "    LDN message",
+            "    J   program"
+    );
+
+    private Path dir;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("objects");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (Path file: files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void exportsDefinitionsAndImportsTheRest() throws IOException {
+        ObjectFile main = ObjectFile.compile(Files.write(dir.resolve("main.asm"), MAIN));
+        assertEquals(Set.of("program", "start"), main.getExports());
+        assertEquals(Set.of("message", "print"), main.getImports());
+        assertEquals(7, main.getLines());
+    }
+
+    @Test
+    void linkedObjectsMatchAssemblingTogether() throws IOException {
+        ObjectFile main = ObjectFile.compile(Files.write(dir.resolve("main.asm"), MAIN));
+        ObjectFile library = ObjectFile.read(ObjectFile.compile(Files.write(dir.resolve("lib.asm"), LIBRARY)).toBytes());
+        List<String> lines = new ArrayList<>(MAIN);
+        lines.addAll(LIBRARY);
+        Assembler assembler = new Assembler();
+        assertArrayEquals(Assembler.assemble(lines), assembler.link(List.of(main, library)).orElseThrow());
+        assertEquals(List.of(1, 8), List.copyOf(assembler.getFiles().values()));
+    }
+
+    @Test
+    void diagnosticsCountFromTheFile() throws IOException {
+        ObjectFile object = ObjectFile.compile(Files.write(dir.resolve("bad.asm"), List.of("", "    FOO")));
+        assertEquals(2, object.getDiagnostics().get(0).line());
+        assertEquals(1, ObjectFile.read(object.toBytes()).getDiagnostics().size());
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        assertThrows(IOException.class, () -> ObjectFile.read(new byte[16]));
+    }
+}
@@ -0,0 +1,155 @@
+package nz.bradley.neil.cpu.assembler;
+
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OptimiserTest {
+
+    private static Assembler optimised(String... lines) {
+        Assembler assembler = new Assembler(true);
+        assembler.assemble(String.join("\n", lines)).orElseThrow();
+        return assembler;
+    }
+
+    private static byte[] image(String... lines) {
+        return new Assembler(true).assemble(String.join("\n", lines)).orElseThrow();
+    }
+
+    @Test
+    void targetIsTrackedAroundLoops() {
+        assertArrayEquals(Assembler.assemble(List.of(
+                ":program",
+                "    SEL 1",
+                "    LDN 10",
+                ":loop",
+                "    DEC",
+                "    JZ  done",
+                "    J   loop",
+                ":done",
+                "    HLT"
+        )), image(
+                ":program",
+                "    SEL 1",
+                "    LDN 10",
+                ":loop",
+                "    SEL 1",
+                "    DEC",
+                "    JZ  done",
+                "    SEL 1",
+                "    J   loop",
+                ":done",
+                "    SEL 1",
+                "    HLT"
+        ));
+    }
+
+    @Test
+    void targetIsUnknownWhereJumpsDisagree() {
+        String[] source = {
+                ":program",
+                "    SEL 1",
+                "    JZ  shared",
+                "    SEL 2",
+                ":shared",
+                "    SEL 2",
+                "    HLT",
+                ":computed",
+                "    SEL 3",
+                "    SEL 4",
+                "    HLT",
+                "_0x20:",
+                "    SEL 4",
+                "    HLT"
+        };
+        Assembler assembler = optimised(source);
+        assertEquals(Map.of("SEL followed by SEL", 1), assembler.getOptimisation().rewrites());
+        assertArrayEquals(Assembler.assemble(List.of(
+                ":program",
+                "    SEL 1",
+                "    JZ  shared",
+                "    SEL 2",
+                ":shared",
+                "    SEL 2",
+                "    HLT",
+                ":computed",
+                "    SEL 4",
+                "    HLT",
+                "_0x20:",
+                "    SEL 4",
+                "    HLT"
+        )), image(source));
+    }
+
+    @Test
+    void rewritesKeepEveryReferenceRight() {
+        Assembler assembler = optimised(
+                ".text message hi",
+                ":program",
+                "    SEL 1",
+                "    LDN 0",
+                "    CLR",
+                "    INC",
+                "    J   next",
+                ":next",
+                "    UNO",
+                "    DEC",
+                "    LDN message",
+                "    JZ  next",
+                "    HLT"
+        );
+        assertEquals(Map.of("program", 0, "next", 3), assembler.getLabels());
+        assertEquals(new Assembler.Optimisation(4 + 1 + 5 + 1, 3, Map.of(
+                "CLR; INC", 1, "J to the next instruction", 1, "LDN 0 or 1", 1, "UNO; DEC", 1
+        ), null), assembler.getOptimisation());
+        assertArrayEquals(Assembler.assemble(List.of(
+                ".text message hi",
+                ":program",
+                "    SEL 1",
+                "    CLR",
+                "    UNO",
+                ":next",
+                "    CLR",
+                "    LDN message",
+                "    JZ  next",
+                "    HLT"
+        )), image(
+                ".text message hi",
+                ":program",
+                "    SEL 1",
+                "    LDN 0",
+                "    CLR",
+                "    INC",
+                "    J   next",
+                ":next",
+                "    UNO",
+                "    DEC",
+                "    LDN message",
+                "    JZ  next",
+                "    HLT"
+        ));
+    }
+
+    @Test
+    void jumpsToAddressesAreNotOptimised() {
+        Assembler assembler = optimised(
+                ":program",
+                "    SEL 1",
+                "    SEL 1",
+                "    J   0"
+        );
+        assertEquals("Line 4: Jump to an address, not a label", assembler.getOptimisation().skipped());
+        assertArrayEquals(Assembler.assemble(List.of(":program", "    SEL 1", "    SEL 1", "    J   0")),
+                image(":program", "    SEL 1", "    SEL 1", "    J   0"));
+    }
+
+    @Test
+    void onlyOptimisesWhenAsked() {
+        Assembler assembler = new Assembler();
+        assembler.assemble(":program\n    SEL 1\n    SEL 1\n    HLT").orElseThrow();
+        assertNull(assembler.getOptimisation());
+    }
+}
@@ -0,0 +1,79 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.assembler.Assembler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembles a large generated source, end to end.  Each copy of the
+ * block is {@value #LINES_PER_COPY} lines, with its own data symbol and
+ * label, so linking grows with the source.  Assemblers share no
+ * state, so running with <code>-t</code> threads measures them
+ * assembling in parallel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AssemblerBenchmark {
+
+    static final int LINES_PER_COPY = 16;
+
+    @Param({"1000", "10000"})
+    public int copies;
+
+    private List<String> source;
+    private String text;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        source = new ArrayList<>(copies * LINES_PER_COPY);
+        for (int i = 0; i < copies; i++) {
+            source.add(".int value" + i + " " + Integer.toHexString(i));
+            source.add(":block" + i + "    ; Generated.");
+            source.add("    SEL 1");
+            source.add("    LDN value" + i);
+            source.add("    SEL 2");
+            source.add("    CLR");
+            source.add("    ADD 1");
+            source.add("    MUL 1");
+            source.add("    SHL 2");
+            source.add("    STR 7");
+            source.add("    DEC");
+            source.add("    JZ block" + i);
+            source.add("    JN block" + i);
+            source.add("");
+            source.add("; Comment line.");
+            source.add("    J block" + (i + 1) % copies);
+        }
+        text = String.join("\n", source);
+        file = Files.createTempFile("assembler", ".asm");
+        Files.write(file, source);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public byte[] assemble() {
+        return Assembler.assemble(source);
+    }
+
+    @Benchmark
+    public byte[] assembleText() {
+        return new Assembler().assemble(text).orElseThrow();
+    }
+
+    @Benchmark
+    public byte[] assembleFile() throws IOException {
+        return new Assembler().assembleFiles(List.of(file)).orElseThrow();
+    }
+}
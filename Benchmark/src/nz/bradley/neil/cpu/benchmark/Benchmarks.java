@@ -0,0 +1,28 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching the given patterns (all of them, if
+ * none are given) with allocation profiling enabled.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        var options = new OptionsBuilder()
+            .addProfiler(GCProfiler.class)
+            .forks(1)
+            .warmupIterations(3)
+            .measurementIterations(5);
+        if (args.length == 0) {
+            options.include(Benchmarks.class.getPackageName() + ".*");
+        }
+        for (String pattern: args) {
+            options.include(pattern);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,90 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.CPU;
+import nz.bradley.neil.cpu.Clock;
+import nz.bradley.neil.cpu.Memory;
+import nz.bradley.neil.cpu.PC;
+import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.assembler.Assembler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clocks a CPU through endless loops of different instruction mixes,
+ * on each engine.  Every cycle executes one instruction, so the score
+ * is guest instructions per microsecond.  The block engines run several
+ * cycles per step, so steps are counted by the clock's cycles, not by
+ * calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(CPUBenchmark.CYCLES)
+public class CPUBenchmark {
+
+    static final int CYCLES = 10_000;
+
+    private static final Map<String, List<String>> MIXES = Map.of(
+        // Register arithmetic only.
+        "alu", List.of(
+            ".int one 1",
+            ".int three 3",
+            "SEL 1", "LDN one", "LDR 1", "SEL 2", "LDN three", "LDR 2",
+            ":loop",
+            "SEL 3", "ADD 1", "MUL 2", "SHL 1", "XOR 2", "SUB 1", "SHR 2", "CP 4",
+            "SEL 4", "AND 3", "OR 1", "INC", "NEG", "COM",
+            "J loop"
+        ),
+        // Loads and stores to RAM, well away from the code.
+        "memory", List.of(
+            ".int buffer 800",
+            "SEL 1", "LDN buffer", "LDR 1",
+            ":loop",
+            "SEL 2", "LDR 1", "INC", "STR 1",
+            "SEL 3", "LDR 1", "ADD 2", "STR 1",
+            "J loop"
+        ),
+        // A short countdown loop, taken and not taken.
+        "branch", List.of(
+            ".int count 10",
+            ":outer",
+            "SEL 1", "LDN count", "LDR 1",
+            ":inner",
+            "DEC", "JZ outer", "J inner"
+        )
+    );
+
+    @Param({"alu", "memory", "branch"})
+    public String mix;
+
+    @Param({"interpreter", "blocks", "jit"})
+    public String engine;
+
+    private Clock clock;
+
+    @Setup
+    public void setup() {
+        Memory memory = new Memory().configure("size=4096");
+        memory.bootstrap(Assembler.assemble(MIXES.get(mix)));
+        clock = new Clock();
+        clock.configure("name=Clock0 address=4088 range=8");
+        PC pc = new PC();
+        pc.configure("name=$PC address=4084 range=4");
+        Set<MMIO> mmios = new LinkedHashSet<>(List.of(clock, pc));
+        new CPU(clock, memory, pc, mmios).configure("name=CPU0 address=4052 range=32 engine=" + engine);
+        clock.startStepping();
+    }
+
+    @Benchmark
+    public long sendClock() {
+        long end = clock.getCycle() + CYCLES;
+        while (clock.getCycle() < end && clock.step()) {
+        }
+        return clock.getCycle();
+    }
+}
@@ -0,0 +1,166 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.Machine;
+import nz.bradley.neil.cpu.assembler.Assembler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Runs the guest programs in the <code>corpus</code> directory, and
+ * checks each against its expected output and cycle count.
+ * <p>
+ * Every <code>name.asm</code> is assembled and run on the machine in
+ * <code>corpus.conf</code>, {@value #RUNS} times, reporting the best
+ * host speed in guest instructions per second.  Its output must match
+ * <code>name.out</code>, and its cycle count the one for it in
+ * <code>cycles.txt</code>; anything else is flagged, and the runner
+ * exits with status 1.  Cycle counts are exact, so every engine should
+ * match in its default (exact) mode.
+ * <p>
+ * Usage: <code>Corpus [dir] [--update] [-O] [CPU option ...]</code>.
+ * CPU options, such as <code>engine=jit</code>, are added to each CPU
+ * line of the config.  <code>--update</code> writes what each program
+ * did as the new expectation.  <code>-O</code> optimises each program as
+ * it is assembled: its output must still match, and it may take fewer
+ * cycles, but never more, reporting how many it saved.
+ */
+public class Corpus {
+
+    static final int RUNS = 5;
+    static final long BUDGET = 100_000_000L;
+
+    private static final String CONFIG = "corpus.conf";
+    private static final String CYCLES = "cycles.txt";
+
+    record Run(String name, boolean halted, long cycles, String output, long nanos) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of("corpus");
+        boolean update = false;
+        boolean optimise = false;
+        StringBuilder options = new StringBuilder();
+        for (String arg: args) {
+            if (arg.equals("--update")) {
+                update = true;
+            } else if (arg.equals("-O")) {
+                optimise = true;
+            } else if (arg.contains("=")) {
+                options.append(' ').append(arg);
+            } else {
+                dir = Path.of(arg);
+            }
+        }
+
+        var config = configure(Machine.load(dir.resolve(CONFIG)), options.toString());
+        Map<String, Long> expected = readCycles(dir.resolve(CYCLES));
+        Map<String, Long> cycles = new TreeMap<>();
+        boolean changed = false;
+
+        System.out.printf("%-12s %12s %10s  %s%n", "PROGRAM", "CYCLES", "MIPS", "CHANGES");
+        for (Path source: sources(dir)) {
+            String name = source.getFileName().toString().replaceFirst("\\.asm$", "");
+            byte[] program = optimise
+                ? new Assembler(true).assemble(Files.readString(source)).orElseThrow()
+                : Assembler.assemble(Files.readAllLines(source));
+            Run run = run(name, config, program);
+            cycles.put(name, run.cycles());
+
+            List<String> changes = new ArrayList<>();
+            if (!run.halted()) {
+                changes.add("did not halt");
+            }
+            Long cycleCount = expected.get(name);
+            String saved = null;
+            if (optimise && cycleCount != null && cycleCount > run.cycles()) {
+                saved = (cycleCount - run.cycles()) + " cycles saved";
+            } else if (cycleCount == null || cycleCount != run.cycles()) {
+                changes.add("cycles were " + cycleCount);
+            }
+            Path golden = dir.resolve(name + ".out");
+            if (!Files.exists(golden) || !Files.readString(golden).equals(run.output())) {
+                changes.add("output differs");
+            }
+            if (update) {
+                Files.writeString(golden, run.output());
+            } else {
+                changed |= !changes.isEmpty();
+            }
+            System.out.printf(
+                "%-12s %12d %10.1f  %s%n",
+                name,
+                run.cycles(),
+                run.cycles() * 1e3 / run.nanos(),
+                changes.isEmpty() ? (saved == null ? "-" : saved) : String.join(", ", changes)
+            );
+        }
+
+        if (update) {
+            writeCycles(dir.resolve(CYCLES), cycles);
+        } else if (changed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a program {@value #RUNS} times, each on a new machine.
+     *
+     * @return  The fastest run.
+     */
+    static Run run(String name, Collection<Map.Entry<String, String>> config, byte[] program) {
+        Run best = null;
+        for (int i = 0; i < RUNS; i++) {
+            Machine machine = new Machine(config);
+            machine.bootstrap(program);
+            long start = System.nanoTime();
+            boolean halted = machine.runFor(BUDGET);
+            long nanos = System.nanoTime() - start;
+            if (best == null || nanos < best.nanos()) {
+                best = new Run(name, halted, machine.getCycles(), machine.getOutput(), nanos);
+            }
+        }
+        return best;
+    }
+
+    private static List<Map.Entry<String, String>> configure(Set<Map.Entry<String, String>> config, String options) {
+        List<Map.Entry<String, String>> configured = new ArrayList<>();
+        for (var entry: config) {
+            // Later options win, so these override the file's.
+            configured.add(entry.getKey().equals("CPU")
+                ? Map.entry(entry.getKey(), entry.getValue() + options)
+                : entry);
+        }
+        return configured;
+    }
+
+    private static List<Path> sources(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".asm")).sorted().toList();
+        }
+    }
+
+    private static Map<String, Long> readCycles(Path file) throws IOException {
+        Map<String, Long> cycles = new HashMap<>();
+        if (Files.exists(file)) {
+            for (String line: Files.readAllLines(file)) {
+                String[] parts = line.strip().split("\\s+");
+                if (parts.length == 2 && !line.startsWith("#")) {
+                    cycles.put(parts[0], Long.parseLong(parts[1]));
+                }
+            }
+        }
+        return cycles;
+    }
+
+    private static void writeCycles(Path file, Map<String, Long> cycles) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Guest cycles each corpus program runs for.  Written by Corpus --update.");
+        cycles.forEach((name, count) -> lines.add(name + " " + count));
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+}
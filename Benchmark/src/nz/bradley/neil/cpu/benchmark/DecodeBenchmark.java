@@ -0,0 +1,70 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.InstructionException;
+import nz.bradley.neil.cpu.api.InstructionTable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes every possible instruction byte once per invocation.  Run
+ * with the GC profiler (see {@link Benchmarks}): the table decode
+ * should report <code>gc.alloc.rate.norm</code> of 0 B/op, where the
+ * linear scan clones {@link Instruction#values()} twice per byte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(256)
+public class DecodeBenchmark {
+
+    private final byte[] program = new byte[256];
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < program.length; i++) {
+            program[i] = (byte)i;
+        }
+    }
+
+    @Benchmark
+    public void table(Blackhole blackhole) {
+        for (byte b: program) {
+            blackhole.consume(InstructionTable.instruction(b));
+            blackhole.consume(InstructionTable.operand(b));
+        }
+    }
+
+    @Benchmark
+    public void ofValue(Blackhole blackhole) {
+        for (byte b: program) {
+            blackhole.consume(Instruction.ofValue(b));
+        }
+    }
+
+    @Benchmark
+    public void linearScan(Blackhole blackhole) {
+        for (byte b: program) {
+            blackhole.consume(linearScan(b));
+            blackhole.consume(b & 0x0F);
+        }
+    }
+
+    // The decode loop as it was before the table was introduced.
+    private static Instruction linearScan(byte value) {
+        for (var i: Instruction.values()) {
+            if (i.getValue() == value) {
+                return i;
+            }
+        }
+        value &= 0xF0;
+        for (var i: Instruction.values()) {
+            if (i.getValue() == value) {
+                return i;
+            }
+        }
+        throw new InstructionException("Could not match the specified instruction value: " + value);
+    }
+}
@@ -0,0 +1,123 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.Memory;
+import nz.bradley.neil.cpu.impl.MMIOBase;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the RAM integer path in {@link Memory} against the
+ * copy-and-wrap implementation it replaced, and against MMIO dispatch.
+ * Addresses step by an odd stride, so most accesses are unaligned.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(MemoryBenchmark.ACCESSES)
+public class MemoryBenchmark {
+
+    static final int ACCESSES = 1024;
+    private static final int SIZE = 4096;
+    private static final int STRIDE = 3;
+
+    // A register-like unit, mapped over the top of RAM.
+    private static final class Latch extends MMIOBase {
+
+        private int value;
+
+        @Override
+        public byte readByte(int offset) {
+            return (byte)value;
+        }
+
+        @Override
+        public int readInteger(int offset) {
+            return value;
+        }
+
+        @Override
+        public void writeByte(int offset, byte data) {
+            value = data;
+        }
+
+        @Override
+        public void writeInteger(int offset, int data) {
+            value = data;
+        }
+
+        @Override
+        public void sendClock() {
+        }
+
+        @Override
+        public void sendReset() {
+        }
+    }
+
+    private static final int MMIO_BASE = SIZE - 256;
+    private static final int MMIO_RANGE = 64;
+
+    private Memory memory;
+    private byte[] legacy;
+
+    @Setup
+    public void setup() {
+        memory = new Memory().configure("size=" + SIZE);
+        for (int i = 0; i < 4; i++) {
+            Latch latch = new Latch();
+            latch.configure("name=Latch" + i + " address=" + (MMIO_BASE + i * MMIO_RANGE) + " range=" + MMIO_RANGE);
+            memory.registerMMIO(latch);
+        }
+        legacy = new byte[SIZE];
+    }
+
+    @Benchmark
+    public void readInteger(Blackhole blackhole) {
+        for (int i = 0, address = 0; i < ACCESSES; i++, address += STRIDE) {
+            blackhole.consume(memory.readInteger(address));
+        }
+    }
+
+    @Benchmark
+    public void writeInteger() {
+        for (int i = 0, address = 0; i < ACCESSES; i++, address += STRIDE) {
+            memory.writeInteger(address, i);
+        }
+    }
+
+    @Benchmark
+    public void mmioReadInteger(Blackhole blackhole) {
+        for (int i = 0, address = 0; i < ACCESSES; i++, address += STRIDE) {
+            blackhole.consume(memory.readInteger(MMIO_BASE + (address & 0xFF)));
+        }
+    }
+
+    @Benchmark
+    public void mmioWriteInteger() {
+        for (int i = 0, address = 0; i < ACCESSES; i++, address += STRIDE) {
+            memory.writeInteger(MMIO_BASE + (address & 0xFF), i);
+        }
+    }
+
+    @Benchmark
+    public void legacyReadInteger(Blackhole blackhole) {
+        for (int i = 0, address = 0; i < ACCESSES; i++, address += STRIDE) {
+            byte[] temp = Arrays.copyOfRange(legacy, address, address + 4);
+            blackhole.consume(ByteBuffer.wrap(temp).getInt());
+        }
+    }
+
+    @Benchmark
+    public void legacyWriteInteger() {
+        for (int i = 0, address = 0; i < ACCESSES; i++, address += STRIDE) {
+            legacy[address    ] = (byte)(i >>> 24       );
+            legacy[address + 1] = (byte)(i >>> 16 & 0xFF);
+            legacy[address + 2] = (byte)(i >>>  8 & 0xFF);
+            legacy[address + 3] = (byte)(i        & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.Register;
+import nz.bradley.neil.cpu.RegisterFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same ALU sequence through a {@link Register} view and
+ * straight through a {@link RegisterFile}, as the CPU does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(RegisterBenchmark.OPERATIONS)
+public class RegisterBenchmark {
+
+    static final int ROUNDS = 128;
+    static final int OPERATIONS = ROUNDS * 8;
+
+    private final Register register = new Register();
+    private final RegisterFile file = new RegisterFile(16);
+    private long value = 0x1234_5678L;
+
+    @Benchmark
+    public int register() {
+        for (int i = 0; i < ROUNDS; i++) {
+            register.addTo(value);
+            register.multiplyBy(3);
+            register.subtract(i);
+            register.shiftLeft(1);
+            register.xor(value);
+            register.signedShiftRight(2);
+            register.negate();
+            register.complement();
+        }
+        return register.get();
+    }
+
+    @Benchmark
+    public int registerFile() {
+        for (int i = 0; i < ROUNDS; i++) {
+            int r = i & 15;
+            file.addTo(r, value);
+            file.multiplyBy(r, 3);
+            file.subtract(r, i);
+            file.shiftLeft(r, 1);
+            file.xor(r, value);
+            file.signedShiftRight(r, 2);
+            file.negate(r);
+            file.complement(r);
+        }
+        return file.get(0);
+    }
+}
@@ -0,0 +1,104 @@
+package nz.bradley.neil.cpu.benchmark;
+
+import nz.bradley.neil.cpu.Machine;
+import nz.bradley.neil.cpu.Snapshot;
+import nz.bradley.neil.cpu.assembler.Assembler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a machine that has run its guest's warm-up, which fills a
+ * table of {@value #TABLE_SIZE} integers: once by booting it and
+ * running the warm-up, once by restoring a snapshot taken after it,
+ * and once by forking a machine that has run it.  Restoring and forking
+ * shouldn't grow with RAM, or with the warm-up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotBenchmark {
+
+    static final int TABLE_SIZE = 16384;
+
+    private static final List<String> WARM_UP = List.of(
+            ".int table 2000",
+            ".int size " + Integer.toHexString(TABLE_SIZE),
+            ":program",
+            "    SEL 1",
+            "    LDN table",
+            "    LDR 1",
+            "    SEL 2",
+            "    LDN size",
+            "    LDR 2",
+            ":fill",
+            "    STR 1",
+            "    SEL 1",
+            "    INC",
+            "    INC",
+            "    INC",
+            "    INC",
+            "    SEL 2",
+            "    DEC",
+            "    JZ  done",
+            "    J   fill",
+            ":done",
+            "    HLT"
+    );
+
+    @Param({"1048576", "67108864"})
+    public int ram;
+
+    private Set<Map.Entry<String, String>> config;
+    private byte[] program;
+    private Path file;
+    private Snapshot snapshot;
+    private Machine warmed;
+
+    @Setup
+    public void setup() throws IOException {
+        config = Machine.parse(List.of(
+                "RAM: size=" + ram,
+                "CLOCK: name=Clock0 address=4088 range=8",
+                "PC: name=$PC address=4084 range=4",
+                "CPU: name=CPU0 address=4052 range=32"
+        ));
+        program = Assembler.assemble(WARM_UP);
+        Machine machine = boot();
+        file = Files.createTempFile("snapshot", ".snp");
+        machine.snapshot(file);
+        snapshot = Snapshot.open(file);
+        warmed = machine;
+        // Pages dense RAM once, rather than in the first fork measured.
+        warmed.fork();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Machine boot() {
+        Machine machine = new Machine(config);
+        machine.bootstrap(program);
+        machine.runFor(Long.MAX_VALUE);
+        return machine;
+    }
+
+    @Benchmark
+    public Machine restore() {
+        return snapshot.restore();
+    }
+
+    @Benchmark
+    public Machine fork() {
+        return warmed.fork();
+    }
+}
@@ -1,5 +1,9 @@
 module nz.bradley.neil.cpu {
-    requires nz.bradley.neil.cpu.api;
+    requires transitive nz.bradley.neil.cpu.api;
     requires nz.bradley.neil.cpu.timer;
     requires nz.bradley.neil.cpu.fileio;
+    requires java.management;
+    requires jdk.jfr;
+
+    exports nz.bradley.neil.cpu;
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.InstructionTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *     <b>Block Cache</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Holds straight-line runs of guest code, decoded once into
+ *     (instruction, operand, immediate) records, and indexed by the
+ *     address they start at.  A block ends after any jump, store, HLT
+ *     or RST, before any code outside plain RAM, or at
+ *     {@value #MAX_LENGTH} instructions.
+ * </p>
+ * <p>
+ *     <b>Invalidation</b>
+ *     <br>
+ *     The cache asks {@link Memory} to watch the RAM its blocks were
+ *     decoded from.  Writing to that RAM drops every block decoded from
+ *     the same {@value Memory#CODE_LINE_SIZE}-byte line, so
+ *     self-modifying code is decoded again before it next runs.  The
+ *     cache indexes its blocks by line, so a write only visits the
+ *     blocks on its line, however many are cached; data kept beside hot
+ *     code costs a few blocks being decoded again, not the whole cache.
+ * </p>
+ */
+final class BlockCache {
+
+    static final int MAX_LENGTH = 64;
+
+    /**
+     * A decoded run of instructions.
+     */
+    static final class Block {
+
+        final int start;
+        final Instruction[] instructions;
+        final int[] operands;
+        final int[] immediates;
+        // Address of each instruction, plus the address after the last.
+        final int[] addresses;
+        final int length;
+
+        // Entries counted towards compiling, and the compiled code, both
+        // managed by the Jit.
+        int entries;
+        CompiledBlock compiled;
+
+        private Block(int start, Instruction[] instructions, int[] operands, int[] immediates, int[] addresses, int length) {
+            this.start = start;
+            this.instructions = instructions;
+            this.operands = operands;
+            this.immediates = immediates;
+            this.addresses = addresses;
+            this.length = length;
+        }
+
+        int end() {
+            return addresses[length];
+        }
+    }
+
+    private final Memory memory;
+    // Open-addressed map of start address to block.
+    private int[] keys = new int[64];
+    private Block[] blocks = new Block[64];
+    private int size;
+    // Blocks overlapping each code line, by line number.
+    private final Map<Long, List<Block>> lines = new HashMap<>();
+
+    BlockCache(Memory memory) {
+        this.memory = memory;
+        memory.watchCode(this);
+    }
+
+    /**
+     * Gets the block starting at an address, decoding it if needed.
+     *
+     * @param address   The address of the first instruction.
+     * @return          The block, or null if the instruction there can't
+     *                  be decoded ahead of time.
+     */
+    Block get(int address) {
+        int mask = keys.length - 1;
+        for (int i = hash(address) & mask; blocks[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == address) {
+                return blocks[i];
+            }
+        }
+        Block block = decode(address);
+        if (block != null) {
+            put(block);
+            for (long line = firstLine(block), last = lastLine(block); line <= last; line++) {
+                lines.computeIfAbsent(line, l -> new ArrayList<>(1)).add(block);
+            }
+            memory.markCode(block.start, block.end());
+        }
+        return block;
+    }
+
+    /**
+     * Drops every block overlapping the given range of addresses.
+     *
+     * @param start The first address written.
+     * @param end   The address after the last one written.
+     */
+    void invalidate(long start, long end) {
+        for (long line = start >>> Memory.CODE_LINE_SHIFT, last = (end - 1) >>> Memory.CODE_LINE_SHIFT; line <= last; line++) {
+            List<Block> overlapping = lines.get(line);
+            if (overlapping == null) {
+                continue;
+            }
+            for (Block block: overlapping.toArray(new Block[0])) {
+                long from = Integer.toUnsignedLong(block.start);
+                long to = from + (block.end() - block.start);
+                if (to > start && from < end) {
+                    remove(block);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static int hash(int address) {
+        return address * 0x9E3779B9 >>> 7;
+    }
+
+    private void put(Block block) {
+        if (size * 2 >= keys.length) {
+            Block[] old = blocks;
+            keys = new int[keys.length * 2];
+            blocks = new Block[old.length * 2];
+            size = 0;
+            for (Block b: old) {
+                if (b != null) {
+                    put(b);
+                }
+            }
+        }
+        int mask = keys.length - 1;
+        int i = hash(block.start) & mask;
+        while (blocks[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = block.start;
+        blocks[i] = block;
+        size++;
+    }
+
+    // Drops a block from the table, shifting back the entries probed
+    // past it, and from the index of every line it covers.
+    private void remove(Block block) {
+        int mask = keys.length - 1;
+        int i = hash(block.start) & mask;
+        while (blocks[i] != block) {
+            i = (i + 1) & mask;
+        }
+        blocks[i] = null;
+        size--;
+        for (int j = (i + 1) & mask; blocks[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            // Entry j may move to the gap unless its home lies in (i, j].
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                blocks[i] = blocks[j];
+                blocks[j] = null;
+                i = j;
+            }
+        }
+        for (long line = firstLine(block), last = lastLine(block); line <= last; line++) {
+            List<Block> overlapping = lines.get(line);
+            overlapping.remove(block);
+            if (overlapping.isEmpty()) {
+                lines.remove(line);
+            }
+        }
+    }
+
+    private static long firstLine(Block block) {
+        return Integer.toUnsignedLong(block.start) >>> Memory.CODE_LINE_SHIFT;
+    }
+
+    private static long lastLine(Block block) {
+        return (Integer.toUnsignedLong(block.start) + (block.end() - block.start) - 1) >>> Memory.CODE_LINE_SHIFT;
+    }
+
+    private Block decode(int start) {
+        Instruction[] instructions = new Instruction[MAX_LENGTH];
+        int[] operands = new int[MAX_LENGTH];
+        int[] immediates = new int[MAX_LENGTH];
+        int[] addresses = new int[MAX_LENGTH + 1];
+        int length = 0;
+        int address = start;
+        while (length < MAX_LENGTH && memory.isRam(address)) {
+            byte value = memory.readByte(address);
+            Instruction instruction = InstructionTable.instruction(value);
+            int size = InstructionTable.length(value);
+            if (size > 1 && !(memory.isRam(address + 1) && memory.isRam(address + size - 1))) {
+                break;
+            }
+            instructions[length] = instruction;
+            operands[length] = InstructionTable.operand(value);
+            immediates[length] = size > 1 ? memory.readInteger(address + 1) : 0;
+            addresses[length] = address;
+            length++;
+            address += size;
+            if (endsBlock(instruction)) {
+                break;
+            }
+        }
+        if (length == 0) {
+            return null;
+        }
+        addresses[length] = address;
+        return new Block(
+            start,
+            Arrays.copyOf(instructions, length),
+            Arrays.copyOf(operands, length),
+            Arrays.copyOf(immediates, length),
+            Arrays.copyOf(addresses, length + 1),
+            length
+        );
+    }
+
+    private static boolean endsBlock(Instruction instruction) {
+        return switch (instruction) {
+            case STR, JR, STN, J, JZ, JN, JC, JV, RST, HLT -> true;
+            default -> false;
+        };
+    }
+}
@@ -1,101 +1,193 @@
 package nz.bradley.neil.cpu;
 
 import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.InstructionTable;
 import nz.bradley.neil.cpu.api.MMIO;
 import nz.bradley.neil.cpu.impl.MMIOBase;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Set;
 
+/**
+ * <p>
+ *     <b>CPU</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Executes one instruction per clock, with its registers mapped into
+ *     memory like any other {@link MMIO} unit.
+ * </p>
+ * <p>
+ *     <b>Engines</b>
+ *     <br>
+ *     By default, each instruction is fetched and decoded as it is
+ *     executed.  With <code>engine=blocks</code>, straight-line runs of
+ *     code are decoded once into a {@link BlockCache}, and a whole run is
+ *     executed per call, still counting one cycle per instruction.  With
+ *     <code>exact=true</code> (the default) a run stops early whenever a
+ *     peripheral is due or an interrupt could be taken, so the guest sees
+ *     exactly what the interpreter would show it.  With
+ *     <code>exact=false</code>, peripherals and interrupts are only seen
+ *     between runs.  Cached code can't see other cores' writes, so
+ *     these engines need a {@link Memory} of their own.
+ * </p>
+ * <p>
+ *     <b>Compiling</b>
+ *     <br>
+ *     With <code>engine=jit</code>, blocks are also counted as they are
+ *     entered, and once a block has been entered <code>threshold</code>
+ *     times (1000 by default), it is compiled to JVM bytecode by the
+ *     {@link Jit}.  Compiled blocks hand back to the interpreter before
+ *     any MMIO access, and are only entered when no peripheral or
+ *     interrupt needs attention before they finish.
+ * </p>
+ * <p>
+ *     <b>Counting</b>
+ *     <br>
+ *     With <code>counters=true</code>, the core counts what it executes
+ *     in its {@link Counters}, on every engine.
+ * </p>
+ */
 public class CPU extends MMIOBase {
 
     private static final int REGISTER_COUNT = 16;
     private static final int RETURN = REGISTER_COUNT - 1;
 
     private final Clock clock;
+    private final InterruptController interrupts;
     private final Memory memory;
     private final Set<MMIO> mmios;
     private final PC pc;
 
-    private final List<Register> registers = new ArrayList<>(16);
-    private Register target;
+    private final RegisterFile registers = new RegisterFile(REGISTER_COUNT);
+    private int target;
+
+    private BlockCache blocks;
+    private boolean exact = true;
+    private Jit jit;
+    private int threshold = 1000;
+    private Counters counters;
 
     public CPU(Clock clock, Memory memory, PC pc, Set<MMIO>mmios) {
+        this(clock, new InterruptController(), memory, pc, mmios);
+    }
+
+    public CPU(Clock clock, InterruptController interrupts, Memory memory, PC pc, Set<MMIO>mmios) {
         this.clock = clock;
+        this.interrupts = interrupts;
         clock.registerCPU(this);
         this.memory = memory;
+        memory.addCore();
         this.pc = pc;
 
         // Add parts to MMIOs.
         this.mmios = mmios;
         this.mmios.add(this);
-
-        // Setup registers.
-        for (int i = 0; i < REGISTER_COUNT; i++) {
-            registers.add(new Register());
-        }
-        this.target = registers.get(0);
     }
 
     @Override
     public MMIO configure(String config) {
         super.configure(config);
+        String[] configs = config.split("[\\s=]");
+        String engine = "interpreter";
+        for (int i = 0; i + 1 < configs.length; i += 2) {
+            switch (configs[i]) {
+                case "engine" -> engine = configs[i + 1];
+                case "exact" -> exact = Boolean.parseBoolean(configs[i + 1]);
+                case "threshold" -> threshold = Integer.parseInt(configs[i + 1]);
+                case "counters" -> counters = Boolean.parseBoolean(configs[i + 1]) ? new Counters() : null;
+            }
+        }
+        if (!"interpreter".equals(engine) && memory.isShared()) {
+            throw new IllegalStateException("engine=" + engine + " needs a memory of its own: " + getName());
+        }
+        if ("blocks".equals(engine) || "jit".equals(engine)) {
+            blocks = new BlockCache(memory);
+        }
+        if ("jit".equals(engine)) {
+            jit = new Jit(threshold);
+        }
         mmios.forEach(memory::registerMMIO);
-        registers.forEach(Register::reset);
+        mmios.forEach(mmio -> {
+            // The program counter is clocked directly, below.
+            if (mmio != this && mmio != pc) {
+                clock.registerMMIO(mmio);
+            }
+        });
+        mmios.forEach(interrupts::registerMMIO);
+        registers.reset();
         return this;
     }
 
     @Override
     public byte readByte(int offset) {
         offset %= REGISTER_COUNT;
-        return (byte)registers.get(offset).get();
+        return (byte)registers.get(offset);
     }
 
     @Override
     public int readInteger(int offset) {
         offset %= REGISTER_COUNT;
-        return registers.get(offset).get();
+        return registers.get(offset);
     }
 
     @Override
     public void writeByte(int offset, byte data) {
         offset %= REGISTER_COUNT;
-        registers.get(offset).set(data);
+        registers.set(offset, data);
     }
 
     @Override
     public void writeInteger(int offset, int data) {
         offset %= REGISTER_COUNT;
-        registers.get(offset).set(data);
+        registers.set(offset, data);
     }
 
     @Override
     public void sendClock() {
-        // 1. Send clock through to all peripherals. Note that the program
-        //    counter gets incremented as part of this.
-        mmios.forEach(mmio -> {
-            if (mmio != this) {
-                mmio.sendClock();
-            }
-        });
+        // 1. Increment the program counter, and send clock through to
+        //    any peripherals that are due this cycle.
+        pc.sendClock();
+        clock.clockPeripherals();
 
-        // 2. Check for interrupts. Note that the first interrupt triggered is
-        //    the one handled.
-        //    TODO: In the future we need to make it so interrupts can't
-        //          interrupt each other.
-        for (MMIO mmio: mmios) {
-            if (mmio.hasInterrupt()) {
-                // We incremented $PC, but haven't executed it yet, so save it
-                // as the next target (which the IR will have to call: `JR $RETURN`).
-                registers.get(RETURN).set(pc.readInteger(0));
-                pc.writeInteger(0, mmio.getInterruptAddress());
-                return;
+        // 2. Check for interrupts.  The controller decides which, if any,
+        //    may be serviced now.
+        if (interrupts.isReady()) {
+            // We incremented $PC, but haven't executed it yet, so save it
+            // as the next target (which the IR will have to call: `JR $RETURN`).
+            registers.set(RETURN, pc.readInteger(0));
+            pc.writeInteger(0, interrupts.acknowledge());
+            if (counters != null) {
+                counters.interrupt(interrupts.serviced());
             }
+            return;
         }
 
-        // 2. Execute instruction.
-        processInstruction(memory.readByte(pc.readInteger(0)));
+        // 3. Execute instruction(s).
+        if (blocks != null) {
+            runBlock(pc.readInteger(0));
+        } else {
+            processInstruction(memory.readByte(pc.readInteger(0)));
+        }
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        registers.saveState(out);
+        out.writeInt(target);
+    }
+
+    /**
+     * Cached and compiled code isn't kept, so is decoded again as it is
+     * run.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        registers.restoreState(in);
+        target = in.readInt();
     }
 
     @Override
@@ -107,52 +199,179 @@ public class CPU extends MMIOBase {
     }
 
     private void processInstruction(byte instruction) {
-        Instruction instr = Instruction.ofValue(instruction);
-        int param = instruction & 0x0F;
-        switch (instr) {
-            case SEL -> target = registers.get(param);
-            case LDR -> target.set(memory.readInteger(registers.get(param).get()));
-            case STR -> memory.writeInteger(registers.get(param).get(), target.get());
-            case JR -> pc.writeInteger(0, registers.get(param).get());
-            case CP -> registers.get(param).set(target.get());
-            case AND -> target.and(registers.get(param).get());
-            case OR -> target.or(registers.get(param).get());
-            case XOR -> target.xor(registers.get(param).get());
-            case ADD -> target.addTo(registers.get(param).get());
-            case SUB -> target.subtract(registers.get(param).get());
-            case MUL -> target.multiplyBy(registers.get(param).get());
-            case DIV -> target.divideBy(registers.get(param).get());
-            case SHL -> target.shiftLeft(param);
-            case SHR -> target.shiftRight(param);
-            case SSR -> target.signedShiftRight(param);
-            case LDN -> {
-                target.set(memory.readInteger(pc.readInteger(0) + 1));
-                pc.writeInteger(0, pc.readInteger(0) + 5);
+        int location = pc.readInteger(0);
+        int length = InstructionTable.length(instruction);
+        int immediate = length > 1 ? memory.readInteger(location + 1) : 0;
+        int next = execute(
+                InstructionTable.instruction(instruction),
+                InstructionTable.operand(instruction),
+                immediate,
+                location + length
+        );
+        // $PC already points at the following byte, and may have been
+        // written to by a store, so only jumps and immediates move it.
+        if (next != location + 1) {
+            pc.writeInteger(0, next);
+        }
+    }
+
+    private void runBlock(int address) {
+        BlockCache.Block block = blocks.get(address);
+        if (block == null) {
+            // Not in plain RAM, so fetch it the slow way.
+            processInstruction(memory.readByte(address));
+            return;
+        }
+        int from = 0;
+        if (jit != null) {
+            CompiledBlock compiled = jit.enter(block);
+            if (compiled != null && clock.getCycle() + block.length <= clock.limit()
+                    && (!exact || clock.nextDeadline() >= clock.getCycle() + block.length
+                    && !interrupts.mayInterrupt())) {
+                long result = compiled.run(registers, memory, clock, target);
+                target = Jit.target(result);
+                from = Jit.executed(result);
+                if (counters != null) {
+                    count(block, from, Jit.next(result));
+                }
+                if (from == block.length) {
+                    int location = block.addresses[from - 1];
+                    clock.advance(from - 1);
+                    pc.moveTo(location);
+                    if (Jit.next(result) != location + 1) {
+                        pc.writeInteger(0, Jit.next(result));
+                    }
+                    return;
+                }
+                // Deoptimised: interpret the rest, from the cycle it
+                // would have started on.
+                clock.advance(from);
+            }
+        }
+        for (int i = from; ; i++) {
+            int location = block.addresses[i];
+            if (i > 0) {
+                pc.moveTo(location);
+            }
+            int next = execute(block.instructions[i], block.operands[i], block.immediates[i], block.addresses[i + 1]);
+            if (next != block.addresses[i + 1] || i + 1 == block.length || !clock.isRunning()
+                    || clock.getCycle() + 1 >= clock.limit()
+                    || exact && (clock.nextDeadline() <= clock.getCycle() + 1 || interrupts.mayInterrupt())) {
+                if (next != location + 1) {
+                    pc.writeInteger(0, next);
+                }
+                return;
+            }
+            // The next instruction would have been executed on the next
+            // cycle.
+            clock.advance();
+        }
+    }
+
+    // Counts the first instructions of a block, run by compiled code.
+    private void count(BlockCache.Block block, int executed, int next) {
+        for (int i = 0; i < executed; i++) {
+            counters.count(block.instructions[i]);
+        }
+        if (executed == block.length) {
+            switch (block.instructions[executed - 1]) {
+                case JZ, JN, JC, JV -> counters.branch(next != block.end());
+            }
+        }
+    }
+
+    /**
+     * @return  What the core has executed, or null unless configured
+     *          with <code>counters=true</code>.
+     */
+    public Counters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Reads a register from another thread, as {@link RegisterFile#sample(int)}.
+     */
+    int sampleRegister(int r) {
+        return registers.sample(r % REGISTER_COUNT);
+    }
+
+    /**
+     * Adds anything still being batched to the core's {@link Counters}.
+     * Only to be called from the clock's thread, or once it has stopped.
+     */
+    void flushCounters() {
+        if (counters != null) {
+            counters.flush();
+        }
+    }
+
+    /**
+     * Executes a decoded instruction.
+     *
+     * @param instruction   The instruction.
+     * @param param         Its 4-bit operand.
+     * @param immediate     The 4-byte value following it, if it has one.
+     * @param next          The address following it.
+     * @return              The address to execute next.
+     */
+    private int execute(Instruction instruction, int param, int immediate, int next) {
+        if (counters != null) {
+            counters.count(instruction);
+        }
+        switch (instruction) {
+            case SEL -> target = param;
+            case LDR -> registers.set(target, memory.readInteger(registers.get(param)));
+            case STR -> memory.writeInteger(registers.get(param), registers.get(target));
+            case JR -> {
+                return registers.get(param);
+            }
+            case CP -> registers.set(param, registers.get(target));
+            case AND -> registers.and(target, registers.get(param));
+            case OR -> registers.or(target, registers.get(param));
+            case XOR -> registers.xor(target, registers.get(param));
+            case ADD -> registers.addTo(target, registers.get(param));
+            case SUB -> registers.subtract(target, registers.get(param));
+            case MUL -> registers.multiplyBy(target, registers.get(param));
+            case DIV -> registers.divideBy(target, registers.get(param));
+            case SHL -> registers.shiftLeft(target, param);
+            case SHR -> registers.shiftRight(target, param);
+            case SSR -> registers.signedShiftRight(target, param);
+            case LDN -> registers.set(target, immediate);
+            case STN -> memory.writeInteger(immediate, registers.get(target));
+            case J -> {
+                return immediate;
+            }
+            case JZ -> {
+                return branch(registers.isZero(target), immediate, next);
+            }
+            case JN -> {
+                return branch(registers.isNegative(target), immediate, next);
+            }
+            case JC -> {
+                return branch(registers.hadCarry(target), immediate, next);
+            }
+            case JV -> {
+                return branch(registers.hadOverflow(target), immediate, next);
             }
-            case STN -> {
-                memory.writeInteger(memory.readInteger(pc.readInteger(0) + 1), target.get());
-                pc.writeInteger(0, pc.readInteger(0) + 5);
+            case COM -> registers.complement(target);
+            case NEG -> registers.negate(target);
+            case INC -> registers.addTo(target, 1L);
+            case DEC -> registers.subtract(target, 1L);
+            case CLR -> registers.set(target, 0L);
+            case UNO -> registers.set(target, 1L);
+            case RST, HLT -> {
+                clock.stop();   // TODO: RST.
+                flushCounters();
             }
-            case J -> jump(true);
-            case JZ -> jump(target.isZero());
-            case JN -> jump(target.isNegative());
-            case JC -> jump(target.hadCarry());
-            case JV -> jump(target.hadOverflow());
-            case COM -> target.complement();
-            case NEG -> target.negate();
-            case INC -> target.addTo(1L);
-            case DEC -> target.subtract(1L);
-            case CLR -> target.set(0L);
-            case UNO -> target.set(1L);
-            case RST -> clock.stop();   // TODO.
-            case HLT -> clock.stop();
             default -> {}
         }
+        return next;
     }
 
-    private void jump(boolean condition) {
-        if (condition) {
-            pc.writeInteger(0, memory.readInteger(pc.readInteger(0) + 1));
+    private int branch(boolean taken, int immediate, int next) {
+        if (counters != null) {
+            counters.branch(taken);
         }
+        return taken ? immediate : next;
     }
 }
@@ -1,35 +1,435 @@
 package nz.bradley.neil.cpu;
 
+import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.api.Scheduler;
 import nz.bradley.neil.cpu.impl.MMIOBase;
 
-public class Clock extends MMIOBase {
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.locks.LockSupport;
 
-    private boolean running;
+/**
+ * <p>
+ *     <b>Clock</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Counts cycles, and delivers the clock to the CPU and to every
+ *     registered {@link MMIO} unit.
+ * </p>
+ * <p>
+ *     <b>Scheduling</b>
+ *     <br>
+ *     Units that accept the clock as their {@link Scheduler} are kept in
+ *     a queue ordered by the cycle they next need clocking on, so a
+ *     cycle where nothing is due costs a single comparison however many
+ *     units are registered.  Units that decline are clocked every cycle.
+ * </p>
+ * <p>
+ *     <b>Running</b>
+ *     <br>
+ *     {@link #start()} runs the clock on its own thread until it is
+ *     stopped, by the guest or by {@link #stop()} from any thread.  With
+ *     <code>freq=</code> set, the thread runs a slice of cycles at a time
+ *     and then parks until the time the last one was due, so a paced run
+ *     stays close to the configured frequency without sleeping every
+ *     cycle.  A run that falls behind catches up by running slices back
+ *     to back, for up to {@value #MAX_LAG_MS}ms.  Without a frequency,
+ *     the thread runs flat out.  Either way,
+ *     {@link #getAchievedHz()} reports the rate actually reached.
+ * </p>
+ * <p>
+ *     <b>Lock-step</b>
+ *     <br>
+ *     Clocks configured with <code>sync=lockstep</code> and given the
+ *     same {@link Phaser} wait for each other every
+ *     <code>quantum</code> cycles (1 by default), so their cores never
+ *     drift apart by more than a quantum.  A clock that stops leaves the
+ *     group, rather than holding up the others.  Clocks without it run
+ *     freely.
+ * </p>
+ * <p>
+ *     <b>Stepping</b>
+ *     <br>
+ *     {@link #startStepping()} starts the clock without a thread, so it
+ *     only moves on when {@link #step()} is called.
+ * </p>
+ */
+public class Clock extends MMIOBase implements Scheduler {
+
+    static final int MAX_LAG_MS = 100;
+    private static final int SLICES_PER_SECOND = 1000;
+    // Cycles between updates of the published count, when unpaced.
+    private static final long PUBLISH_MASK = (1 << 16) - 1;
+
+    private volatile boolean running;
     private CPU cpu;
     private long cycles;
+    private long frequency;
+    private boolean lockStep;
+    private int quantum = 1;
+    private Phaser phaser;
+    private int untilSync;
+
+    private Thread thread;
+    private volatile long published;
+    private long startCycle, startTime;
+    private volatile long stopTime;
+
+    private final List<MMIO> everyCycle = new ArrayList<>();
+    private MMIO[] queue = new MMIO[8];
+    private long[] deadlines = new long[8];
+    private int queued;
+    // Cycle a stepped run stops at, so blocks of code stop short of it.
+    private long limit = NEVER;
+
+    @Override
+    public MMIO configure(String config) {
+        super.configure(config);
+        String[] configs = config.split("[\\s=]");
+        for (int i = 0; i + 1 < configs.length; i += 2) {
+            switch (configs[i]) {
+                case "freq" -> frequency = Long.parseLong(configs[i + 1]);
+                case "sync" -> lockStep = "lockstep".equals(configs[i + 1]);
+                case "quantum" -> quantum = Integer.parseInt(configs[i + 1]);
+            }
+        }
+        return this;
+    }
 
     public void registerCPU(CPU cpu) {
         this.cpu = cpu;
     }
 
-    public void start() {
-        // TODO: Clock thread.
+    /**
+     * Registers a unit to be clocked, either on the cycles it schedules
+     * or, if it declines a scheduler, on every cycle.
+     *
+     * @param mmio  The unit to clock.
+     */
+    public void registerMMIO(MMIO mmio) {
+        if (!mmio.attach(this)) {
+            everyCycle.add(mmio);
+        }
+    }
+
+    public boolean isLockStep() {
+        return lockStep;
+    }
+
+    /**
+     * Sets the group of clocks to keep in lock-step with, if configured
+     * with <code>sync=lockstep</code>.  The clock joins the group when
+     * started, so the caller should hold a party of its own until every
+     * clock in the group has started.
+     *
+     * @param phaser    The group's phaser.
+     */
+    public void synchronise(Phaser phaser) {
+        if (lockStep) {
+            this.phaser = phaser;
+        }
+    }
+
+    /**
+     * Starts running on the clock's own thread.  Returns at once.
+     */
+    public synchronized void start() {
+        if (thread != null && thread.isAlive()) {
+            throw new IllegalStateException("Clock already running: " + getName());
+        }
         running = true;
+        if (phaser != null) {
+            phaser.register();
+            untilSync = quantum;
+        }
+        thread = new Thread(this::run, Objects.requireNonNullElse(getName(), "Clock"));
+        startCycle = cycles;
+        published = cycles;
+        startTime = System.nanoTime();
+        stopTime = 0L;
+        thread.start();
     }
 
+    /**
+     * Starts the clock without a thread, for {@link #step()}.
+     */
+    public void startStepping() {
+        running = true;
+        startCycle = cycles;
+        published = cycles;
+        startTime = System.nanoTime();
+        stopTime = 0L;
+    }
+
+    /**
+     * Runs one cycle on the calling thread.
+     *
+     * @return False once the clock has been stopped.
+     */
     public boolean step() {
+        if (thread != null && thread.isAlive()) {
+            throw new IllegalStateException("Clock is running on its own thread: " + getName());
+        }
         if (running) {
             cpu.sendClock();
             cycles++;
+            published = cycles;
         }
         return running;
     }
 
+    /**
+     * Asks the clock to stop after the current cycle.  May be called
+     * from any thread, and returns at once.
+     */
     public void stop() {
-        // TODO: Clock thread.
         running = false;
+        if (stopTime == 0L) {
+            stopTime = System.nanoTime();
+        }
     }
 
+    /**
+     * Waits for the clock's thread, if any, to stop.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * Gets the average rate cycles have run at since the clock was last
+     * started, until now, or until it stopped.
+     *
+     * @return Cycles per second.
+     */
+    public double getAchievedHz() {
+        long end = stopTime == 0L ? System.nanoTime() : stopTime;
+        long elapsed = end - startTime;
+        return elapsed <= 0 ? 0.0 : (published - startCycle) * 1e9 / elapsed;
+    }
+
+    private void run() {
+        try {
+            if (frequency > 0) {
+                runPaced();
+            } else {
+                runUnpaced();
+            }
+        } finally {
+            published = cycles;
+            stop();
+            if (phaser != null) {
+                phaser.arriveAndDeregister();
+            }
+        }
+    }
+
+    // Runs one cycle on the clock thread.
+    private void tick() {
+        cpu.sendClock();
+        cycles++;
+        if (phaser != null && --untilSync == 0) {
+            untilSync = quantum;
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    private void runUnpaced() {
+        while (running) {
+            tick();
+            if ((cycles & PUBLISH_MASK) == 0) {
+                published = cycles;
+            }
+        }
+    }
+
+    private void runPaced() {
+        long slice = Math.max(1L, frequency / SLICES_PER_SECOND);
+        double nanosPerCycle = 1e9 / frequency;
+        long maxLag = MAX_LAG_MS * 1_000_000L;
+        long origin = System.nanoTime();
+        long base = cycles;
+        while (running) {
+            for (long end = cycles + slice; cycles < end && running; ) {
+                tick();
+            }
+            published = cycles;
+            long now = System.nanoTime();
+            if (cycles < base) {
+                // Reset while running.
+                origin = now;
+                base = cycles;
+            }
+            long wait = origin + (long)((cycles - base) * nanosPerCycle) - now;
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            } else if (-wait > maxLag) {
+                // Too far behind: give up on the missed time.
+                origin = now;
+                base = cycles;
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Counts a cycle used by an instruction executed within a single
+     * call to {@link CPU#sendClock()}.
+     */
+    void advance() {
+        cycles++;
+    }
+
+    /**
+     * Counts several such cycles at once.
+     *
+     * @param count The number of cycles.
+     */
+    void advance(int count) {
+        cycles += count;
+    }
+
+    /**
+     * Gets the earliest cycle on which a unit needs clocking.
+     *
+     * @return The cycle, or {@link #NEVER} if nothing is waiting.
+     */
+    long nextDeadline() {
+        if (!everyCycle.isEmpty()) {
+            return cycles;
+        }
+        return queued > 0 ? deadlines[0] : NEVER;
+    }
+
+    /**
+     * Sets the cycle a run of {@link #step()}s stops at, so no step
+     * runs a block of code past it.
+     *
+     * @param cycle The cycle, or {@link #NEVER} for no limit.
+     */
+    void limit(long cycle) {
+        limit = cycle;
+    }
+
+    /**
+     * @return The cycle a run of steps stops at, or {@link #NEVER}.
+     */
+    long limit() {
+        return limit;
+    }
+
+    /**
+     * Sends the clock to every unit due on the current cycle.
+     */
+    void clockPeripherals() {
+        for (int i = 0, n = everyCycle.size(); i < n; i++) {
+            everyCycle.get(i).sendClock();
+        }
+        while (queued > 0 && deadlines[0] <= cycles) {
+            // Dequeue first: the unit will usually reschedule itself.
+            MMIO mmio = queue[0];
+            remove(0);
+            mmio.sendClock();
+        }
+    }
+
+    @Override
+    public long getCycle() {
+        return cycles;
+    }
+
+    @Override
+    public void schedule(MMIO mmio, long cycle) {
+        for (int i = 0; i < queued; i++) {
+            if (queue[i] == mmio) {
+                remove(i);
+                break;
+            }
+        }
+        if (cycle != NEVER) {
+            if (queued == queue.length) {
+                queue = Arrays.copyOf(queue, queued * 2);
+                deadlines = Arrays.copyOf(deadlines, queued * 2);
+            }
+            queue[queued] = mmio;
+            deadlines[queued] = cycle;
+            siftUp(queued++);
+        }
+    }
+
+    // Binary min-heap on deadlines.
+    private void remove(int i) {
+        queued--;
+        queue[i] = queue[queued];
+        deadlines[i] = deadlines[queued];
+        queue[queued] = null;
+        if (i < queued) {
+            siftDown(i);
+            siftUp(i);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (deadlines[parent] <= deadlines[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= queued) {
+                return;
+            }
+            if (child + 1 < queued && deadlines[child + 1] < deadlines[child]) {
+                child++;
+            }
+            if (deadlines[i] <= deadlines[child]) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        MMIO m = queue[a];
+        queue[a] = queue[b];
+        queue[b] = m;
+        long d = deadlines[a];
+        deadlines[a] = deadlines[b];
+        deadlines[b] = d;
+    }
+
+    @Override
+    public boolean attach(Scheduler scheduler) {
+        // Never needs clocking: the count is read straight from cycles.
+        return true;
+    }
 
     @Override
     public byte readByte(int offset) {
@@ -60,9 +460,39 @@ public class Clock extends MMIOBase {
         // Does nothing, this manages itself.
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeLong(cycles);
+        out.writeBoolean(hasStopped());
+    }
+
+    /**
+     * Restored before the units it clocks, so they schedule themselves
+     * from the restored count.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        cycles = in.readLong();
+        startCycle = cycles;
+        published = cycles;
+        if (in.readBoolean()) {
+            stop();
+        }
+    }
+
+    /**
+     * @return True if the clock was running, and has been stopped.
+     */
+    boolean hasStopped() {
+        return !running && stopTime != 0L;
+    }
+
     @Override
     public void sendReset() {
-        // TODO: Clock thread.
+        // Only ever called on the clock's own thread, which rebases its
+        // pacing when it sees the count go backwards.
         cycles = 0L;
+        startCycle = 0L;
+        published = 0L;
     }
 }
@@ -0,0 +1,20 @@
+package nz.bradley.neil.cpu;
+
+/**
+ * A {@link BlockCache.Block} compiled to JVM bytecode by {@link Jit}.
+ */
+interface CompiledBlock {
+
+    /**
+     * Runs the block from its first instruction, stopping early before
+     * any load or store that doesn't hit plain RAM.
+     *
+     * @param registers The CPU's registers.
+     * @param memory    The CPU's memory.
+     * @param clock     The clock, stopped by HLT and RST.
+     * @param target    <code>$TARGET</code> on entry.
+     * @return          The outcome, read with {@link Jit#executed(long)},
+     *                  {@link Jit#next(long)} and {@link Jit#target(long)}.
+     */
+    long run(RegisterFile registers, Memory memory, Clock clock, int target);
+}
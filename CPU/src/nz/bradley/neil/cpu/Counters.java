@@ -0,0 +1,139 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.MMIO;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     <b>Counters</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Counts what a single {@link CPU} core executes: instructions by
+ *     type, conditional jumps taken and not taken, and interrupts
+ *     serviced from each unit.  A core only counts when configured with
+ *     <code>counters=true</code>; otherwise it has no counters, and pays
+ *     for a single null check per instruction.
+ * </p>
+ * <p>
+ *     <b>Batches</b>
+ *     <br>
+ *     Instructions and jumps are counted in plain fields, by the core's
+ *     own thread only, and added to the shared totals every
+ *     {@value #BATCH} instructions, and whenever the core stops.  The
+ *     getters may be called from any thread, but may miss the last
+ *     batch of a core that is still running.
+ * </p>
+ */
+public final class Counters {
+
+    static final int BATCH = 4096;
+
+    private static final Instruction[] INSTRUCTIONS = Instruction.values();
+
+    // Counted by the core's thread.
+    private final long[] pending = new long[INSTRUCTIONS.length];
+    private long pendingTaken, pendingNotTaken;
+    private int unflushed;
+
+    private final AtomicLongArray instructions = new AtomicLongArray(INSTRUCTIONS.length);
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong notTaken = new AtomicLong();
+    private final Map<String, LongAdder> interrupts = new ConcurrentHashMap<>();
+
+    void count(Instruction instruction) {
+        pending[instruction.ordinal()]++;
+        if (++unflushed == BATCH) {
+            flush();
+        }
+    }
+
+    void branch(boolean wasTaken) {
+        if (wasTaken) {
+            pendingTaken++;
+        } else {
+            pendingNotTaken++;
+        }
+    }
+
+    void interrupt(MMIO unit) {
+        // Rare enough to count straight into the totals.
+        interrupts.computeIfAbsent(unit.getName(), name -> new LongAdder()).increment();
+    }
+
+    /**
+     * Adds everything counted so far to the totals.  Only to be called
+     * by the core's own thread, or once it has stopped.
+     */
+    void flush() {
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] != 0) {
+                instructions.getAndAdd(i, pending[i]);
+                pending[i] = 0;
+            }
+        }
+        taken.getAndAdd(pendingTaken);
+        notTaken.getAndAdd(pendingNotTaken);
+        pendingTaken = 0;
+        pendingNotTaken = 0;
+        unflushed = 0;
+    }
+
+    /**
+     * @return Instructions executed.
+     */
+    public long getInstructions() {
+        long total = 0;
+        for (int i = 0; i < instructions.length(); i++) {
+            total += instructions.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return Instructions executed, by type.  Types never executed are
+     *         left out.
+     */
+    public Map<Instruction, Long> getInstructionCounts() {
+        Map<Instruction, Long> counts = new EnumMap<>(Instruction.class);
+        for (int i = 0; i < instructions.length(); i++) {
+            long count = instructions.get(i);
+            if (count != 0) {
+                counts.put(INSTRUCTIONS[i], count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return Conditional jumps that jumped.
+     */
+    public long getBranchesTaken() {
+        return taken.get();
+    }
+
+    /**
+     * @return Conditional jumps that fell through.
+     */
+    public long getBranchesNotTaken() {
+        return notTaken.get();
+    }
+
+    /**
+     * @return Interrupts serviced, by the name of the unit raising them.
+     */
+    public Map<String, Long> getInterrupts() {
+        Map<String, Long> counts = new TreeMap<>();
+        interrupts.forEach((name, count) -> counts.put(name, count.sum()));
+        return counts;
+    }
+}
@@ -0,0 +1,61 @@
+package nz.bradley.neil.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * RAM held in a single <code>byte[]</code>, allocated up front.  This
+ * is the fastest backend, and the default for small configurations.
+ */
+final class DenseRAM extends RAM {
+
+    private static final VarHandle INTEGER = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte[] memory;
+
+    DenseRAM(long size) {
+        super(size);
+        memory = new byte[Math.toIntExact(size)];
+    }
+
+    @Override
+    byte readByte(int address) {
+        return memory[address];
+    }
+
+    @Override
+    int readInteger(int address) {
+        if (address >= 0 && address <= memory.length - 4) {
+            return (int)INTEGER.get(memory, address);
+        } else {
+            return readIntegerBytewise(address);
+        }
+    }
+
+    @Override
+    void writeByte(int address, byte b) {
+        memory[address] = b;
+    }
+
+    @Override
+    void writeInteger(int address, int i) {
+        if (address >= 0 && address <= memory.length - 4) {
+            INTEGER.set(memory, address, i);
+        } else {
+            writeIntegerBytewise(address, i);
+        }
+    }
+
+    @Override
+    ByteBuffer readPage(int page) {
+        int start = page << PagedRAM.PAGE_SHIFT;
+        return ByteBuffer.wrap(memory, start, Math.min(PagedRAM.PAGE_SIZE, memory.length - start)).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    void load(int address, byte[] data) {
+        System.arraycopy(data, 0, memory, address, data.length);
+    }
+}
@@ -0,0 +1,124 @@
+package nz.bradley.neil.cpu;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ *     <b>Farm</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Runs batches of independent {@link Machine}s in parallel, each to
+ *     HLT or to a cycle budget, and collects what each one did.
+ * </p>
+ * <p>
+ *     <b>Threads</b>
+ *     <br>
+ *     Each machine is built, loaded, run and closed by a single task on
+ *     a {@link ForkJoinPool}, stepping its cores on the worker thread
+ *     rather than starting clock threads.  Machines share nothing, so
+ *     throughput grows with the pool's parallelism, up to the number of
+ *     host cores.
+ * </p>
+ */
+public final class Farm {
+
+    /**
+     * A machine to run.
+     *
+     * @param name      Identifies the job in its {@link Result}.
+     * @param config    Config keys and values, as read by
+     *                  {@link Machine#parse(Iterable)}.
+     * @param program   The program to load at address <code>0</code>.
+     */
+    public record Job(String name, Collection<Map.Entry<String, String>> config, byte[] program) {
+    }
+
+    /**
+     * What a machine did.
+     *
+     * @param name      The job's name.
+     * @param halted    True if every core stopped within the budget.
+     * @param cycles    Cycles run by the first core.
+     * @param output    Everything written to the machine's file writers.
+     * @param failure   What the machine threw, or null.
+     */
+    public record Result(String name, boolean halted, long cycles, String output, Throwable failure) {
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Runs machines on the common pool.
+     */
+    public Farm() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool  The pool to run machines on.
+     */
+    public Farm(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs every job, and waits for them all.
+     *
+     * @param jobs      The machines to run.
+     * @param budget    The most cycles to run each machine for.
+     * @return          A result for each job, in the same order.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public List<Result> run(List<Job> jobs, long budget) throws InterruptedException {
+        List<Callable<Result>> tasks = new ArrayList<>(jobs.size());
+        for (Job job: jobs) {
+            tasks.add(() -> run(job, budget));
+        }
+        List<Result> results = new ArrayList<>(jobs.size());
+        for (Future<Result> future: pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // run(Job, long) catches everything itself.
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs a single job on the calling thread.
+     *
+     * @param job       The machine to run.
+     * @param budget    The most cycles to run it for.
+     * @return          What it did, including anything it threw.
+     */
+    public static Result run(Job job, long budget) {
+        Machine machine = null;
+        try {
+            machine = new Machine(job.config());
+            machine.bootstrap(job.program());
+            boolean halted = machine.runFor(budget);
+            return new Result(job.name(), halted, machine.getCycles(), machine.getOutput(), null);
+        } catch (Throwable e) {
+            // Errors too, such as a guest overflowing compiled code's
+            // stack, belong to the job rather than the whole batch.
+            return machine == null
+                    ? new Result(job.name(), false, 0L, "", e)
+                    : new Result(job.name(), false, machine.getCycles(), machine.getOutput(), e);
+        } finally {
+            if (machine != null) {
+                machine.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package nz.bradley.neil.cpu;
+
+import jdk.jfr.*;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * <p>
+ *     <b>Instrumentation</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Publishes the {@link Counters} of a {@link Machine}'s cores, and
+ *     the MMIO counts of its {@link Memory}, for monitoring.  A machine
+ *     configured with a <code>MONITOR</code> line publishes one of these
+ *     as it is built.
+ * </p>
+ * <p>
+ *     <b>JMX</b>
+ *     <br>
+ *     {@link #open()} registers an MXBean named
+ *     <code>nz.bradley.neil.cpu:type=Machine,name=&lt;name&gt;</code>
+ *     with the platform MBean server, so names must be unique within a
+ *     JVM.
+ * </p>
+ * <p>
+ *     <b>JFR</b>
+ *     <br>
+ *     While open, and while a recording enables them, every machine
+ *     emits an <code>nz.bradley.neil.cpu.Execution</code> event each
+ *     second, with its counts and MIPS over that second, and an
+ *     <code>nz.bradley.neil.cpu.Instructions</code> event for each
+ *     mnemonic executed in it.
+ * </p>
+ */
+public final class Instrumentation implements InstrumentationMXBean, AutoCloseable {
+
+    static final int HOT_INSTRUCTIONS = 5;
+
+    private static final String DOMAIN = "nz.bradley.neil.cpu";
+
+    // Every open instrumentation, emitting JFR events from one hook.
+    private static final Set<Instrumentation> OPEN = new CopyOnWriteArraySet<>();
+    private static boolean hooked;
+
+    @Name(DOMAIN + ".Execution")
+    @Label("Guest Execution")
+    @Category("8-bit CPU")
+    @Description("What a machine executed since the last event")
+    @Period("1 s")
+    static final class ExecutionEvent extends Event {
+
+        @Label("Machine")
+        String machine;
+
+        @Label("Instructions")
+        long instructions;
+
+        @Label("MIPS")
+        double mips;
+
+        @Label("Branches Taken")
+        long branchesTaken;
+
+        @Label("Branches Not Taken")
+        long branchesNotTaken;
+
+        @Label("Interrupts")
+        long interrupts;
+
+        @Label("MMIO Reads")
+        long mmioReads;
+
+        @Label("MMIO Writes")
+        long mmioWrites;
+    }
+
+    @Name(DOMAIN + ".Instructions")
+    @Label("Guest Instructions")
+    @Category("8-bit CPU")
+    @Description("How often a machine executed one mnemonic since the last event")
+    static final class InstructionEvent extends Event {
+
+        @Label("Machine")
+        String machine;
+
+        @Label("Instruction")
+        String instruction;
+
+        @Label("Count")
+        long count;
+    }
+
+    private final String name;
+    private final Machine machine;
+    private ObjectName objectName;
+
+    // Totals at the last JFR event, touched only by the JFR hook.
+    private long lastTime = System.nanoTime();
+    private long lastInstructions, lastTaken, lastNotTaken, lastInterrupts, lastReads, lastWrites;
+    private Map<String, Long> lastCounts = Map.of();
+
+    /**
+     * @param name      Identifies the machine to monitoring.
+     * @param machine   The machine.
+     */
+    public Instrumentation(String name, Machine machine) {
+        this.name = name;
+        this.machine = machine;
+    }
+
+    /**
+     * Registers the MXBean, and starts emitting JFR events.
+     *
+     * @return This instrumentation.
+     * @throws IllegalStateException    If the MXBean can't be registered,
+     *                                  usually as the name is taken.
+     */
+    public Instrumentation open() {
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=Machine,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Can't register machine " + name, e);
+        }
+        synchronized (Instrumentation.class) {
+            if (!hooked) {
+                FlightRecorder.addPeriodicEvent(ExecutionEvent.class, Instrumentation::emitAll);
+                hooked = true;
+            }
+        }
+        OPEN.add(this);
+        return this;
+    }
+
+    /**
+     * Unregisters the MXBean, and stops emitting JFR events.
+     */
+    @Override
+    public void close() {
+        OPEN.remove(this);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Already gone.
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getInstructions() {
+        long total = 0;
+        for (Counters counters: counters()) {
+            total += counters.getInstructions();
+        }
+        return total;
+    }
+
+    @Override
+    public double getMips() {
+        double hz = 0.0;
+        for (Clock clock: machine.getClocks()) {
+            hz += clock.getAchievedHz();
+        }
+        return hz / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getInstructionCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Counters counters: counters()) {
+            counters.getInstructionCounts().forEach((instruction, count) ->
+                    counts.merge(instruction.name(), count, Long::sum));
+        }
+        return counts;
+    }
+
+    @Override
+    public List<String> getHotInstructions() {
+        return getInstructionCounts().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(HOT_INSTRUCTIONS)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    @Override
+    public long getBranchesTaken() {
+        long total = 0;
+        for (Counters counters: counters()) {
+            total += counters.getBranchesTaken();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBranchesNotTaken() {
+        long total = 0;
+        for (Counters counters: counters()) {
+            total += counters.getBranchesNotTaken();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getInterrupts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Counters counters: counters()) {
+            counters.getInterrupts().forEach((unit, count) -> counts.merge(unit, count, Long::sum));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getMMIOReads() {
+        return machine.getMemory().getMMIOReads();
+    }
+
+    @Override
+    public Map<String, Long> getMMIOWrites() {
+        return machine.getMemory().getMMIOWrites();
+    }
+
+    private List<Counters> counters() {
+        List<Counters> counters = new ArrayList<>();
+        for (CPU cpu: machine.getCPUs()) {
+            if (cpu.getCounters() != null) {
+                counters.add(cpu.getCounters());
+            }
+        }
+        return counters;
+    }
+
+    private static void emitAll() {
+        OPEN.forEach(Instrumentation::emit);
+    }
+
+    private void emit() {
+        long now = System.nanoTime();
+        long instructions = getInstructions();
+        long taken = getBranchesTaken();
+        long notTaken = getBranchesNotTaken();
+        long interrupts = sum(getInterrupts());
+        long reads = sum(getMMIOReads());
+        long writes = sum(getMMIOWrites());
+
+        ExecutionEvent event = new ExecutionEvent();
+        event.machine = name;
+        event.instructions = instructions - lastInstructions;
+        event.mips = now > lastTime ? event.instructions * 1e3 / (now - lastTime) : 0.0;
+        event.branchesTaken = taken - lastTaken;
+        event.branchesNotTaken = notTaken - lastNotTaken;
+        event.interrupts = interrupts - lastInterrupts;
+        event.mmioReads = reads - lastReads;
+        event.mmioWrites = writes - lastWrites;
+        event.commit();
+
+        Map<String, Long> counts = getInstructionCounts();
+        counts.forEach((instruction, count) -> {
+            long delta = count - lastCounts.getOrDefault(instruction, 0L);
+            if (delta > 0) {
+                InstructionEvent instructionEvent = new InstructionEvent();
+                instructionEvent.machine = name;
+                instructionEvent.instruction = instruction;
+                instructionEvent.count = delta;
+                instructionEvent.commit();
+            }
+        });
+
+        lastTime = now;
+        lastInstructions = instructions;
+        lastTaken = taken;
+        lastNotTaken = notTaken;
+        lastInterrupts = interrupts;
+        lastReads = reads;
+        lastWrites = writes;
+        lastCounts = counts;
+    }
+
+    private static long sum(Map<String, Long> counts) {
+        long total = 0;
+        for (long count: counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+}
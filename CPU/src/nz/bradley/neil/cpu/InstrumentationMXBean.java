@@ -0,0 +1,56 @@
+package nz.bradley.neil.cpu;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a {@link Machine} has executed, as published over JMX by
+ * {@link Instrumentation}.  Counts cover every core configured with
+ * <code>counters=true</code>, and MMIO counts need the RAM configured
+ * with <code>counters=true</code>.
+ */
+public interface InstrumentationMXBean {
+
+    String getName();
+
+    /**
+     * @return Instructions executed by every core.
+     */
+    long getInstructions();
+
+    /**
+     * @return Millions of cycles per second, over every core, since the
+     *         cores started.  Each cycle executes one instruction, unless
+     *         it takes an interrupt.
+     */
+    double getMips();
+
+    /**
+     * @return Instructions executed, by mnemonic.
+     */
+    Map<String, Long> getInstructionCounts();
+
+    /**
+     * @return The most executed mnemonics, most first.
+     */
+    List<String> getHotInstructions();
+
+    long getBranchesTaken();
+
+    long getBranchesNotTaken();
+
+    /**
+     * @return Interrupts serviced, by the name of the unit raising them.
+     */
+    Map<String, Long> getInterrupts();
+
+    /**
+     * @return Reads, by the name of the MMIO unit read.
+     */
+    Map<String, Long> getMMIOReads();
+
+    /**
+     * @return Writes, by the name of the MMIO unit written.
+     */
+    Map<String, Long> getMMIOWrites();
+}
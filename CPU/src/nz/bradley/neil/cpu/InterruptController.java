@@ -0,0 +1,315 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.api.MMIOException;
+import nz.bradley.neil.cpu.api.Scheduler;
+import nz.bradley.neil.cpu.impl.MMIOBase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *     <b>Interrupt Controller</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Every {@link MMIO} unit with an interrupt address is given one of
+ *     {@value #LINES} {@link nz.bradley.neil.cpu.api.InterruptLine}s,
+ *     in the order the units were configured.
+ *     Raising a line sets its bit in the pending mask, so the CPU only
+ *     has to check a single word each cycle, however many units there
+ *     are.
+ * </p>
+ * <p>
+ *     <b>Priority</b>
+ *     <br>
+ *     Each line has a priority, initially the unit's
+ *     {@link MMIO#getInterruptPriority()}.  The highest priority pending,
+ *     unmasked line is serviced first, and ties go to the lowest line
+ *     number.  Pending interrupts are never lost: each waits, in order,
+ *     until it can be serviced.
+ * </p>
+ * <p>
+ *     <b>Nesting</b>
+ *     <br>
+ *     With <code>eoi=manual</code> (the default), a serviced interrupt
+ *     stays in service until the guest writes to the
+ *     <code>IN_SERVICE</code> register.  Only a strictly higher priority
+ *     interrupt can interrupt it in the meantime.  The end of interrupt
+ *     takes effect after the following instruction, so a handler can
+ *     finish with the write followed by <code>JR $RETURN</code>.  With
+ *     <code>eoi=auto</code>, nothing is held in service, and any pending
+ *     interrupt may be serviced on any cycle.  A controller that is
+ *     never configured, as when the config has no
+ *     <code>INTERRUPTS</code> line, isn't mapped, so the guest couldn't
+ *     end an interrupt: it always behaves as <code>eoi=auto</code>.
+ * </p>
+ * <p>
+ *     <b>Registers</b>
+ *     <br>
+ *     <ul>
+ *         <li><code>+0</code> PENDING: writing clears the bits set.</li>
+ *         <li><code>+4</code> MASK: lines with their bit set are
+ *             enabled.</li>
+ *         <li><code>+8</code> IN_SERVICE: any write ends the highest
+ *             priority interrupt in service.</li>
+ *         <li><code>+16</code> One priority byte per line.</li>
+ *     </ul>
+ * </p>
+ */
+public class InterruptController extends MMIOBase {
+
+    static final int LINES = Integer.SIZE;
+
+    private static final int PENDING = 0;
+    private static final int MASK = 4;
+    private static final int IN_SERVICE = 8;
+    private static final int PRIORITIES = 16;
+
+    private final MMIO[] units = new MMIO[LINES];
+    private final byte[] defaults = new byte[LINES];
+    private final byte[] priorities = new byte[LINES];
+    private final List<MMIO> polled = new ArrayList<>();
+    private int lines;
+    // Unmapped until configured, so nothing could end an interrupt.
+    private boolean autoEoi = true;
+
+    private int pending, mask = -1, inService;
+    // Pending interrupts the CPU may service now.  Kept up to date on
+    // every change, so the per-cycle check is a single field read.
+    private int ready;
+    // Cycles left before a requested end of interrupt takes effect.
+    private int eoiDelay;
+    // The unit whose interrupt was last acknowledged.
+    private MMIO serviced;
+
+    @Override
+    public MMIO configure(String config) {
+        super.configure(config);
+        autoEoi = false;
+        String[] configs = config.split("[\\s=]");
+        for (int i = 0; i + 1 < configs.length; i += 2) {
+            if ("eoi".equals(configs[i])) {
+                autoEoi = "auto".equals(configs[i + 1]);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Gives a line to a unit that has an interrupt address.  Units
+     * without one are ignored.
+     *
+     * @param mmio  The unit to connect.
+     */
+    public void registerMMIO(MMIO mmio) {
+        if (mmio == this || mmio.getInterruptAddress() == null) {
+            return;
+        }
+        if (lines == LINES) {
+            throw new MMIOException("No interrupt line left for " + mmio.getName());
+        }
+        int line = lines++;
+        units[line] = mmio;
+        defaults[line] = (byte)mmio.getInterruptPriority();
+        priorities[line] = defaults[line];
+        if (!mmio.connect(() -> raise(line))) {
+            polled.add(mmio);
+        }
+    }
+
+    /**
+     * Marks a line as pending.
+     *
+     * @param line  The line to raise.
+     */
+    public void raise(int line) {
+        pending |= 1 << line;
+        update();
+    }
+
+    /**
+     * Checks whether an interrupt should be serviced this cycle.  Units
+     * that don't raise their line are polled here.
+     *
+     * @return True if {@link #acknowledge()} should be called.
+     */
+    boolean isReady() {
+        if (!polled.isEmpty()) {
+            poll();
+        }
+        if (eoiDelay > 0 && --eoiDelay == 0) {
+            endOfInterrupt();
+        }
+        return ready != 0;
+    }
+
+    /**
+     * Checks, without side effects, whether {@link #isReady()} could
+     * change anything this cycle.
+     *
+     * @return False if no interrupt can be serviced before something
+     *         else changes the controller's state.
+     */
+    boolean mayInterrupt() {
+        return ready != 0 || eoiDelay > 0 || !polled.isEmpty();
+    }
+
+    /**
+     * Takes the next interrupt to service, and marks it in service.
+     *
+     * @return The interrupt address to jump to.
+     */
+    int acknowledge() {
+        int line = highest(ready);
+        pending &= ~(1 << line);
+        if (!autoEoi) {
+            inService |= 1 << line;
+        }
+        update();
+        serviced = units[line];
+        return serviced.getInterruptAddress();
+    }
+
+    /**
+     * @return The unit whose interrupt {@link #acknowledge()} last took.
+     */
+    MMIO serviced() {
+        return serviced;
+    }
+
+    private void poll() {
+        for (int i = 0, n = polled.size(); i < n; i++) {
+            MMIO mmio = polled.get(i);
+            if (mmio.hasInterrupt()) {
+                for (int line = 0; line < lines; line++) {
+                    if (units[line] == mmio) {
+                        pending |= 1 << line;
+                    }
+                }
+            }
+        }
+        update();
+    }
+
+    private void endOfInterrupt() {
+        if (inService != 0) {
+            inService &= ~(1 << highest(inService));
+            update();
+        }
+    }
+
+    // Highest priority line in the set; ties go to the lowest line.
+    private int highest(int set) {
+        int line = Integer.numberOfTrailingZeros(set);
+        for (int bits = set & (set - 1); bits != 0; bits &= bits - 1) {
+            int other = Integer.numberOfTrailingZeros(bits);
+            if (priorities[other] > priorities[line]) {
+                line = other;
+            }
+        }
+        return line;
+    }
+
+    private void update() {
+        int candidates = pending & mask;
+        if (candidates != 0 && inService != 0) {
+            int level = priorities[highest(inService)];
+            for (int bits = candidates; bits != 0; bits &= bits - 1) {
+                int line = Integer.numberOfTrailingZeros(bits);
+                if (priorities[line] <= level) {
+                    candidates &= ~(1 << line);
+                }
+            }
+        }
+        ready = candidates;
+    }
+
+    @Override
+    public boolean attach(Scheduler scheduler) {
+        // Never needs clocking.
+        return true;
+    }
+
+    @Override
+    public byte readByte(int offset) {
+        if (offset >= PRIORITIES) {
+            return offset - PRIORITIES < LINES ? priorities[offset - PRIORITIES] : 0;
+        }
+        return (byte)(readInteger(offset & ~3) >>> (24 - (offset & 3) * 8));
+    }
+
+    @Override
+    public int readInteger(int offset) {
+        return switch (offset) {
+            case PENDING -> pending;
+            case MASK -> mask;
+            case IN_SERVICE -> inService;
+            default -> 0;
+        };
+    }
+
+    @Override
+    public void writeByte(int offset, byte data) {
+        if (offset >= PRIORITIES && offset - PRIORITIES < LINES) {
+            priorities[offset - PRIORITIES] = data;
+            update();
+        }
+    }
+
+    @Override
+    public void writeInteger(int offset, int data) {
+        switch (offset) {
+            case PENDING -> pending &= ~data;
+            case MASK -> mask = data;
+            // Takes effect once the next instruction has executed.
+            case IN_SERVICE -> eoiDelay = 2;
+            default -> {}
+        }
+        update();
+    }
+
+    @Override
+    public void sendClock() {
+        // Does nothing, never scheduled.
+    }
+
+    /**
+     * Lines are given out again as the machine is configured, so only
+     * what the guest and its units have done to them is kept.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(pending);
+        out.writeInt(mask);
+        out.writeInt(inService);
+        out.writeInt(eoiDelay);
+        out.write(priorities);
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        pending = in.readInt();
+        mask = in.readInt();
+        inService = in.readInt();
+        eoiDelay = in.readInt();
+        in.readFully(priorities);
+        update();
+    }
+
+    @Override
+    public void sendReset() {
+        pending = 0;
+        mask = -1;
+        inService = 0;
+        eoiDelay = 0;
+        System.arraycopy(defaults, 0, priorities, 0, LINES);
+        update();
+    }
+}
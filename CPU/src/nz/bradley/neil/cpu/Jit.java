@@ -0,0 +1,493 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.Instruction;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ *     <b>Block Compiler</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Turns a hot {@link BlockCache.Block} into a hidden class whose
+ *     {@link CompiledBlock#run} method performs the block's instructions
+ *     one after the other, with every register index, operand and
+ *     immediate as a constant, and <code>$TARGET</code> in a local.
+ *     HotSpot then inlines the {@link RegisterFile} calls, and compiles
+ *     the guest block much as it would hand-written Java.
+ * </p>
+ * <p>
+ *     <b>Deoptimisation</b>
+ *     <br>
+ *     Compiled code only ever touches registers and plain RAM.  Before a
+ *     load or store through any other address, it returns the number of
+ *     instructions it completed, and the CPU interprets the rest of the
+ *     block.  Compiled code belongs to its block, so writing to the code
+ *     drops both together.  Timing is left to the CPU, which only enters
+ *     compiled code when no peripheral or interrupt could need
+ *     attention before the block ends.
+ * </p>
+ * <p>
+ *     <b>Class Files</b>
+ *     <br>
+ *     The class files are written by hand, as version 49 files, which
+ *     the JVM verifies without stack map frames.  Each holds a
+ *     constructor and <code>run</code>, and nothing else.
+ * </p>
+ */
+final class Jit {
+
+    private static final String PACKAGE = "nz/bradley/neil/cpu/";
+    private static final String NAME = PACKAGE + "CompiledBlock$Guest";
+    private static final String REGISTERS = PACKAGE + "RegisterFile";
+    private static final String MEMORY = PACKAGE + "Memory";
+    private static final String CLOCK = PACKAGE + "Clock";
+    private static final String RUN = "(L" + REGISTERS + ";L" + MEMORY + ";L" + CLOCK + ";I)J";
+
+    // Locals of run().
+    private static final int THIS = 0;
+    private static final int R = 1;
+    private static final int M = 2;
+    private static final int C = 3;
+    private static final int TARGET = 4;
+    private static final int ADDRESS = 5;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final int threshold;
+    private int compiled;
+
+    /**
+     * @param threshold Number of times a block is entered before it is
+     *                  compiled.
+     */
+    Jit(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Counts an entry into a block, and compiles it once it is hot.
+     *
+     * @param block The block being entered.
+     * @return      The compiled block, or null to interpret it.
+     */
+    CompiledBlock enter(BlockCache.Block block) {
+        if (block.compiled == null && block.entries >= 0 && ++block.entries >= threshold) {
+            block.compiled = compile(block);
+            // Never try again if it couldn't be compiled.
+            block.entries = Integer.MIN_VALUE;
+        }
+        return block.compiled;
+    }
+
+    /**
+     * @return The number of blocks compiled so far.
+     */
+    int compiledCount() {
+        return compiled;
+    }
+
+    /**
+     * Compiles a block.
+     *
+     * @param block The block.
+     * @return      The compiled block, or null if it can't be compiled.
+     */
+    CompiledBlock compile(BlockCache.Block block) {
+        try {
+            Class<?> type = lookup.defineHiddenClass(generate(block), true).lookupClass();
+            compiled++;
+            return (CompiledBlock)type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // Outcome of run(): next address, $TARGET and instructions completed.
+    static long result(int executed, int next, int target) {
+        return Integer.toUnsignedLong(next) | (long)(target & 0xFF) << 32 | (long)executed << 40;
+    }
+
+    static int executed(long result) {
+        return (int)(result >>> 40);
+    }
+
+    static int next(long result) {
+        return (int)result;
+    }
+
+    static int target(long result) {
+        return (int)(result >>> 32) & 0xFF;
+    }
+
+    static byte[] generate(BlockCache.Block block) {
+        ClassFile file = new ClassFile();
+        Code code = new Code(file);
+        boolean returned = false;
+        for (int i = 0; i < block.length; i++) {
+            int param = block.operands[i];
+            int immediate = block.immediates[i];
+            int next = block.addresses[i + 1];
+            switch (block.instructions[i]) {
+                case SEL -> {
+                    code.push(param);
+                    code.op(Code.ISTORE, TARGET);
+                }
+                case LDR -> {
+                    code.register(param);
+                    code.op(Code.ISTORE, ADDRESS);
+                    code.ramOrDeopt(i);
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    code.op(Code.ALOAD_0 + M);
+                    code.op(Code.ILOAD, ADDRESS);
+                    code.invoke(MEMORY, "readInteger", "(I)I");
+                    code.op(Code.I2L);
+                    code.invoke(REGISTERS, "set", "(IJ)V");
+                }
+                case STR, STN -> {
+                    if (block.instructions[i] == Instruction.STR) {
+                        code.register(param);
+                    } else {
+                        code.push(immediate);
+                    }
+                    code.op(Code.ISTORE, ADDRESS);
+                    code.ramOrDeopt(i);
+                    code.op(Code.ALOAD_0 + M);
+                    code.op(Code.ILOAD, ADDRESS);
+                    code.target();
+                    code.invoke(MEMORY, "writeInteger", "(II)V");
+                }
+                case JR -> {
+                    code.push(i + 1);
+                    code.register(param);
+                    code.exit();
+                    returned = true;
+                }
+                case CP -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.push(param);
+                    code.target();
+                    code.op(Code.I2L);
+                    code.invoke(REGISTERS, "set", "(IJ)V");
+                }
+                case AND, OR, XOR, ADD, SUB, MUL, DIV -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    code.register(param);
+                    code.op(Code.I2L);
+                    code.invoke(REGISTERS, alu(block.instructions[i]), "(IJ)V");
+                }
+                case SHL, SHR, SSR -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    code.push(param);
+                    code.op(Code.I2L);
+                    code.invoke(REGISTERS, alu(block.instructions[i]), "(IJ)V");
+                }
+                case LDN, CLR, UNO -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    switch (block.instructions[i]) {
+                        case CLR -> code.op(Code.LCONST_0);
+                        case UNO -> code.op(Code.LCONST_1);
+                        default -> {
+                            code.push(immediate);
+                            code.op(Code.I2L);
+                        }
+                    }
+                    code.invoke(REGISTERS, "set", "(IJ)V");
+                }
+                case J -> {
+                    code.exit(i + 1, immediate);
+                    returned = true;
+                }
+                case JZ, JN, JC, JV -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    code.invoke(REGISTERS, alu(block.instructions[i]), "(I)Z");
+                    int notTaken = code.branch(Code.IFEQ);
+                    code.exit(i + 1, immediate);
+                    code.land(notTaken);
+                    code.exit(i + 1, next);
+                    returned = true;
+                }
+                case COM, NEG -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    code.invoke(REGISTERS, alu(block.instructions[i]), "(I)V");
+                }
+                case INC, DEC -> {
+                    code.op(Code.ALOAD_0 + R);
+                    code.op(Code.ILOAD, TARGET);
+                    code.op(Code.LCONST_1);
+                    code.invoke(REGISTERS, alu(block.instructions[i]), "(IJ)V");
+                }
+                case RST, HLT -> {
+                    code.op(Code.ALOAD_0 + C);
+                    code.invoke(CLOCK, "stop", "()V");
+                }
+                default -> {}
+            }
+        }
+        if (!returned) {
+            code.exit(block.length, block.end());
+        }
+        return file.toBytes(code);
+    }
+
+    private static String alu(Instruction instruction) {
+        return switch (instruction) {
+            case AND -> "and";
+            case OR -> "or";
+            case XOR -> "xor";
+            case ADD, INC -> "addTo";
+            case SUB, DEC -> "subtract";
+            case MUL -> "multiplyBy";
+            case DIV -> "divideBy";
+            case SHL -> "shiftLeft";
+            case SHR -> "shiftRight";
+            case SSR -> "signedShiftRight";
+            case JZ -> "isZero";
+            case JN -> "isNegative";
+            case JC -> "hadCarry";
+            case JV -> "hadOverflow";
+            case COM -> "complement";
+            case NEG -> "negate";
+            default -> throw new IllegalArgumentException(instruction.name());
+        };
+    }
+
+    /**
+     * Bytecode for run().
+     */
+    private static final class Code {
+
+        static final int ICONST_0 = 0x03;
+        static final int LCONST_0 = 0x09;
+        static final int LCONST_1 = 0x0A;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int ILOAD = 0x15;
+        static final int ALOAD_0 = 0x2A;
+        static final int ISTORE = 0x36;
+        static final int I2L = 0x85;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9A;
+        static final int LRETURN = 0xAD;
+        static final int RETURN = 0xB1;
+        static final int INVOKEVIRTUAL = 0xB6;
+        static final int INVOKESPECIAL = 0xB7;
+        static final int INVOKESTATIC = 0xB8;
+
+        private final ClassFile file;
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        Code(ClassFile file) {
+            this.file = file;
+        }
+
+        void op(int... values) {
+            for (int value: values) {
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, length * 2);
+                }
+                bytes[length++] = (byte)value;
+            }
+        }
+
+        void append(Code code) {
+            for (int i = 0; i < code.length; i++) {
+                op(code.bytes[i]);
+            }
+        }
+
+        void u2(int value) {
+            op(value >>> 8, value);
+        }
+
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value == (byte)value) {
+                op(BIPUSH, value);
+            } else if (value == (short)value) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                op(LDC_W);
+                u2(file.integer(value));
+            }
+        }
+
+        // Pushes registers.get(r).
+        void register(int r) {
+            op(ALOAD_0 + R);
+            push(r);
+            invoke(REGISTERS, "get", "(I)I");
+        }
+
+        // Pushes registers.get($TARGET).
+        void target() {
+            op(ALOAD_0 + R);
+            op(ILOAD, TARGET);
+            invoke(REGISTERS, "get", "(I)I");
+        }
+
+        void invoke(String owner, String name, String descriptor) {
+            op(INVOKEVIRTUAL);
+            u2(file.method(owner, name, descriptor));
+        }
+
+        // Returns, having completed the given number of instructions,
+        // unless ADDRESS is plain RAM.
+        void ramOrDeopt(int executed) {
+            op(ALOAD_0 + M);
+            op(ILOAD, ADDRESS);
+            invoke(MEMORY, "isRam", "(I)Z");
+            int ram = branch(IFNE);
+            exit(executed, 0);
+            land(ram);
+        }
+
+        void exit(int executed, int next) {
+            push(executed);
+            push(next);
+            exit();
+        }
+
+        // Returns result(executed, next, $TARGET), with the first two
+        // already pushed.
+        void exit() {
+            op(ILOAD, TARGET);
+            op(INVOKESTATIC);
+            u2(file.method(PACKAGE + "Jit", "result", "(III)J"));
+            op(LRETURN);
+        }
+
+        int branch(int opcode) {
+            int at = length;
+            op(opcode, 0, 0);
+            return at;
+        }
+
+        void land(int branch) {
+            int offset = length - branch;
+            bytes[branch + 1] = (byte)(offset >>> 8);
+            bytes[branch + 2] = (byte)offset;
+        }
+    }
+
+    /**
+     * Just enough of a class file writer for one class with no fields.
+     */
+    private static final class ClassFile {
+
+        private final Map<String, Integer> constants = new HashMap<>();
+        private final Code pool = new Code(this);
+        private int count = 1;
+
+        private int constant(String key, int... entry) {
+            Integer index = constants.get(key);
+            if (index == null) {
+                index = count++;
+                constants.put(key, index);
+                pool.op(entry);
+            }
+            return index;
+        }
+
+        int utf8(String value) {
+            Integer index = constants.get("U" + value);
+            if (index == null) {
+                byte[] data = value.getBytes(StandardCharsets.UTF_8);
+                index = count++;
+                constants.put("U" + value, index);
+                pool.op(1);
+                pool.u2(data.length);
+                for (byte b: data) {
+                    pool.op(b);
+                }
+            }
+            return index;
+        }
+
+        int type(String name) {
+            int utf8 = utf8(name);
+            return constant("C" + name, 7, utf8 >>> 8, utf8);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            int type = type(owner);
+            int n = utf8(name);
+            int d = utf8(descriptor);
+            int nameAndType = constant("N" + name + descriptor, 12, n >>> 8, n, d >>> 8, d);
+            return constant("M" + owner + "." + name + descriptor, 10, type >>> 8, type, nameAndType >>> 8, nameAndType);
+        }
+
+        int integer(int value) {
+            return constant("I" + value, 3, value >>> 24, value >>> 16, value >>> 8, value);
+        }
+
+        byte[] toBytes(Code run) {
+            int self = type(NAME);
+            int object = type("java/lang/Object");
+            int block = type(PACKAGE + "CompiledBlock");
+            int init = method("java/lang/Object", "<init>", "()V");
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initDescriptor = utf8("()V");
+            int runName = utf8("run");
+            int runDescriptor = utf8(RUN);
+
+            Code out = new Code(this);
+            out.op(0xCA, 0xFE, 0xBA, 0xBE, 0, 0, 0, 49);
+            out.u2(count);
+            out.append(pool);
+            // ACC_FINAL | ACC_SUPER, one interface, no fields, two methods.
+            out.u2(0x0030);
+            out.u2(self);
+            out.u2(object);
+            out.u2(1);
+            out.u2(block);
+            out.u2(0);
+            out.u2(2);
+
+            Code constructor = new Code(this);
+            constructor.op(Code.ALOAD_0 + THIS, Code.INVOKESPECIAL);
+            constructor.u2(init);
+            constructor.op(Code.RETURN);
+            writeMethod(out, initName, initDescriptor, codeName, constructor, 1, 1);
+            writeMethod(out, runName, runDescriptor, codeName, run, 8, ADDRESS + 1);
+
+            out.u2(0);
+            return Arrays.copyOf(out.bytes, out.length);
+        }
+
+        private static void writeMethod(Code out, int name, int descriptor, int codeName, Code code, int stack, int locals) {
+            // ACC_PUBLIC, with a Code attribute and nothing else.
+            out.u2(0x0001);
+            out.u2(name);
+            out.u2(descriptor);
+            out.u2(1);
+            out.u2(codeName);
+            int size = 12 + code.length;
+            out.u2(size >>> 16);
+            out.u2(size);
+            out.u2(stack);
+            out.u2(locals);
+            out.u2(0);
+            out.u2(code.length);
+            out.append(code);
+            out.u2(0);
+            out.u2(0);
+        }
+    }
+}
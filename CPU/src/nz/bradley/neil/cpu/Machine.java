@@ -0,0 +1,491 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.api.Scheduler;
+import nz.bradley.neil.cpu.fileio.FileReader;
+import nz.bradley.neil.cpu.fileio.FileWriter;
+import nz.bradley.neil.cpu.timer.Timer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Phaser;
+
+/**
+ * <p>
+ *     <b>Machine</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     One complete guest: its memory, devices, and one or more cores,
+ *     built from <code>CPU.conf</code> style lines.  Nothing is static,
+ *     so a JVM may hold as many machines as it has memory for.
+ * </p>
+ * <p>
+ *     <b>Running</b>
+ *     <br>
+ *     {@link #run()} runs every core on its own clock thread until all
+ *     have stopped.  {@link #runFor(long)} instead steps the cores on the
+ *     calling thread, for at most a given number of cycles, which suits
+ *     running many machines on a shared pool (see {@link Farm}).
+ * </p>
+ * <p>
+ *     <b>Output</b>
+ *     <br>
+ *     Unless given a stream to write to, everything the guest writes to
+ *     its {@link FileWriter}s is kept, and returned by
+ *     {@link #getOutput()}.
+ * </p>
+ * <p>
+ *     <b>Snapshots</b>
+ *     <br>
+ *     {@link #snapshot(Path)} saves the whole machine, between runs, as
+ *     a {@link Snapshot}, from which any number of copies can be
+ *     restored, each carrying on from the same point.
+ * </p>
+ * <p>
+ *     <b>Forking</b>
+ *     <br>
+ *     {@link #fork()} copies the machine in memory instead: the fork
+ *     gets a copy of every core's and device's state, and shares all of
+ *     RAM with this machine, each page being copied only when either
+ *     machine first writes it.  Many forks of one warmed-up machine
+ *     therefore cost little more than the pages each of them writes,
+ *     and forking takes about as long however large RAM is.
+ * </p>
+ * <p>
+ *     <b>Monitoring</b>
+ *     <br>
+ *     A <code>MONITOR: name=&lt;name&gt;</code> line opens an
+ *     {@link Instrumentation} for the machine, publishing what its cores
+ *     count over JMX and JFR until the machine is closed.  The name
+ *     stays taken until then.  Forks and restored copies aren't
+ *     monitored.
+ * </p>
+ */
+public final class Machine implements AutoCloseable {
+
+    // One clock and PC per core, in the same order as the cores.
+    private final List<CPU> cpus = new ArrayList<>();
+    private final List<Clock> clocks = new ArrayList<>();
+    private final List<PC> pcs = new ArrayList<>();
+    private final Set<MMIO> mmios = new LinkedHashSet<>();
+    private InterruptController interrupts;
+    private Memory memory;
+    private Instrumentation instrumentation;
+    private List<Map.Entry<String, String>> configs;
+
+    private final ByteArrayOutputStream captured;
+    private final PrintStream output;
+    private boolean stepping;
+
+    /**
+     * Builds a machine whose output is kept.
+     *
+     * @param configs   Config keys (<code>RAM</code>, <code>CPU</code>,
+     *                  ...) and values, in config order.
+     */
+    public Machine(Collection<Map.Entry<String, String>> configs) {
+        this.captured = new ByteArrayOutputStream();
+        this.output = new PrintStream(captured, true, StandardCharsets.UTF_8);
+        initialize(configs);
+    }
+
+    /**
+     * Builds a machine writing its output to a stream.
+     *
+     * @param configs   Config keys and values, in config order.
+     * @param output    Where the guest's output goes.
+     */
+    public Machine(Collection<Map.Entry<String, String>> configs, PrintStream output) {
+        this.captured = null;
+        this.output = output;
+        initialize(configs);
+    }
+
+    /**
+     * Reads config lines, as found in <code>CPU.conf</code>.  Lines
+     * starting with <code>#</code>, and lines without a key, are
+     * ignored.  Configuration order is kept, as it decides the order of
+     * interrupt lines.
+     *
+     * @param lines The lines.
+     * @return      The keys and values, in order.
+     */
+    public static Set<Map.Entry<String, String>> parse(Iterable<String> lines) {
+        Set<Map.Entry<String, String>> configOptions = new LinkedHashSet<>();
+        for (String line: lines) {
+            if (!line.startsWith("#") && line.contains(": ")) {
+                String[] parts = line.split(": ");
+                configOptions.add(Map.entry(parts[0], parts[1]));
+            }
+        }
+        return configOptions;
+    }
+
+    /**
+     * Reads a config file.
+     *
+     * @param file  The file.
+     * @return      The keys and values, in order.
+     * @throws IOException  If the file can't be read.
+     */
+    public static Set<Map.Entry<String, String>> load(Path file) throws IOException {
+        return parse(Files.readAllLines(file));
+    }
+
+    private void initialize(Collection<Map.Entry<String, String>> configs) {
+        this.configs = List.copyOf(configs);
+        // Initialize parts.  Devices are shared, and belong to the first
+        // core; each core has its own clock and program counter.
+        Map<String, Clock> clockNames = new LinkedHashMap<>();
+        Map<String, PC> pcNames = new LinkedHashMap<>();
+        List<String> cpuConfigs = new ArrayList<>();
+        String monitor = null;
+        for (var config: configs) {
+            switch (config.getKey()) {
+                case "RAM" -> memory = new Memory().configure(config.getValue());
+                case "CLOCK" -> {
+                    Clock clock = new Clock();
+                    clock.configure(config.getValue());
+                    clockNames.put(clock.getName(), clock);
+                }
+                case "INTERRUPTS" -> {
+                    interrupts = new InterruptController();
+                    interrupts.configure(config.getValue());
+                    mmios.add(interrupts);
+                }
+                case "PC" -> {
+                    PC pc = new PC();
+                    pc.configure(config.getValue());
+                    pcNames.put(pc.getName(), pc);
+                }
+                case "CPU" -> cpuConfigs.add(config.getValue());
+                case "TIMER" -> mmios.add(new Timer().configure(config.getValue()));
+                case "FILE_WRITER" -> {
+                    FileWriter writer = new FileWriter();
+                    writer.configure(config.getValue());
+                    writer.setOutput(output);
+                    mmios.add(writer);
+                }
+                case "FILE_READER" -> mmios.add(new FileReader().configure(config.getValue()));
+                case "MONITOR" -> monitor = config.getValue();
+            }
+        }
+        if (clockNames.isEmpty() || memory == null || pcNames.isEmpty() || cpuConfigs.isEmpty()) {
+            throw new IllegalStateException("A required element [clock, memory, or pc] is missing from the config.");
+        }
+
+        if (interrupts == null) {
+            interrupts = new InterruptController();
+        }
+
+        // Each CPU names its clock and PC, or takes the one in the same
+        // position in the config.
+        List<Set<MMIO>> units = new ArrayList<>();
+        for (int i = 0; i < cpuConfigs.size(); i++) {
+            Clock clock = find(clockNames, option(cpuConfigs.get(i), "clock"), i, "clock");
+            PC pc = find(pcNames, option(cpuConfigs.get(i), "pc"), i, "pc");
+            Set<MMIO> core = new LinkedHashSet<>(List.of(clock, pc));
+            if (i == 0) {
+                core.addAll(mmios);
+            }
+            clocks.add(clock);
+            pcs.add(pc);
+            units.add(core);
+        }
+        // Create every core before configuring any, so each knows
+        // whether its memory is shared.
+        for (int i = 0; i < cpuConfigs.size(); i++) {
+            var controller = i == 0 ? interrupts : new InterruptController();
+            cpus.add(new CPU(clocks.get(i), controller, memory, pcs.get(i), units.get(i)));
+        }
+        for (int i = 0; i < cpuConfigs.size(); i++) {
+            cpus.get(i).configure(cpuConfigs.get(i));
+        }
+
+        if (monitor != null) {
+            String name = option(monitor, "name");
+            if (name == null) {
+                throw new IllegalStateException("MONITOR needs a name.");
+            }
+            instrumentation = new Instrumentation(name, this).open();
+        }
+    }
+
+    private static String option(String config, String key) {
+        String[] configs = config.split("[\\s=]");
+        for (int i = 0; i + 1 < configs.length; i += 2) {
+            if (key.equals(configs[i])) {
+                return configs[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private static <T> T find(Map<String, T> named, String name, int index, String kind) {
+        if (name != null) {
+            T found = named.get(name);
+            if (found == null) {
+                throw new IllegalStateException("No " + kind + " named " + name + " in the config.");
+            }
+            return found;
+        }
+        if (index >= named.size()) {
+            throw new IllegalStateException("No " + kind + " for CPU " + index + " in the config.");
+        }
+        return new ArrayList<>(named.values()).get(index);
+    }
+
+    /**
+     * Loads a program at address <code>0</code>.
+     *
+     * @param bootloader    The program.
+     */
+    public void bootstrap(byte[] bootloader) {
+        memory.bootstrap(bootloader);
+    }
+
+    /**
+     * Saves the machine, which mustn't be running, so copies of it can
+     * be restored with {@link Snapshot#restore()}.
+     *
+     * @param file  Where to save it.
+     * @throws IOException  If the file can't be written.
+     */
+    public void snapshot(Path file) throws IOException {
+        Snapshot.write(this, file);
+    }
+
+    /**
+     * Forks the machine, which mustn't be running, keeping the fork's
+     * output.  The fork carries on from where this machine is, sharing
+     * its RAM until either writes to it.  It isn't monitored.
+     *
+     * @return  The fork, ready to carry on running.
+     */
+    public Machine fork() {
+        return fork(new Machine(Snapshot.copied(configs)));
+    }
+
+    /**
+     * Forks the machine, which mustn't be running, with the fork
+     * writing its output to a stream.
+     *
+     * @param output    Where the fork's output goes.
+     * @return          The fork, ready to carry on running.
+     */
+    public Machine fork(PrintStream output) {
+        return fork(new Machine(Snapshot.copied(configs), output));
+    }
+
+    private Machine fork(Machine child) {
+        List<MMIO> parents = units();
+        List<MMIO> children = child.units();
+        // Clocks come first, so units schedule themselves from the
+        // copied count.
+        for (int i = 0; i < parents.size(); i++) {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            try {
+                parents.get(i).saveState(new DataOutputStream(state));
+                children.get(i).restoreState(new DataInputStream(new ByteArrayInputStream(state.toByteArray())));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't fork unit " + parents.get(i).getName(), e);
+            }
+        }
+        child.memory.forkFrom(memory);
+        return child;
+    }
+
+    /**
+     * Lists every unit with state, in the order a {@link Snapshot} keeps
+     * them: each core's clock, PC and CPU, then the devices.
+     *
+     * @return  The units.
+     */
+    List<MMIO> units() {
+        List<MMIO> units = new ArrayList<>();
+        for (int i = 0; i < cpus.size(); i++) {
+            units.add(clocks.get(i));
+            units.add(pcs.get(i));
+            units.add(cpus.get(i));
+        }
+        units.addAll(mmios);
+        if (!mmios.contains(interrupts)) {
+            units.add(interrupts);
+        }
+        return units;
+    }
+
+    /**
+     * Runs every core on its own clock thread, until all have stopped.
+     *
+     * @throws InterruptedException If interrupted while waiting; every
+     *                              clock is asked to stop first.
+     */
+    public void run() throws InterruptedException {
+        // Hold a party until every lock-step clock has joined.
+        Phaser lockStep = new Phaser(1);
+        clocks.forEach(clock -> clock.synchronise(lockStep));
+        clocks.forEach(Clock::start);
+        lockStep.arriveAndDeregister();
+        try {
+            for (Clock clock: clocks) {
+                clock.await();
+            }
+        } catch (InterruptedException e) {
+            stop();
+            throw e;
+        }
+        cpus.forEach(CPU::flushCounters);
+    }
+
+    /**
+     * Runs the cores on the calling thread, taking turns one step each,
+     * until they have all stopped or each has run the budget.  A step
+     * is one cycle, or a block of them under the block and JIT engines,
+     * but a block stops short of the budget.  May be called again to
+     * carry on.
+     *
+     * @param budget    The most cycles to run each core for.
+     * @return          True if every core has stopped.
+     */
+    public boolean runFor(long budget) {
+        if (!stepping) {
+            // Clocks restored stopped stay stopped.
+            clocks.stream().filter(clock -> !clock.hasStopped()).forEach(Clock::startStepping);
+            stepping = true;
+        }
+        // A step may run a whole block, so each clock is told where to
+        // stop, and the budget is counted in cycles rather than steps.
+        long[] ends = new long[clocks.size()];
+        for (int i = 0; i < ends.length; i++) {
+            long cycle = clocks.get(i).getCycle();
+            ends[i] = budget >= Scheduler.NEVER - cycle ? Scheduler.NEVER : cycle + budget;
+            clocks.get(i).limit(ends[i]);
+        }
+        try {
+            if (clocks.size() == 1) {
+                Clock clock = clocks.get(0);
+                while (clock.getCycle() < ends[0]) {
+                    if (!clock.step()) {
+                        return true;
+                    }
+                }
+            } else {
+                for (boolean due = true; due; ) {
+                    due = false;
+                    for (int i = 0; i < ends.length; i++) {
+                        Clock clock = clocks.get(i);
+                        if (clock.getCycle() < ends[i] && clock.step()) {
+                            due |= clock.getCycle() < ends[i];
+                        }
+                    }
+                }
+            }
+            return isHalted();
+        } finally {
+            clocks.forEach(clock -> clock.limit(Scheduler.NEVER));
+            cpus.forEach(CPU::flushCounters);
+        }
+    }
+
+    /**
+     * Runs one cycle of every core that hasn't stopped.
+     *
+     * @return True while any core is still running.
+     */
+    boolean step() {
+        boolean running = false;
+        for (Clock clock: clocks) {
+            running |= clock.step();
+        }
+        return running;
+    }
+
+    /**
+     * Asks every core to stop.  May be called from any thread.
+     */
+    public void stop() {
+        clocks.forEach(Clock::stop);
+    }
+
+    /**
+     * @return True once every core has stopped.
+     */
+    public boolean isHalted() {
+        for (Clock clock: clocks) {
+            if (clock.isRunning()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the machine's instrumentation, if it has any, freeing its
+     * name.  The machine may still be run.
+     */
+    @Override
+    public void close() {
+        if (instrumentation != null) {
+            instrumentation.close();
+            instrumentation = null;
+        }
+    }
+
+    /**
+     * @return Cycles run by the first core.
+     */
+    public long getCycles() {
+        return clocks.get(0).getCycle();
+    }
+
+    /**
+     * @return Everything written to the machine's
+     *         {@link FileWriter}s, or an empty string if its output
+     *         went to a stream.
+     */
+    public String getOutput() {
+        return captured == null ? "" : captured.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The machine's instrumentation, or null unless configured
+     *         with a <code>MONITOR</code> line.
+     */
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * @return The config the machine was built from, in order.
+     */
+    public List<Map.Entry<String, String>> getConfigs() {
+        return configs;
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    public List<CPU> getCPUs() {
+        return Collections.unmodifiableList(cpus);
+    }
+
+    public List<Clock> getClocks() {
+        return Collections.unmodifiableList(clocks);
+    }
+
+    public List<PC> getPCs() {
+        return Collections.unmodifiableList(pcs);
+    }
+}
@@ -1,9 +1,6 @@
 package nz.bradley.neil.cpu;
 
-import nz.bradley.neil.cpu.api.MMIO;
-import nz.bradley.neil.cpu.fileio.FileReader;
-import nz.bradley.neil.cpu.fileio.FileWriter;
-import nz.bradley.neil.cpu.timer.Timer;
+import nz.bradley.neil.cpu.api.DebugMap;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -12,20 +9,19 @@ import java.util.*;
 
 public class Main {
 
-    private static CPU cpu;
-    private static Clock clock;
-    private static Memory memory;
-    private static PC pc;
-    private static Set<MMIO> mmios;
+    private static Machine machine;
 
     private static boolean DEBUG = false;
     private static boolean STEP = false;
     private static byte[] bootloader = null;
+    private static Path bootloaderFile = null;
+    private static Path profile = null;
 
     public static void main(String[] args) {
 
-        // Process arguments.
-        Set<Map.Entry<String, String>> configOptions = new HashSet<>();
+        // Process arguments.  Configuration order is kept, as it decides
+        // the order of interrupt lines.
+        Set<Map.Entry<String, String>> configOptions = new LinkedHashSet<>();
         for (String arg: args) {
             System.out.println(arg);
             if ("STEP".equals(arg)) {
@@ -36,14 +32,16 @@ public class Main {
                 loadConfigFile(configOptions, arg.substring(arg.indexOf("=") + 1));
             } else if (arg.startsWith("BOOTLOADER=")) {
                 loadBootstrap(arg.substring(arg.indexOf("=") + 1));
+            } else if (arg.startsWith("PROFILE=")) {
+                profile = Path.of(arg.substring(arg.indexOf("=") + 1));
             } else {
                 System.out.println("Unrecognized argument: '" + arg + "'");
             }
         }
 
-        initialize(configOptions);
+        machine = new Machine(configOptions, System.out);
         if (bootloader != null) {
-            memory.bootstrap(bootloader);
+            machine.bootstrap(bootloader);
         }
         run();
     }
@@ -53,13 +51,7 @@ public class Main {
         String filename
     ) {
         try {
-            List<String> lines = Files.readAllLines(Path.of(filename));
-            for (String line: lines) {
-                if (!line.startsWith("#") && line.contains(": ")) {
-                    String[] parts = line.split(": ");
-                    configOptions.add(Map.entry(parts[0], parts[1]));
-                }
-            }
+            configOptions.addAll(Machine.load(Path.of(filename)));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -67,63 +59,103 @@ public class Main {
 
     private static void loadBootstrap(String filename) {
         try {
-            bootloader = Files.readAllBytes(Path.of(filename));
+            bootloaderFile = Path.of(filename);
+            bootloader = Files.readAllBytes(bootloaderFile);
         } catch (IOException e) {
             System.err.println("Failed to load boostrap: " + filename);
         }
     }
 
-    private static void initialize(
-        Set<Map.Entry<String, String>> configs
-    ) {
-        // Initialize parts.
-        mmios = new HashSet<>();
-        String cpuConfig = null;
-        for (var config: configs) {
-            switch (config.getKey()) {
-                case "RAM" -> memory = new Memory().configure(config.getValue());
-                case "CLOCK" -> {
-                    clock = new Clock();
-                    clock.configure(config.getValue());
-                    mmios.add(clock);
-                }
-                case "PC" -> {
-                    pc = new PC();
-                    pc.configure(config.getValue());
-                    mmios.add(pc);
-                }
-                case "CPU" -> cpuConfig = config.getValue();
-                case "TIMER" -> mmios.add(new Timer().configure(config.getValue()));
-                case "FILE_WRITER" -> mmios.add(new FileWriter().configure(config.getValue()));
-                case "FILE_READER" -> mmios.add(new FileReader().configure(config.getValue()));
-            }
+    private static void run() {
+        if (DEBUG || STEP) {
+            debug();
+            return;
         }
-        if (clock == null || memory == null || pc == null || cpuConfig == null) {
-            throw new IllegalStateException("A required element [clock, memory, or pc] is missing from the config.");
+        if (profile != null) {
+            runProfiled();
+            return;
+        }
+        try {
+            machine.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The bootloader's .dbg file, if it has one.
+    private static DebugMap loadDebugMap() {
+        Path map = bootloaderFile == null ? null : Path.of(bootloaderFile + ".dbg");
+        try {
+            if (map != null && Files.exists(map)) {
+                return DebugMap.open(map);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to load debug map: " + e.getMessage());
         }
+        return null;
+    }
 
-        cpu = new CPU(clock, memory, pc, mmios);
-        cpu.configure(cpuConfig);
+    // Samples the guest every 100us, labelling addresses from the
+    // bootloader's .dbg file, or its .map file, if it has one.
+    private static void runProfiled() {
+        NavigableMap<Integer, String> labels = new TreeMap<>();
+        DebugMap debugMap = loadDebugMap();
+        Path map = bootloaderFile == null ? null : Path.of(bootloaderFile + ".map");
+        try {
+            if (debugMap != null) {
+                labels = debugMap.labels();
+            } else if (map != null && Files.exists(map)) {
+                labels = Profiler.readLabels(map);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load labels: " + e.getMessage());
+        }
+        Profiler profiler = new Profiler(machine, labels, 100);
+        try {
+            machine.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            profiler.close();
+        }
+        try {
+            profiler.writeCollapsed(profile);
+        } catch (IOException e) {
+            System.err.println("Failed to write profile: " + profile);
+        }
     }
 
-    private static void run() {
+    private static void debug() {
         Scanner scanner = new Scanner(System.in);
-        clock.start();
+        machine.getClocks().forEach(Clock::startStepping);
+        List<Clock> clocks = machine.getClocks();
+        List<PC> pcs = machine.getPCs();
+        Memory memory = machine.getMemory();
+        DebugMap debugMap = DEBUG ? loadDebugMap() : null;
         do {
             if (DEBUG) {
-                System.out.println(String.join(
-                        System.lineSeparator(),
-                        "CYCLE " + clock.readInteger(0) + clock.readInteger(4) + ":",
-                        "\t" + pc.getName() + "> " + pc.readInteger(0),
-                        String.format("\t%02X", memory.readByte(pc.readInteger(0)))
-                ));
+                for (int i = 0; i < clocks.size(); i++) {
+                    Clock clock = clocks.get(i);
+                    PC pc = pcs.get(i);
+                    System.out.println(String.join(
+                            System.lineSeparator(),
+                            "CYCLE " + clock.readInteger(0) + clock.readInteger(4) + ":",
+                            "\t" + pc.getName() + "> " + pc.readInteger(0),
+                            String.format("\t%02X", memory.readByte(pc.readInteger(0)))
+                    ));
+                    if (debugMap != null) {
+                        int address = pc.readInteger(0);
+                        System.out.println("\t" + debugMap.label(address) + " at " + debugMap.location(address));
+                    }
+                }
             }
             if (STEP) {
                 String text = scanner.next();
                 if ("QUIT".equals(text)) {
-                    clock.stop();
+                    machine.stop();
                 }
             }
-        } while (clock.step());
+            // Cores take turns, one cycle each.
+        } while (machine.step());
     }
 }
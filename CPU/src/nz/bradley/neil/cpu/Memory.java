@@ -3,11 +3,12 @@ package nz.bradley.neil.cpu;
 import nz.bradley.neil.cpu.api.MMIO;
 import nz.bradley.neil.cpu.api.MMIOException;
 
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <p>
@@ -35,80 +36,413 @@ import java.util.Map.Entry;
  *     <br>
  *     MMIO units can request a range of memory addresses, but they must
  *     be unique - an address cannot match to multiple MMIO units.
+ *     With <code>counters=true</code>, reads and writes are counted for
+ *     each unit.
+ * </p>
+ * <p>
+ *     <b>Integers</b>
+ *     <br>
+ *     Integers are stored big-endian, and need not be aligned.  An
+ *     integer that runs past the end of RAM reads the missing bytes as
+ *     <code>0</code>, and writes only the bytes that fit.
+ * </p>
+ * <p>
+ *     <b>RAM</b>
+ *     <br>
+ *     RAM up to {@value #DENSE_LIMIT} bytes is held in a single array by
+ *     default.  Larger sizes, up to the full 4GB address space, or any
+ *     size configured with <code>paged=true</code>, use sparse pages
+ *     that are only allocated once written.  Paged RAM may also be held
+ *     off the Java heap with <code>offheap=true</code>.  RAM restored
+ *     from a {@link Snapshot} is always paged, sharing the snapshot's
+ *     pages until they are written, and so is RAM forked with
+ *     {@link Machine#fork()}, on both sides of the fork.
+ * </p>
+ * <p>
+ *     <b>Sharing</b>
+ *     <br>
+ *     Several {@link CPU} cores may share one Memory, each running on
+ *     its own clock thread.  Once a second core is added, RAM follows
+ *     this ordering model:
+ *     <ul>
+ *         <li>Each core sees its own loads and stores in program
+ *             order.</li>
+ *         <li>Every load is an acquire, and every store a release.  A
+ *             core that loads a value another core stored therefore
+ *             also sees everything that core stored before it, so a
+ *             flag written last publishes the data written first.</li>
+ *         <li>Bytes, and aligned integers, are each read and written in
+ *             a single access, so are not seen half-written.  Unaligned
+ *             integers, and integers running off the end of RAM, may
+ *             be.</li>
+ *         <li>There are no atomic read-modify-write instructions, so
+ *             cores should hand data over with flags that only one core
+ *             writes.</li>
+ *     </ul>
+ *     MMIO units are not made thread-safe: devices should only be used
+ *     from the first core, and each core's own registers only from that
+ *     core.  In lock-step mode (see {@link Clock}), each step also ends
+ *     with every core seeing every other core's stores.
  * </p>
  */
 public class Memory {
 
-    private byte[] memory;
-    private final Map<Integer, Entry<MMIO, Integer>> MMIOMap;
+    // MMIO dispatch uses a page table covering only the window between
+    // the lowest and highest mapped addresses.  Anything outside that
+    // window is plain RAM, found with a single unsigned comparison.
+    // Only pages holding a mapping have an entry: indexed directly while
+    // they fill most of the window, otherwise found by binary search of
+    // their sorted numbers, so devices far apart cost no more.
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static final long DENSE_LIMIT = 64L * 1024 * 1024;
+
+    // Code watching, for the block cache: one bit per line of RAM that
+    // cached code was decoded from, with each long covering 4KB, and
+    // each chunk of longs allocated on first use.
+    static final int CODE_LINE_SIZE = 64;
+    static final int CODE_LINE_SHIFT = 6;
+    private static final int CODE_WORD_SHIFT = CODE_LINE_SHIFT + 6;
+    private static final int CODE_CHUNK_SHIFT = CODE_WORD_SHIFT + 6;
+
+    private RAM memory;
+    private int cores;
+    private boolean shared;
+    private BlockCache code;
+    private long[][] codeLines;
+    private final TreeMap<Long, Mapping> mappings;
+    private int mmioBase;
+    private long mmioSpan;
+    private Mapping[][] mmioPages;
+    // Sorted numbers of the pages in mmioPages, or null if it is indexed
+    // directly by page number.
+    private int[] mmioPageNumbers;
+    private boolean counting;
+    private boolean offHeap;
 
     public Memory() {
-        MMIOMap = new HashMap<>();
+        mappings = new TreeMap<>();
+        mmioPages = new Mapping[0][];
     }
 
     public Memory configure(String config) {
-        int loc = config.indexOf("size=");
-        int size = 4096;
-        if (loc >= 0) {
-            size = Integer.parseInt(config.substring(loc + 5));
+        long size = 4096;
+        Boolean paged = null;
+        offHeap = false;
+        String[] configs = config.strip().split("[\\s=]");
+        for (int i = 0; i + 1 < configs.length; i += 2) {
+            switch (configs[i]) {
+                case "size" -> size = Long.parseLong(configs[i + 1]);
+                case "paged" -> paged = Boolean.parseBoolean(configs[i + 1]);
+                case "offheap" -> offHeap = Boolean.parseBoolean(configs[i + 1]);
+                case "counters" -> counting = Boolean.parseBoolean(configs[i + 1]);
+            }
         }
-        memory = new byte[size];
+        if (paged == null) {
+            paged = size > DENSE_LIMIT || offHeap;
+        }
+        memory = paged ? new PagedRAM(size, offHeap) : new DenseRAM(size);
         return this;
     }
 
     public void registerMMIO(MMIO mmio) throws MMIOException {
         var mapping = mmio.registerMapping();
-        for (int i = 0; i < mapping.getValue(); i++) {
-            int key = mapping.getKey() + i;
-            if (MMIOMap.containsKey(key)) {
-                throw new MMIOException("Invalid mapping: address " + key + " already mapped to " + MMIOMap.get(key).getKey().getName());
-            } else {
-                MMIOMap.put(key, Map.entry(mmio, i));
+        long start = Integer.toUnsignedLong(mapping.getKey());
+        long end = start + mapping.getValue();
+        if (end <= start) {
+            return;
+        }
+        var below = mappings.floorEntry(end - 1);
+        if (below != null && below.getValue().end > start) {
+            long key = Math.max(start, below.getKey());
+            throw new MMIOException("Invalid mapping: address " + (int)key + " already mapped to " + below.getValue().mmio.getName());
+        }
+        mappings.put(start, new Mapping(mmio, start, end));
+        buildPageTable();
+    }
+
+    private void buildPageTable() {
+        long low = mappings.firstKey();
+        long high = mappings.lastEntry().getValue().end;
+        TreeMap<Integer, Mapping[]> pages = new TreeMap<>();
+        for (var mapping: mappings.values()) {
+            for (long from = mapping.start - low, to = mapping.end - low; from < to; ) {
+                long next = Math.min(to, (from | PAGE_MASK) + 1);
+                Mapping[] page = pages.computeIfAbsent((int)(from >>> PAGE_SHIFT), n -> new Mapping[PAGE_SIZE]);
+                Arrays.fill(page, (int)from & PAGE_MASK, (int)((next - 1) & PAGE_MASK) + 1, mapping);
+                from = next;
+            }
+        }
+        long span = (high - low + PAGE_MASK) >>> PAGE_SHIFT;
+        if (span <= 4L * pages.size()) {
+            mmioPages = new Mapping[(int)span][];
+            pages.forEach((number, page) -> mmioPages[number] = page);
+            mmioPageNumbers = null;
+        } else {
+            mmioPages = pages.values().toArray(new Mapping[0][]);
+            mmioPageNumbers = pages.keySet().stream().mapToInt(Integer::intValue).toArray();
+        }
+        mmioBase = (int)low;
+        mmioSpan = high - low;
+    }
+
+    /**
+     * Adds a core using this memory.  Once there is more than one, RAM
+     * accesses are ordered as described above.
+     */
+    void addCore() {
+        if (++cores > 1) {
+            shared = true;
+        }
+    }
+
+    /**
+     * @return True once more than one core uses this memory.
+     */
+    boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Asks for writes to the RAM behind cached code to be reported.
+     *
+     * @param cache The cache to report writes to.
+     */
+    void watchCode(BlockCache cache) {
+        code = cache;
+        codeLines = new long[(int)((memory.size() + (1L << CODE_CHUNK_SHIFT) - 1) >>> CODE_CHUNK_SHIFT)][];
+    }
+
+    /**
+     * Marks a range of RAM as holding cached code.
+     *
+     * @param start The first address.
+     * @param end   The address after the last.
+     */
+    void markCode(int start, int end) {
+        for (long line = Integer.toUnsignedLong(start) >>> CODE_LINE_SHIFT,
+             last = (Integer.toUnsignedLong(end) - 1) >>> CODE_LINE_SHIFT; line <= last; line++) {
+            long address = line << CODE_LINE_SHIFT;
+            int chunk = (int)(address >>> CODE_CHUNK_SHIFT);
+            if (codeLines[chunk] == null) {
+                codeLines[chunk] = new long[1 << (CODE_CHUNK_SHIFT - CODE_WORD_SHIFT)];
+            }
+            codeLines[chunk][(int)(address >>> CODE_WORD_SHIFT) & ((1 << (CODE_CHUNK_SHIFT - CODE_WORD_SHIFT)) - 1)] |= 1L << line;
+        }
+    }
+
+    // Drops cached code from the lines covering [address, address + length).
+    private void written(int address, int length) {
+        long first = Integer.toUnsignedLong(address) >>> CODE_LINE_SHIFT;
+        long last = (Integer.toUnsignedLong(address) + length - 1) >>> CODE_LINE_SHIFT;
+        for (long line = first; line <= last; line++) {
+            long start = line << CODE_LINE_SHIFT;
+            int chunk = (int)(start >>> CODE_CHUNK_SHIFT);
+            if (chunk >= codeLines.length || codeLines[chunk] == null) {
+                continue;
+            }
+            int word = (int)(start >>> CODE_WORD_SHIFT) & ((1 << (CODE_CHUNK_SHIFT - CODE_WORD_SHIFT)) - 1);
+            if ((codeLines[chunk][word] & 1L << line) != 0) {
+                codeLines[chunk][word] &= ~(1L << line);
+                code.invalidate(start, start + CODE_LINE_SIZE);
             }
         }
     }
 
+    /**
+     * @return The size of RAM, in bytes.
+     */
+    long size() {
+        return memory.size();
+    }
+
+    /**
+     * Gets a page of RAM, for a snapshot.
+     *
+     * @param page  The page number, counting {@link PagedRAM#PAGE_SIZE}
+     *              bytes at a time.
+     * @return      The page, read-only, or null if never written.
+     */
+    ByteBuffer readPage(int page) {
+        return memory.readPage(page);
+    }
+
+    /**
+     * Replaces RAM with paged RAM sharing a snapshot's pages, which are
+     * copied as they are written.  Every other page reads as
+     * <code>0</code>.
+     *
+     * @param pages     The page numbers.
+     * @param contents  Each page, read-only.
+     */
+    void restorePages(int[] pages, ByteBuffer[] contents) {
+        PagedRAM ram = memory instanceof PagedRAM paged && paged.pageCount() == 0
+                ? paged
+                : new PagedRAM(memory.size(), offHeap);
+        for (int i = 0; i < pages.length; i++) {
+            ram.share(pages[i], contents[i]);
+        }
+        memory = ram;
+    }
+
+    /**
+     * Replaces RAM with a fork of another memory's, sharing every page
+     * until either memory writes it.  Dense RAM is paged first, so the
+     * parent's RAM is paged from then on.  Neither memory may be in use
+     * while it is forked.
+     *
+     * @param parent    The memory to fork, the same size as this one.
+     */
+    void forkFrom(Memory parent) {
+        if (!(parent.memory instanceof PagedRAM)) {
+            parent.memory = PagedRAM.over(parent.memory, parent.offHeap);
+        }
+        memory = ((PagedRAM)parent.memory).fork();
+    }
+
+    /**
+     * @return Reads from each MMIO unit, by name, if configured with
+     *         <code>counters=true</code>.
+     */
+    public Map<String, Long> getMMIOReads() {
+        Map<String, Long> counts = new TreeMap<>();
+        mappings.values().forEach(mapping -> counts.merge(mapping.mmio.getName(), mapping.reads.sum(), Long::sum));
+        return counts;
+    }
+
+    /**
+     * @return Writes to each MMIO unit, by name, if configured with
+     *         <code>counters=true</code>.
+     */
+    public Map<String, Long> getMMIOWrites() {
+        Map<String, Long> counts = new TreeMap<>();
+        mappings.values().forEach(mapping -> counts.merge(mapping.mmio.getName(), mapping.writes.sum(), Long::sum));
+        return counts;
+    }
+
+    /**
+     * Checks whether an address is plain RAM, rather than mapped to an
+     * MMIO unit or outside RAM altogether.
+     *
+     * @param address   The address to check.
+     * @return          True for plain RAM.
+     */
+    boolean isRam(int address) {
+        return lookup(address) == null && memory.contains(address);
+    }
+
+    private Mapping lookup(int address) {
+        long delta = Integer.toUnsignedLong(address - mmioBase);
+        if (delta >= mmioSpan) {
+            return null;
+        }
+        int number = (int)(delta >>> PAGE_SHIFT);
+        Mapping[] page;
+        if (mmioPageNumbers == null) {
+            page = mmioPages[number];
+        } else {
+            int i = Arrays.binarySearch(mmioPageNumbers, number);
+            page = i < 0 ? null : mmioPages[i];
+        }
+        return page == null ? null : page[(int)delta & PAGE_MASK];
+    }
+
     public byte readByte(int address) {
-        if (MMIOMap.containsKey(address)) {
-            var mmio = MMIOMap.get(address);
-            return mmio.getKey().readByte(mmio.getValue());
+        var mapping = lookup(address);
+        if (mapping != null) {
+            if (counting) {
+                mapping.reads.increment();
+            }
+            return mapping.mmio.readByte(mapping.offset(address));
+        } else if (shared) {
+            byte b = memory.readByte(address);
+            VarHandle.acquireFence();
+            return b;
         } else {
-            return memory[address];
+            return memory.readByte(address);
         }
     }
 
     public int readInteger(int address) {
-        if (MMIOMap.containsKey(address)) {
-            var mmio = MMIOMap.get(address);
-            return mmio.getKey().readInteger(mmio.getValue());
+        var mapping = lookup(address);
+        if (mapping != null) {
+            if (counting) {
+                mapping.reads.increment();
+            }
+            return mapping.mmio.readInteger(mapping.offset(address));
+        } else if (shared) {
+            int i = memory.readInteger(address);
+            VarHandle.acquireFence();
+            return i;
         } else {
-            byte[] temp = Arrays.copyOfRange(memory, address, address + 4);
-            return ByteBuffer.wrap(temp).getInt();
+            return memory.readInteger(address);
         }
     }
 
     public void writeByte(int address, byte b) {
-        if (MMIOMap.containsKey(address)) {
-            var mmio = MMIOMap.get(address);
-            mmio.getKey().writeByte(mmio.getValue(), b);
+        var mapping = lookup(address);
+        if (mapping != null) {
+            if (counting) {
+                mapping.writes.increment();
+            }
+            mapping.mmio.writeByte(mapping.offset(address), b);
         } else {
-            memory[address] = b;
+            if (shared) {
+                VarHandle.releaseFence();
+            }
+            memory.writeByte(address, b);
+            if (codeLines != null) {
+                written(address, 1);
+            }
         }
     }
 
     public void writeInteger(int address, int i) {
-        if (MMIOMap.containsKey(address)) {
-            var mmio = MMIOMap.get(address);
-            mmio.getKey().writeInteger(mmio.getValue(), i);
+        var mapping = lookup(address);
+        if (mapping != null) {
+            if (counting) {
+                mapping.writes.increment();
+            }
+            mapping.mmio.writeInteger(mapping.offset(address), i);
         } else {
-            memory[address    ] = (byte)(i >>> 24       );
-            memory[address + 1] = (byte)(i >>> 16 & 0xFF);
-            memory[address + 2] = (byte)(i >>>  8 & 0xFF);
-            memory[address + 3] = (byte)(i        & 0xFF);
+            if (shared) {
+                VarHandle.releaseFence();
+            }
+            memory.writeInteger(address, i);
+            if (codeLines != null) {
+                written(address, 4);
+            }
         }
     }
 
     public void bootstrap(byte[] bootloader) {
-        System.arraycopy(bootloader,0,memory, 0,bootloader.length);
+        memory.load(0, bootloader);
+        if (codeLines != null) {
+            written(0, bootloader.length);
+        }
+    }
+
+    /**
+     * A registered MMIO unit, and the unsigned address range it covers.
+     */
+    private static final class Mapping {
+
+        private final MMIO mmio;
+        private final long start, end;
+        // Any core may access any unit, so these are striped.
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder writes = new LongAdder();
+
+        private Mapping(MMIO mmio, long start, long end) {
+            this.mmio = mmio;
+            this.start = start;
+            this.end = end;
+        }
+
+        private int offset(int address) {
+            return (int)(Integer.toUnsignedLong(address) - start);
+        }
     }
 }
@@ -1,12 +1,47 @@
 package nz.bradley.neil.cpu;
 
 
+import nz.bradley.neil.cpu.api.MMIO;
 import nz.bradley.neil.cpu.impl.MMIOBase;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 public class PC extends MMIOBase {
 
+    private static final VarHandle LOCATION;
+
+    static {
+        try {
+            LOCATION = MethodHandles.lookup().findVarHandle(PC.class, "location", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private int start;
     private int location, nextLocation;
 
+    /**
+     * Also takes <code>start=</code>, the address to start executing
+     * from, so each core of a shared memory can run its own code.
+     */
+    @Override
+    public MMIO configure(String config) {
+        super.configure(config);
+        String[] configs = config.split("[\\s=]");
+        for (int i = 0; i + 1 < configs.length; i += 2) {
+            if ("start".equals(configs[i])) {
+                start = Integer.parseInt(configs[i + 1]);
+            }
+        }
+        sendReset();
+        return this;
+    }
+
     @Override
     public byte readByte(int offset) {
         return 0;
@@ -33,9 +68,43 @@ public class PC extends MMIOBase {
         nextLocation++;
     }
 
+    /**
+     * Moves straight to an instruction, without waiting for a clock.
+     * Used when several instructions are executed in one clock.
+     *
+     * @param location  The instruction being executed.
+     */
+    void moveTo(int location) {
+        this.location = location;
+        this.nextLocation = location + 1;
+    }
+
+    /**
+     * Reads the address of the instruction being executed from another
+     * thread, without slowing the clock's thread down.  The address may
+     * be a little behind.
+     *
+     * @return  The address.
+     */
+    int sample() {
+        return (int)LOCATION.getOpaque(this);
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(location);
+        out.writeInt(nextLocation);
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        location = in.readInt();
+        nextLocation = in.readInt();
+    }
+
     @Override
     public void sendReset() {
-        location = 0;
-        nextLocation = 0;
+        location = start;
+        nextLocation = start;
     }
 }
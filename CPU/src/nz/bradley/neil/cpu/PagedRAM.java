@@ -0,0 +1,245 @@
+package nz.bradley.neil.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ *     Sparse RAM, split into fixed-size pages that are only allocated
+ *     when first written with a non-zero value.  Untouched pages read
+ *     as <code>0</code>, so a guest may address the full 4GB space
+ *     while only paying for the pages it actually uses.
+ * </p>
+ * <p>
+ *     A page may also be shared, read-only, with a snapshot it was
+ *     restored from: it is copied the first time it is written, so
+ *     only the pages a machine changes cost it any memory.
+ * </p>
+ * <p>
+ *     {@link #fork()} shares every table with a new RAM the same way.
+ *     Neither side owns a shared table: the first write to one copies
+ *     the table, with each of its pages read-only, and then copies the
+ *     page written.  Forking costs one table per 4MB of RAM, and each
+ *     side only pays for the pages it writes afterwards.
+ * </p>
+ * <p>
+ *     Pages are found through a two-level table, and may be held on or
+ *     off the Java heap.  Tables and pages are published with release
+ *     stores and read with acquire loads, and allocated under a lock, so
+ *     several cores may share the RAM without losing a new page.
+ * </p>
+ */
+final class PagedRAM extends RAM {
+
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_SHIFT;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    private static final VarHandle TABLES = MethodHandles.arrayElementVarHandle(ByteBuffer[][].class);
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(ByteBuffer[].class);
+    private static final VarHandle OWNED = MethodHandles.arrayElementVarHandle(boolean[].class);
+
+    private final boolean offHeap;
+    private final ByteBuffer[][] tables;
+    // Tables this RAM may write pages into; the rest are shared.
+    private final boolean[] owned;
+
+    PagedRAM(long size, boolean offHeap) {
+        this(size, offHeap, new ByteBuffer[(int)((((size + PAGE_MASK) >>> PAGE_SHIFT) + TABLE_MASK) >>> TABLE_SHIFT)][]);
+    }
+
+    private PagedRAM(long size, boolean offHeap, ByteBuffer[][] tables) {
+        super(size);
+        this.offHeap = offHeap;
+        this.tables = tables;
+        this.owned = new boolean[tables.length];
+    }
+
+    /**
+     * Pages a dense RAM's contents, sharing them read-only until
+     * written, so its old array must not be written again.
+     *
+     * @param memory    The contents, as {@link DenseRAM} pages them.
+     * @param offHeap   Whether copied pages are held off the Java heap.
+     * @return          The paged RAM.
+     */
+    static PagedRAM over(RAM memory, boolean offHeap) {
+        var ram = new PagedRAM(memory.size(), offHeap);
+        for (long page = 0, count = (memory.size() + PAGE_MASK) >>> PAGE_SHIFT; page < count; page++) {
+            ram.install((int)page << PAGE_SHIFT, memory.readPage((int)page));
+        }
+        return ram;
+    }
+
+    /**
+     * Copies this RAM, sharing every table and page with the copy until
+     * either side writes to it.  Neither side may be written while it
+     * is forked.
+     *
+     * @return The copy.
+     */
+    synchronized PagedRAM fork() {
+        var fork = new PagedRAM(size, offHeap, tables.clone());
+        for (int t = 0; t < owned.length; t++) {
+            OWNED.setRelease(owned, t, false);
+        }
+        return fork;
+    }
+
+    /**
+     * Gets the number of pages that have been allocated.
+     *
+     * @return The count of touched pages.
+     */
+    int pageCount() {
+        return count(false);
+    }
+
+    /**
+     * Gets the number of pages this RAM may write without copying: its
+     * own, rather than shared with a snapshot or a fork.
+     *
+     * @return The count of private pages.
+     */
+    int privatePageCount() {
+        return count(true);
+    }
+
+    private int count(boolean privateOnly) {
+        int count = 0;
+        for (int t = 0; t < tables.length; t++) {
+            var table = tables[t];
+            if (table != null && (!privateOnly || owned[t])) {
+                for (var page: table) {
+                    if (page != null && (!privateOnly || !page.isReadOnly())) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private ByteBuffer page(int address) {
+        var table = (ByteBuffer[])TABLES.getAcquire(tables, address >>> (PAGE_SHIFT + TABLE_SHIFT));
+        return table == null ? null : (ByteBuffer)PAGES.getAcquire(table, (address >>> PAGE_SHIFT) & TABLE_MASK);
+    }
+
+    // Finds a page this RAM may write to, or null.
+    private ByteBuffer writablePage(int address) {
+        if (!(boolean)OWNED.getAcquire(owned, address >>> (PAGE_SHIFT + TABLE_SHIFT))) {
+            return null;
+        }
+        var page = page(address);
+        return page == null || page.isReadOnly() ? null : page;
+    }
+
+    // Allocates a page to write to, copying a shared one.
+    private synchronized ByteBuffer allocate(int address) {
+        own(address >>> (PAGE_SHIFT + TABLE_SHIFT));
+        var shared = page(address);
+        if (shared != null && !shared.isReadOnly()) {
+            // Another core got here first.
+            return shared;
+        }
+        var page = offHeap ? ByteBuffer.allocateDirect(PAGE_SIZE) : ByteBuffer.allocate(PAGE_SIZE);
+        if (shared != null) {
+            page.put(0, shared, 0, shared.limit());
+        }
+        install(address, page);
+        return page;
+    }
+
+    // Takes a table to write pages into, copying a shared one with
+    // every page read-only.
+    private void own(int t) {
+        if (owned[t]) {
+            return;
+        }
+        var table = new ByteBuffer[TABLE_SIZE];
+        if (tables[t] != null) {
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                var page = tables[t][i];
+                table[i] = page == null || page.isReadOnly() ? page : page.asReadOnlyBuffer();
+            }
+        }
+        TABLES.setRelease(tables, t, table);
+        OWNED.setRelease(owned, t, true);
+    }
+
+    private void install(int address, ByteBuffer page) {
+        int t = address >>> (PAGE_SHIFT + TABLE_SHIFT);
+        own(t);
+        PAGES.setRelease(tables[t], (address >>> PAGE_SHIFT) & TABLE_MASK, page);
+    }
+
+    /**
+     * Shares a page until it is first written, when it is copied.
+     *
+     * @param page      The page number.
+     * @param contents  The page, read-only, {@link #PAGE_SIZE} bytes
+     *                  long.
+     */
+    synchronized void share(int page, ByteBuffer contents) {
+        install(page << PAGE_SHIFT, contents);
+    }
+
+    @Override
+    ByteBuffer readPage(int page) {
+        var contents = page(page << PAGE_SHIFT);
+        return contents == null ? null : contents.asReadOnlyBuffer();
+    }
+
+    @Override
+    byte readByte(int address) {
+        checkAddress(address);
+        var page = page(address);
+        return page == null ? 0 : page.get(address & PAGE_MASK);
+    }
+
+    @Override
+    int readInteger(int address) {
+        int offset = address & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4 && contains(address, 3)) {
+            var page = page(address);
+            return page == null ? 0 : page.getInt(offset);
+        } else {
+            return readIntegerBytewise(address);
+        }
+    }
+
+    @Override
+    void writeByte(int address, byte b) {
+        checkAddress(address);
+        var page = writablePage(address);
+        if (page == null) {
+            if (b == 0 && page(address) == null) {
+                return;
+            }
+            page = allocate(address);
+        }
+        page.put(address & PAGE_MASK, b);
+    }
+
+    @Override
+    void writeInteger(int address, int i) {
+        int offset = address & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4 && contains(address, 3)) {
+            var page = writablePage(address);
+            if (page == null) {
+                if (i == 0 && page(address) == null) {
+                    return;
+                }
+                page = allocate(address);
+            }
+            page.putInt(offset, i);
+        } else {
+            writeIntegerBytewise(address, i);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package nz.bradley.neil.cpu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ *     <b>Profiler</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Samples where a {@link Machine}'s cores are from a background
+ *     thread, and counts the samples by guest label.  Cores don't help,
+ *     or wait: the profiler reads each core's $PC, and its link
+ *     register, as the clock thread left them, so the guest runs at full
+ *     speed.  With the block engines, $PC only moves between blocks, so
+ *     samples land on block boundaries.
+ * </p>
+ * <p>
+ *     <b>Stacks</b>
+ *     <br>
+ *     Each sample is a stack of frames: the core's name, the label the
+ *     link register points into (<code>$RETURN</code> by default) if it
+ *     isn't <code>0</code>, and the label $PC is in.  The guest has no
+ *     call stack, so the link register is only a caller while a routine
+ *     that was given its return address in it is running.  A negative
+ *     link register leaves the caller out.
+ *     {@link #writeCollapsed(Path)} writes the stacks in the collapsed
+ *     format read by flame graph tools.
+ * </p>
+ * <p>
+ *     <b>Labels</b>
+ *     <br>
+ *     An address belongs to the closest label at or below it.  The
+ *     Assembler writes a program's labels next to it, in a
+ *     <code>.map</code> file, read by {@link #readLabels(Path)}, and in
+ *     its {@link nz.bradley.neil.cpu.api.DebugMap}, whose
+ *     <code>labels()</code> will do as well.
+ *     Addresses below every label are shown in hex.
+ * </p>
+ */
+public final class Profiler implements AutoCloseable {
+
+    public static final int RETURN = 15;
+
+    private final Machine machine;
+    private final NavigableMap<Integer, String> labels;
+    private final int link;
+    private final long intervalNanos;
+    private final Thread thread;
+    private volatile boolean sampling = true;
+
+    // Samples by stack, written by the profiler's thread.
+    private final Map<String, long[]> stacks = new HashMap<>();
+
+    /**
+     * Starts sampling every core, through <code>$RETURN</code>.
+     *
+     * @param machine   The machine.
+     * @param labels    The program's labels, by address.
+     * @param interval  Time between samples, in microseconds.
+     */
+    public Profiler(Machine machine, NavigableMap<Integer, String> labels, long interval) {
+        this(machine, labels, interval, RETURN);
+    }
+
+    /**
+     * Starts sampling every core.
+     *
+     * @param machine   The machine.
+     * @param labels    The program's labels, by address.
+     * @param interval  Time between samples, in microseconds.
+     * @param link      The register the guest passes return addresses
+     *                  in, or <code>-1</code> for none.
+     */
+    public Profiler(Machine machine, NavigableMap<Integer, String> labels, long interval, int link) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+        }
+        this.machine = machine;
+        this.labels = new TreeMap<>(labels);
+        this.link = link;
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(interval);
+        thread = new Thread(this::run, "Profiler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads a <code>.map</code> file written by the Assembler: one label
+     * per line, as a hex address and a name.
+     *
+     * @param file  The file.
+     * @return      The labels, by address.
+     * @throws IOException  If the file can't be read.
+     */
+    public static NavigableMap<Integer, String> readLabels(Path file) throws IOException {
+        NavigableMap<Integer, String> labels = new TreeMap<>(Integer::compareUnsigned);
+        for (String line: Files.readAllLines(file)) {
+            String[] parts = line.strip().split("\\s+", 2);
+            if (parts.length == 2) {
+                labels.putIfAbsent(Integer.parseUnsignedInt(parts[0], 16), parts[1]);
+            }
+        }
+        return labels;
+    }
+
+    private void run() {
+        List<CPU> cpus = machine.getCPUs();
+        List<PC> pcs = machine.getPCs();
+        List<Clock> clocks = machine.getClocks();
+        StringBuilder stack = new StringBuilder();
+        while (sampling) {
+            LockSupport.parkNanos(intervalNanos);
+            for (int i = 0; i < cpus.size(); i++) {
+                if (!clocks.get(i).isRunning()) {
+                    continue;
+                }
+                stack.setLength(0);
+                stack.append(cpus.get(i).getName());
+                int caller = link < 0 ? 0 : cpus.get(i).sampleRegister(link);
+                if (caller != 0) {
+                    stack.append(';').append(label(caller));
+                }
+                stack.append(';').append(label(pcs.get(i).sample()));
+                synchronized (stacks) {
+                    stacks.computeIfAbsent(stack.toString(), key -> new long[1])[0]++;
+                }
+            }
+        }
+    }
+
+    private String label(int address) {
+        var label = labels.floorEntry(address);
+        return label == null ? String.format("0x%08X", address) : label.getValue();
+    }
+
+    /**
+     * Stops sampling, and waits for the profiler's thread.
+     */
+    @Override
+    public void close() {
+        sampling = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Samples so far, by stack, with frames separated by
+     *         <code>;</code>.
+     */
+    public Map<String, Long> getStacks() {
+        Map<String, Long> counts = new TreeMap<>();
+        synchronized (stacks) {
+            stacks.forEach((stack, count) -> counts.put(stack, count[0]));
+        }
+        return counts;
+    }
+
+    /**
+     * @return Samples so far, by the label $PC was in, most first.
+     */
+    public Map<String, Long> getHotSpots() {
+        Map<String, Long> counts = new HashMap<>();
+        getStacks().forEach((stack, count) -> counts.merge(stack.substring(stack.lastIndexOf(';') + 1), count, Long::sum));
+        Map<String, Long> sorted = new LinkedHashMap<>();
+        counts.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+        return sorted;
+    }
+
+    /**
+     * Writes the samples so far, one stack per line, followed by its
+     * count.
+     *
+     * @param file  The file to write.
+     * @throws IOException  If the file can't be written.
+     */
+    public void writeCollapsed(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        getStacks().forEach((stack, count) -> lines.add(stack + " " + count));
+        Files.write(file, lines);
+    }
+}
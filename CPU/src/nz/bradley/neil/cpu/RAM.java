@@ -0,0 +1,101 @@
+package nz.bradley.neil.cpu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ *     Backing store for the plain RAM behind {@link Memory}.
+ * </p>
+ * <p>
+ *     Addresses are unsigned.  Integers are big-endian and need not be
+ *     aligned; an integer that runs past the end of RAM reads the
+ *     missing bytes as <code>0</code>, and writes only the bytes that
+ *     fit.  Accessing a byte outside RAM throws
+ *     {@link ArrayIndexOutOfBoundsException}.
+ * </p>
+ */
+abstract class RAM {
+
+    /**
+     * Largest RAM that may be configured: the full 32-bit address
+     * space.
+     */
+    static final long MAX_SIZE = 1L << 32;
+
+    protected final long size;
+
+    protected RAM(long size) {
+        if (size <= 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid RAM size: " + size);
+        }
+        this.size = size;
+    }
+
+    long size() {
+        return size;
+    }
+
+    abstract byte readByte(int address);
+
+    abstract int readInteger(int address);
+
+    abstract void writeByte(int address, byte b);
+
+    abstract void writeInteger(int address, int i);
+
+    /**
+     * Gets a page of RAM, {@link PagedRAM#PAGE_SIZE} bytes from the
+     * start of RAM at a time, for a snapshot.
+     *
+     * @param page  The page number.
+     * @return      The page, read-only, and shorter if RAM ends within
+     *              it, or null if it has never been written.
+     */
+    abstract ByteBuffer readPage(int page);
+
+    /**
+     * Copies a block of bytes into RAM.
+     *
+     * @param address   Where the first byte is written.
+     * @param data      The bytes to write.
+     */
+    void load(int address, byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            writeByte(address + i, data[i]);
+        }
+    }
+
+    protected final boolean contains(int address) {
+        return Integer.toUnsignedLong(address) < size;
+    }
+
+    // Checks the byte at address + offset, without wrapping past 4GB.
+    protected final boolean contains(int address, int offset) {
+        return Integer.toUnsignedLong(address) + offset < size;
+    }
+
+    protected final void checkAddress(int address) {
+        if (!contains(address)) {
+            throw new ArrayIndexOutOfBoundsException("Address " + Integer.toUnsignedString(address) + " is outside RAM of size " + size);
+        }
+    }
+
+    // Slow path for integers that straddle a page, or the end of RAM.
+    protected final int readIntegerBytewise(int address) {
+        int value = readByte(address) & 0xFF;
+        for (int i = 1; i < 4; i++) {
+            value <<= 8;
+            if (contains(address, i)) {
+                value |= readByte(address + i) & 0xFF;
+            }
+        }
+        return value;
+    }
+
+    protected final void writeIntegerBytewise(int address, int i) {
+        writeByte(address, (byte)(i >>> 24));
+        for (int b = 1; b < 4 && contains(address, b); b++) {
+            writeByte(address + b, (byte)(i >>> (24 - b * 8)));
+        }
+    }
+}
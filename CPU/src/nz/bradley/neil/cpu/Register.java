@@ -1,125 +1,99 @@
 package nz.bradley.neil.cpu;
 
+/**
+ * A single register, viewed through a {@link RegisterFile}.
+ */
 public class Register {
 
-    private long work;
-    private boolean c, v;
+    private final RegisterFile file;
+    private final int index;
 
     public Register() {
-        reset();
+        this(new RegisterFile(1), 0);
+    }
+
+    public Register(RegisterFile file, int index) {
+        this.file = file;
+        this.index = index;
     }
 
     public void reset() {
-        set(0);
+        file.reset(index);
     }
 
     public void set(long value) {
-        work = value;
-        c = v = false;
+        file.set(index, value);
     }
 
     public int get() {
-        return (int)work;
+        return file.get(index);
     }
 
     public boolean isZero() {
-        return work == 0L;
+        return file.isZero(index);
     }
 
     public boolean isNegative() {
-        return work < 0L;
+        return file.isNegative(index);
     }
 
     public boolean hadCarry() {
-        return c;
+        return file.hadCarry(index);
     }
 
     public boolean hadOverflow() {
-        return v;
+        return file.hadOverflow(index);
     }
 
     public void addTo(long value) {
-        work += value;
-        c = work > Integer.MAX_VALUE || work < Integer.MIN_VALUE;
-        v = false;
+        file.addTo(index, value);
     }
 
     public void subtract(long value) {
-        addTo(-value);
+        file.subtract(index, value);
     }
 
     public void multiplyBy(long value) {
-        work *= value;
-        c = false;
-        v = work > Integer.MAX_VALUE || work < Integer.MIN_VALUE;
+        file.multiplyBy(index, value);
     }
 
     public void divideBy(long value) {
-        if (value != 0) {
-            work /= value;
-            c = false;
-            v = work > Integer.MAX_VALUE || work < Integer.MIN_VALUE;
-        } else {
-            c = true;
-            v = true;
-        }
+        file.divideBy(index, value);
     }
 
     public void complement() {
-        work = ~work;
-        c = false;
-        v = false;
+        file.complement(index);
     }
 
     public void negate() {
-        work = -work;
-        c = false;
-        v = false;
+        file.negate(index);
     }
 
     public void rotateLeft(long value) {
-        value %= 32;
-        int w = (int)work;
-        int hi = w >>> (32 - value);
-        int lo = w << value;
-        work = hi | lo;
-        c = false;
-        v = false;
+        file.rotateLeft(index, value);
     }
 
     public void shiftLeft(long value) {
-        work <<= value;
-        c = false;
-        v = false;
+        file.shiftLeft(index, value);
     }
 
     public void shiftRight(long value) {
-        work >>>= value;
-        c = false;
-        v = false;
+        file.shiftRight(index, value);
     }
 
     public void signedShiftRight(long value) {
-        work >>= value;
-        c = false;
-        v = false;
+        file.signedShiftRight(index, value);
     }
 
     public void and(long value) {
-        work &= value;
-        c = false;
-        v = false;
+        file.and(index, value);
     }
 
     public void or(long value) {
-        work |= value;
-        c = false;
-        v = false;
+        file.or(index, value);
     }
 
     public void xor(long value) {
-        work ^= value;
-        c = false;
-        v = false;
+        file.xor(index, value);
     }
 }
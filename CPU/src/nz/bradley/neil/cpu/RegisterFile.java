@@ -0,0 +1,194 @@
+package nz.bradley.neil.cpu;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     <b>Register File</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Holds every register's working value in one primitive array, and
+ *     every register's CARRY and OVERFLOW flags packed into a single
+ *     <code>int</code>, two bits per register.  All operations take the
+ *     register's index, so the CPU can keep <code>$TARGET</code> as an
+ *     index rather than an object.
+ * </p>
+ * <p>
+ *     <b>Working Values</b>
+ *     <br>
+ *     Registers are 32-bit, but each is worked on at 64-bit precision.
+ *     CARRY and OVERFLOW are detected from the untruncated result, which
+ *     is also what ZERO, NEGATIVE and the right shifts see.
+ *     {@link RegisterFile#get(int)} truncates to 32 bits.
+ * </p>
+ */
+public final class RegisterFile {
+
+    /**
+     * Most registers a single file can hold, limited by the flag word.
+     */
+    public static final int MAX_REGISTERS = Integer.SIZE / 2;
+
+    private static final int CARRY = 1;
+    private static final int OVERFLOW = 2;
+    private static final int FLAGS = CARRY | OVERFLOW;
+
+    private static final VarHandle WORK = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] work;
+    private int flags;
+
+    public RegisterFile(int count) {
+        if (count < 1 || count > MAX_REGISTERS) {
+            throw new IllegalArgumentException("Invalid register count: " + count);
+        }
+        work = new long[count];
+    }
+
+    public int size() {
+        return work.length;
+    }
+
+    public void reset() {
+        Arrays.fill(work, 0L);
+        flags = 0;
+    }
+
+    public void reset(int r) {
+        set(r, 0L);
+    }
+
+    /**
+     * Writes every working value and flag, for a snapshot.
+     */
+    void saveState(DataOutput out) throws IOException {
+        for (long value: work) {
+            out.writeLong(value);
+        }
+        out.writeInt(flags);
+    }
+
+    void restoreState(DataInput in) throws IOException {
+        for (int r = 0; r < work.length; r++) {
+            work[r] = in.readLong();
+        }
+        flags = in.readInt();
+    }
+
+    public void set(int r, long value) {
+        work[r] = value;
+        flags &= ~(FLAGS << (r << 1));
+    }
+
+    public int get(int r) {
+        return (int)work[r];
+    }
+
+    /**
+     * Reads a register from a thread other than the one executing,
+     * such as a profiler's.  The value may be a little behind, but is
+     * never torn.
+     *
+     * @param r The register.
+     * @return  Its value, truncated to 32 bits.
+     */
+    public int sample(int r) {
+        return (int)(long)WORK.getOpaque(work, r);
+    }
+
+    public boolean isZero(int r) {
+        return work[r] == 0L;
+    }
+
+    public boolean isNegative(int r) {
+        return work[r] < 0L;
+    }
+
+    public boolean hadCarry(int r) {
+        return (flags >>> (r << 1) & CARRY) != 0;
+    }
+
+    public boolean hadOverflow(int r) {
+        return (flags >>> (r << 1) & OVERFLOW) != 0;
+    }
+
+    private void update(int r, long value, boolean c, boolean v) {
+        work[r] = value;
+        int shift = r << 1;
+        flags = flags & ~(FLAGS << shift) | ((c ? CARRY : 0) | (v ? OVERFLOW : 0)) << shift;
+    }
+
+    private static boolean outOfRange(long value) {
+        return value > Integer.MAX_VALUE || value < Integer.MIN_VALUE;
+    }
+
+    public void addTo(int r, long value) {
+        long result = work[r] + value;
+        update(r, result, outOfRange(result), false);
+    }
+
+    public void subtract(int r, long value) {
+        addTo(r, -value);
+    }
+
+    public void multiplyBy(int r, long value) {
+        long result = work[r] * value;
+        update(r, result, false, outOfRange(result));
+    }
+
+    public void divideBy(int r, long value) {
+        if (value != 0) {
+            long result = work[r] / value;
+            update(r, result, false, outOfRange(result));
+        } else {
+            update(r, work[r], true, true);
+        }
+    }
+
+    public void complement(int r) {
+        set(r, ~work[r]);
+    }
+
+    public void negate(int r) {
+        set(r, -work[r]);
+    }
+
+    public void rotateLeft(int r, long value) {
+        value %= 32;
+        int w = (int)work[r];
+        int hi = w >>> (32 - value);
+        int lo = w << value;
+        set(r, hi | lo);
+    }
+
+    public void shiftLeft(int r, long value) {
+        set(r, work[r] << value);
+    }
+
+    public void shiftRight(int r, long value) {
+        set(r, work[r] >>> value);
+    }
+
+    public void signedShiftRight(int r, long value) {
+        set(r, work[r] >> value);
+    }
+
+    public void and(int r, long value) {
+        set(r, work[r] & value);
+    }
+
+    public void or(int r, long value) {
+        set(r, work[r] | value);
+    }
+
+    public void xor(int r, long value) {
+        set(r, work[r] ^ value);
+    }
+}
@@ -0,0 +1,275 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.MMIO;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <p>
+ *     <b>Snapshot</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     A whole {@link Machine}, saved part way through running: its
+ *     config, the state of every core and device, and its RAM.  Any
+ *     number of machines may be restored from one snapshot, each
+ *     carrying on from where it was taken, without booting or warming
+ *     up again.
+ * </p>
+ * <p>
+ *     <b>Restoring</b>
+ *     <br>
+ *     {@link #open(Path)} maps the file, and {@link #restore()} builds a
+ *     machine from the saved config, then hands each core and device its
+ *     state through {@link MMIO#restoreState(DataInput)}.  RAM isn't
+ *     read at all: the restored machine's RAM is paged, sharing the
+ *     mapped pages read-only, so the host reads each page in when the
+ *     guest first touches it, and a page is only copied when the guest
+ *     first writes it.  Restoring therefore costs about as much as
+ *     building the machine, however large its RAM.
+ * </p>
+ * <p>
+ *     <b>Not Kept</b>
+ *     <br>
+ *     Output the guest has already written, cached and compiled code,
+ *     and counters all start afresh.  A restored machine isn't
+ *     monitored, as the snapshot's <code>MONITOR</code> name may still
+ *     be in use; open an {@link Instrumentation} for it under another
+ *     name if needed.  A snapshot should
+ *     be taken between calls to {@link Machine#runFor(long)}, or once
+ *     {@link Machine#run()} has returned, never while cores are running.
+ * </p>
+ * <p>
+ *     <b>Format</b>
+ *     <br>
+ *     Integers are big-endian.
+ *     <ul>
+ *         <li>Magic <code>8SNP</code>, the version, and the length of
+ *             the header.</li>
+ *         <li>Header: config count, then (key, value) for each; unit
+ *             count, then (name, length, state) for each core's clock,
+ *             PC and CPU, then each device, in config order; page
+ *             count, then the number of each page of RAM holding
+ *             anything but zeros.</li>
+ *         <li>Pages: from the first multiple of
+ *             {@link PagedRAM#PAGE_SIZE} after the header, each page in
+ *             full, in the header's order.</li>
+ *     </ul>
+ * </p>
+ */
+public final class Snapshot {
+
+    static final int MAGIC = 0x3853_4E50;     // "8SNP"
+    static final int VERSION = 1;
+
+    // Pages are mapped this many bytes at a time.
+    private static final int MAPPING_SIZE = 1 << 30;
+
+    private final List<Map.Entry<String, String>> configs;
+    private final List<Map.Entry<String, byte[]>> units;
+    private final int[] pages;
+    private final ByteBuffer[] contents;
+
+    private Snapshot(List<Map.Entry<String, String>> configs, List<Map.Entry<String, byte[]>> units,
+                     int[] pages, ByteBuffer[] contents) {
+        this.configs = configs;
+        this.units = units;
+        this.pages = pages;
+        this.contents = contents;
+    }
+
+    /**
+     * Saves a machine.
+     *
+     * @param machine   The machine, which isn't running.
+     * @param file      Where to save it.
+     * @throws IOException  If the file can't be written.
+     */
+    public static void write(Machine machine, Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(machine.getConfigs().size());
+        for (var config: machine.getConfigs()) {
+            header.writeUTF(config.getKey());
+            header.writeUTF(config.getValue());
+        }
+        List<MMIO> units = machine.units();
+        header.writeInt(units.size());
+        for (MMIO unit: units) {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            unit.saveState(new DataOutputStream(state));
+            header.writeUTF(Objects.toString(unit.getName(), ""));
+            header.writeInt(state.size());
+            state.writeTo(header);
+        }
+        Memory memory = machine.getMemory();
+        ByteBuffer zeros = ByteBuffer.allocate(PagedRAM.PAGE_SIZE);
+        List<Integer> written = new ArrayList<>();
+        for (long page = 0, count = (memory.size() + PagedRAM.PAGE_MASK) >>> PagedRAM.PAGE_SHIFT; page < count; page++) {
+            ByteBuffer contents = memory.readPage((int)page);
+            if (contents != null && contents.mismatch(zeros.slice(0, contents.remaining())) >= 0) {
+                written.add((int)page);
+            }
+        }
+        header.writeInt(written.size());
+        for (int page: written) {
+            header.writeInt(page);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.write(new byte[pagesStart(bytes.size()) - out.size()]);
+            byte[] page = new byte[PagedRAM.PAGE_SIZE];
+            for (int number: written) {
+                ByteBuffer contents = memory.readPage(number);
+                contents.get(0, page, 0, contents.remaining());
+                out.write(page);
+            }
+        }
+    }
+
+    // Where the pages start, after a header of the given length.
+    private static int pagesStart(int headerLength) {
+        return (12 + headerLength + PagedRAM.PAGE_MASK) & ~PagedRAM.PAGE_MASK;
+    }
+
+    /**
+     * Maps a snapshot, ready to restore.  The mapping is shared by every
+     * machine restored from it.
+     *
+     * @param file  The snapshot.
+     * @return      The snapshot.
+     * @throws IOException  If it isn't a snapshot of this version, or
+     *                      can't be mapped.
+     */
+    public static Snapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer start = read(channel, 0, 12);
+            if (start.getInt(0) != MAGIC || start.getInt(4) != VERSION) {
+                throw new IOException("Not a version " + VERSION + " snapshot: " + file);
+            }
+            ByteBuffer bytes = read(channel, 12, start.getInt(8));
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+
+            List<Map.Entry<String, String>> configs = new ArrayList<>();
+            for (int i = header.readInt(); i > 0; i--) {
+                configs.add(Map.entry(header.readUTF(), header.readUTF()));
+            }
+            List<Map.Entry<String, byte[]>> units = new ArrayList<>();
+            for (int i = header.readInt(); i > 0; i--) {
+                String name = header.readUTF();
+                units.add(Map.entry(name, header.readNBytes(header.readInt())));
+            }
+            int[] pages = new int[header.readInt()];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = header.readInt();
+            }
+
+            // The mappings outlive the channel.
+            ByteBuffer[] contents = new ByteBuffer[pages.length];
+            int perMapping = MAPPING_SIZE / PagedRAM.PAGE_SIZE;
+            long position = pagesStart(bytes.capacity());
+            for (int first = 0; first < pages.length; first += perMapping) {
+                int count = Math.min(perMapping, pages.length - first);
+                ByteBuffer mapping = channel.map(
+                        FileChannel.MapMode.READ_ONLY, position, (long)count * PagedRAM.PAGE_SIZE
+                );
+                for (int i = 0; i < count; i++) {
+                    contents[first + i] = mapping.slice(i * PagedRAM.PAGE_SIZE, PagedRAM.PAGE_SIZE);
+                }
+                position += (long)count * PagedRAM.PAGE_SIZE;
+            }
+            return new Snapshot(copied(configs), List.copyOf(units), pages, contents);
+        }
+    }
+
+    /**
+     * Adapts a config for a machine copied from another: RAM is paged,
+     * so a machine whose pages will be shared doesn't first build RAM
+     * only for it to be replaced, and the <code>MONITOR</code> line is
+     * dropped, as the other machine may still hold its name.
+     *
+     * @param configs   The config, in order.
+     * @return          The config for the copy.
+     */
+    static List<Map.Entry<String, String>> copied(List<Map.Entry<String, String>> configs) {
+        return configs.stream()
+                .filter(config -> !config.getKey().equals("MONITOR"))
+                .map(config -> config.getKey().equals("RAM")
+                        ? Map.entry(config.getKey(), config.getValue() + " paged=true")
+                        : config)
+                .toList();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Snapshot ends early");
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Restores a machine whose output is kept.
+     *
+     * @return  The machine, ready to carry on running.
+     */
+    public Machine restore() {
+        return restore(new Machine(configs));
+    }
+
+    /**
+     * Restores a machine writing its output to a stream.
+     *
+     * @param output    Where the guest's output goes.
+     * @return          The machine, ready to carry on running.
+     */
+    public Machine restore(PrintStream output) {
+        return restore(new Machine(configs, output));
+    }
+
+    private Machine restore(Machine machine) {
+        List<MMIO> restored = machine.units();
+        if (restored.size() != units.size()) {
+            throw new IllegalStateException("Snapshot has " + units.size() + " units, machine has " + restored.size());
+        }
+        // Clocks come first, so units schedule themselves from the
+        // restored count.
+        for (int i = 0; i < units.size(); i++) {
+            MMIO unit = restored.get(i);
+            String name = units.get(i).getKey();
+            if (!name.equals(Objects.toString(unit.getName(), ""))) {
+                throw new IllegalStateException("Snapshot unit " + name + " doesn't match " + unit.getName());
+            }
+            try {
+                unit.restoreState(new DataInputStream(new ByteArrayInputStream(units.get(i).getValue())));
+            } catch (IOException e) {
+                throw new IllegalStateException("Damaged state for unit " + name, e);
+            }
+        }
+        machine.getMemory().restorePages(pages, contents);
+        return machine;
+    }
+
+    /**
+     * @return Pages of RAM in the snapshot.
+     */
+    public int getPageCount() {
+        return pages.length;
+    }
+}
@@ -0,0 +1,236 @@
+package nz.bradley.neil.cpu;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ *     <b>Time Sharing</b>
+ * </p>
+ * <p>
+ *     <b>Overview</b>
+ *     <br>
+ *     Runs any number of {@link Machine}s on a fixed number of worker
+ *     threads, a quantum of cycles at a time, so guests that never halt
+ *     don't each need a thread of their own.  A guest finishes when it
+ *     halts, throws, or has used its cycle budget.
+ * </p>
+ * <p>
+ *     <b>Fairness</b>
+ *     <br>
+ *     Guests are picked by stride scheduling.  Each guest has a pass
+ *     value, and the guest with the lowest pass runs next.  After each
+ *     quantum, the guest's pass grows by the cycles its {@link Clock}
+ *     actually counted, divided by its priority.  Guests of equal
+ *     priority therefore take turns, round-robin, and a guest of
+ *     priority 3 gets three times the cycles of a guest of priority 1.
+ *     A new guest starts at the pass of the guest last picked, so it
+ *     neither waits behind the long-running guests nor takes over from
+ *     them.
+ * </p>
+ */
+public final class TimeSharing implements AutoCloseable {
+
+    public static final long DEFAULT_QUANTUM = 10_000;
+
+    // Pass added per cycle at priority 1.
+    private static final long STRIDE = 1L << 20;
+
+    /**
+     * A machine being run.
+     */
+    public static final class Guest {
+
+        private final String name;
+        private final Machine machine;
+        private final long stride;
+        private final long budget;
+        private final long order;
+        private final CompletableFuture<Farm.Result> result = new CompletableFuture<>();
+        private long pass;
+        private volatile long cycles;
+
+        private Guest(String name, Machine machine, int priority, long budget, long order) {
+            this.name = name;
+            this.machine = machine;
+            this.stride = STRIDE / priority;
+            this.budget = budget;
+            this.order = order;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Cycles the guest has run so far.
+         */
+        public long getCycles() {
+            return cycles;
+        }
+
+        /**
+         * @return Completes once the guest has halted, failed, used its
+         *         budget, or been cancelled by {@link #close()}.
+         */
+        public CompletableFuture<Farm.Result> result() {
+            return result;
+        }
+    }
+
+    private final long quantum;
+    private final Thread[] workers;
+    // Pass of the guest last picked, which no queued pass is behind.
+    private long virtualTime;
+    // Passes wrap after about 2^43 cycles at priority 1, so guests are
+    // ordered by how far their pass is ahead of the virtual time.
+    private final PriorityQueue<Guest> ready = new PriorityQueue<>(
+            Comparator.<Guest>comparingLong(g -> g.pass - virtualTime).thenComparingLong(g -> g.order)
+    );
+    private long submitted;
+    private boolean closed;
+
+    /**
+     * Starts the workers.
+     *
+     * @param threads   Number of worker threads.
+     * @param quantum   Cycles each guest runs before the next is picked.
+     */
+    public TimeSharing(int threads, long quantum) {
+        if (threads < 1 || quantum < 1) {
+            throw new IllegalArgumentException("Invalid threads or quantum: " + threads + ", " + quantum);
+        }
+        this.quantum = quantum;
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, "TimeSharing-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Adds a machine, to run until it halts.
+     *
+     * @param name      Identifies the guest in its result.
+     * @param machine   The machine, loaded and not yet run.
+     * @param priority  Share of the workers, relative to other guests.
+     * @return          The guest.
+     */
+    public Guest submit(String name, Machine machine, int priority) {
+        return submit(name, machine, priority, Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds a machine.
+     *
+     * @param name      Identifies the guest in its result.
+     * @param machine   The machine, loaded and not yet run.
+     * @param priority  Share of the workers, relative to other guests,
+     *                  from 1.
+     * @param budget    The most cycles to run it for.
+     * @return          The guest.
+     */
+    public Guest submit(String name, Machine machine, int priority, long budget) {
+        if (priority < 1) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        synchronized (ready) {
+            if (closed) {
+                throw new IllegalStateException("Time sharing closed");
+            }
+            Guest guest = new Guest(name, machine, priority, budget, submitted++);
+            guest.pass = virtualTime;
+            ready.add(guest);
+            ready.notify();
+            return guest;
+        }
+    }
+
+    /**
+     * Stops the workers once their current quanta are done, and cancels
+     * every guest that hasn't finished.  If interrupted while waiting for
+     * the workers, stops waiting and keeps the interrupt; the workers
+     * still stop after their current quanta.
+     */
+    @Override
+    public void close() {
+        synchronized (ready) {
+            closed = true;
+            ready.notifyAll();
+        }
+        try {
+            for (Thread worker: workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ready) {
+            for (Guest guest: ready) {
+                finish(guest, false, new CancellationException("Time sharing closed"));
+            }
+            ready.clear();
+        }
+    }
+
+    private void work() {
+        Guest guest;
+        while ((guest = take()) != null) {
+            runQuantum(guest);
+        }
+    }
+
+    private Guest take() {
+        synchronized (ready) {
+            while (!closed && ready.isEmpty()) {
+                try {
+                    ready.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            if (closed) {
+                return null;
+            }
+            Guest guest = ready.poll();
+            virtualTime = guest.pass;
+            return guest;
+        }
+    }
+
+    private void runQuantum(Guest guest) {
+        long before = guest.machine.getCycles();
+        boolean halted;
+        Throwable failure = null;
+        try {
+            halted = guest.machine.runFor(Math.min(quantum, guest.budget - guest.cycles));
+        } catch (Throwable e) {
+            // Errors too, or the worker would die with the guest
+            // unfinished.
+            halted = false;
+            failure = e;
+        }
+        long ran = guest.machine.getCycles() - before;
+        guest.cycles += ran;
+        if (halted || failure != null || guest.cycles >= guest.budget) {
+            finish(guest, halted, failure);
+            return;
+        }
+        synchronized (ready) {
+            guest.pass += Math.max(ran, 1L) * guest.stride;
+            if (closed) {
+                finish(guest, false, new CancellationException("Time sharing closed"));
+            } else {
+                ready.add(guest);
+                ready.notify();
+            }
+        }
+    }
+
+    private static void finish(Guest guest, boolean halted, Throwable failure) {
+        guest.result.complete(new Farm.Result(guest.name, halted, guest.cycles, guest.machine.getOutput(), failure));
+    }
+}
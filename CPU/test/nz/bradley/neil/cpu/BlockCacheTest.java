@@ -0,0 +1,54 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import org.junit.jupiter.api.*;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockCacheTest {
+
+    private static Memory memory(byte fill) {
+        byte[] program = new byte[256];
+        Arrays.fill(program, fill);
+        Memory memory = new Memory().configure("size=4096");
+        memory.bootstrap(program);
+        return memory;
+    }
+
+    @Test
+    void writesOnlyDropBlocksOnTheirLine() {
+        Memory memory = memory(Instruction.HLT.getValue());
+        BlockCache cache = new BlockCache(memory);
+        BlockCache.Block[] decoded = new BlockCache.Block[256];
+        for (int i = 0; i < decoded.length; i++) {
+            decoded[i] = cache.get(i);
+        }
+        assertEquals(256, cache.size());
+
+        memory.writeByte(100, Instruction.HLT.getValue());
+        assertEquals(192, cache.size());
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals(i < 64 || i >= 128, cache.get(i) == decoded[i], "Block at " + i);
+        }
+        assertEquals(256, cache.size());
+    }
+
+    @Test
+    void blocksAcrossLinesAreDroppedFromEither() {
+        Memory memory = memory(Instruction.NOP.getValue());
+        memory.writeByte(72, Instruction.HLT.getValue());
+        BlockCache cache = new BlockCache(memory);
+        BlockCache.Block block = cache.get(56);
+        assertEquals(72, block.addresses[block.length - 1]);
+
+        memory.writeByte(0, Instruction.NOP.getValue());
+        assertEquals(0, cache.size());
+        BlockCache.Block again = cache.get(56);
+        assertNotSame(block, again);
+        memory.writeByte(127, Instruction.NOP.getValue());
+        assertEquals(0, cache.size());
+        assertNotSame(again, cache.get(56));
+    }
+}
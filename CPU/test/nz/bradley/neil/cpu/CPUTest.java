@@ -1,4 +1,169 @@
 package nz.bradley.neil.cpu;
 
+import nz.bradley.neil.cpu.api.Instruction;
+import nz.bradley.neil.cpu.api.MMIO;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Phaser;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class CPUTest {
+
+    private static class Program {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Program op(Instruction instruction) {
+            bytes.write(instruction.getValue());
+            return this;
+        }
+
+        Program op(Instruction instruction, int operand) {
+            bytes.write(instruction.getValue() | operand);
+            return this;
+        }
+
+        Program imm(Instruction instruction, int immediate) {
+            bytes.write(instruction.getValue());
+            bytes.writeBytes(ByteBuffer.allocate(4).putInt(immediate).array());
+            return this;
+        }
+
+        Program at(int address) {
+            while (bytes.size() < address) {
+                bytes.write(Instruction.NOP.getValue());
+            }
+            return this;
+        }
+
+        byte[] toBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // Sums 5 + 4 + 3 + 2 + 1 into r2.
+    private static final byte[] SUM = new Program()
+            .op(Instruction.SEL, 2).op(Instruction.CLR)
+            .op(Instruction.SEL, 1).imm(Instruction.LDN, 5)
+            .op(Instruction.SEL, 2).op(Instruction.ADD, 1)
+            .op(Instruction.SEL, 1).op(Instruction.DEC)
+            .imm(Instruction.JZ, 22).imm(Instruction.J, 8)
+            .op(Instruction.HLT)
+            .toBytes();
+
+    // Calls the routine at 40 (r2++), patches it to r2 -= 2, then calls
+    // it again.
+    private static final byte[] PATCH = new Program()
+            .op(Instruction.SEL, 4).imm(Instruction.LDN, 11).imm(Instruction.J, 40)
+            .op(Instruction.SEL, 1).imm(Instruction.LDN, 0xFAFA_34FD).imm(Instruction.STN, 41)
+            .op(Instruction.SEL, 4).imm(Instruction.LDN, 33).imm(Instruction.J, 40)
+            .op(Instruction.HLT)
+            .at(40).op(Instruction.SEL, 2).op(Instruction.INC).op(Instruction.JR, 4)
+            .toBytes();
+
+    // The core starting at 0 waits for the core starting at 32 to set
+    // the flag at 48, and copies it into r2.
+    private static final byte[] HANDOVER = new Program()
+            .op(Instruction.SEL, 1).imm(Instruction.LDN, 48)
+            .op(Instruction.SEL, 2).op(Instruction.LDR, 1).imm(Instruction.JZ, 6)
+            .op(Instruction.HLT)
+            .at(32).op(Instruction.SEL, 1).imm(Instruction.LDN, 48)
+            .op(Instruction.SEL, 2).imm(Instruction.LDN, 7)
+            .op(Instruction.STR, 1).op(Instruction.HLT)
+            .toBytes();
+
+    private Clock clock;
+    private CPU cpu;
+
+    private void run(byte[] program, String engine) {
+        clock = new Clock();
+        clock.configure("name=Clock0 address=0 range=0");
+        PC pc = new PC();
+        pc.configure("name=$PC address=0 range=0");
+        Memory memory = new Memory().configure("size=64");
+        memory.bootstrap(program);
+        Set<MMIO> mmios = new LinkedHashSet<>(List.of(clock, pc));
+        cpu = new CPU(clock, memory, pc, mmios);
+        cpu.configure("name=CPU0 address=0 range=0 " + engine);
+        clock.startStepping();
+        for (int i = 0; i < 1000 && clock.step(); i++) {
+        }
+        assertFalse(clock.isRunning());
+    }
+
+    @Test
+    void interpreterRunsProgram() {
+        run(SUM, "");
+        assertEquals(15, cpu.readInteger(2));
+        assertEquals(0, cpu.readInteger(1));
+    }
+
+    @Test
+    void blocksMatchInterpreter() {
+        for (byte[] program: new byte[][]{SUM, PATCH}) {
+            run(program, "");
+            int result = cpu.readInteger(2);
+            long cycles = clock.getCycle();
+            for (String engine: new String[]{"engine=blocks", "engine=blocks exact=false", "engine=jit threshold=1"}) {
+                run(program, engine);
+                assertEquals(result, cpu.readInteger(2));
+                assertEquals(cycles, clock.getCycle());
+            }
+        }
+    }
+
+    @Test
+    void writesToCodeAreSeenByBlocks() {
+        run(PATCH, "engine=blocks");
+        assertEquals(-1, cpu.readInteger(2));
+    }
+
+    @Test
+    void writesToCodeAreSeenByCompiledBlocks() {
+        run(PATCH, "engine=jit threshold=1");
+        assertEquals(-1, cpu.readInteger(2));
+    }
+
+    @Test
+    void coresHandOverThroughSharedMemory() throws InterruptedException {
+        for (String sync: new String[]{"sync=free", "sync=lockstep"}) {
+            Memory memory = new Memory().configure("size=64");
+            memory.bootstrap(HANDOVER);
+            CPU[] cores = new CPU[2];
+            Clock[] clocks = new Clock[2];
+            for (int i = 0; i < 2; i++) {
+                clocks[i] = new Clock();
+                clocks[i].configure("name=Clock" + i + " address=0 range=0 " + sync);
+                PC pc = new PC();
+                pc.configure("name=$PC" + i + " address=0 range=0 start=" + i * 32);
+                cores[i] = new CPU(clocks[i], memory, pc, new LinkedHashSet<>(List.of(clocks[i], pc)));
+            }
+            Phaser phaser = new Phaser(1);
+            for (int i = 0; i < 2; i++) {
+                cores[i].configure("name=CPU" + i + " address=0 range=0");
+                clocks[i].synchronise(phaser);
+                clocks[i].start();
+            }
+            phaser.arriveAndDeregister();
+            for (Clock c: clocks) {
+                c.await();
+            }
+            assertTrue(memory.isShared());
+            assertEquals(7, cores[0].readInteger(2));
+        }
+    }
+
+    @Test
+    void blockEnginesNeedTheirOwnMemory() {
+        Memory memory = new Memory().configure("size=64");
+        new CPU(new Clock(), memory, new PC(), new LinkedHashSet<>());
+        CPU second = new CPU(new Clock(), memory, new PC(), new LinkedHashSet<>());
+        assertThrows(IllegalStateException.class, () -> second.configure("name=CPU1 address=0 range=0 engine=blocks"));
+    }
 }
@@ -1,4 +1,165 @@
 package nz.bradley.neil.cpu;
 
+import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.api.Scheduler;
+import nz.bradley.neil.cpu.impl.MMIOBase;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Phaser;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class ClockTest {
+
+    private static class Recorder extends MMIOBase {
+
+        private final List<Long> clocks = new ArrayList<>();
+        private final long period;
+        private Scheduler scheduler;
+
+        Recorder(long period) {
+            this.period = period;
+        }
+
+        @Override
+        public boolean attach(Scheduler scheduler) {
+            if (period == 0) {
+                return false;
+            }
+            this.scheduler = scheduler;
+            scheduler.schedule(this, period);
+            return true;
+        }
+
+        @Override
+        public void sendClock() {
+            clocks.add(scheduler == null ? -1L : scheduler.getCycle());
+            if (scheduler != null) {
+                scheduler.schedule(this, scheduler.getCycle() + period);
+            }
+        }
+
+        @Override
+        public byte readByte(int offset) {
+            return 0;
+        }
+
+        @Override
+        public int readInteger(int offset) {
+            return 0;
+        }
+
+        @Override
+        public void writeByte(int offset, byte data) {
+        }
+
+        @Override
+        public void writeInteger(int offset, int data) {
+        }
+
+        @Override
+        public void sendReset() {
+        }
+    }
+
+    // A CPU that just repeats J 0.
+    private static Clock machine(Recorder... recorders) {
+        Clock clock = machine("", recorders);
+        clock.startStepping();
+        return clock;
+    }
+
+    private static Clock machine(String config, Recorder... recorders) {
+        Clock clock = new Clock();
+        clock.configure("name=Clock0 address=0 range=0 " + config);
+        PC pc = new PC();
+        pc.configure("name=$PC address=0 range=0");
+        Set<MMIO> mmios = new LinkedHashSet<>(List.of(clock, pc));
+        mmios.addAll(List.of(recorders));
+        Memory memory = new Memory().configure("size=64");
+        memory.bootstrap(new byte[]{(byte)0xF2, 0, 0, 0, 0});
+        new CPU(clock, memory, pc, mmios).configure("name=CPU0 address=0 range=0");
+        return clock;
+    }
+
+    @Test
+    void scheduledUnitsAreClockedOnTheirDeadlines() {
+        Recorder fast = new Recorder(3);
+        Recorder slow = new Recorder(7);
+        Clock clock = machine(slow, fast);
+        for (int i = 0; i < 22; i++) {
+            clock.step();
+        }
+        assertEquals(List.of(3L, 6L, 9L, 12L, 15L, 18L, 21L), fast.clocks);
+        assertEquals(List.of(7L, 14L, 21L), slow.clocks);
+    }
+
+    @Test
+    void unitsThatDeclineAreClockedEveryCycle() {
+        Recorder legacy = new Recorder(0);
+        Clock clock = machine(legacy);
+        for (int i = 0; i < 5; i++) {
+            clock.step();
+        }
+        assertEquals(5, legacy.clocks.size());
+    }
+
+    @Test
+    void reschedulingReplacesTheDeadline() {
+        Recorder recorder = new Recorder(10);
+        Clock clock = machine(recorder);
+        clock.schedule(recorder, 2);
+        for (int i = 0; i < 11; i++) {
+            clock.step();
+        }
+        assertEquals(List.of(2L), recorder.clocks);
+    }
+
+    @Test
+    void threadRunsUntilStopped() throws InterruptedException {
+        Clock clock = machine("");
+        clock.start();
+        assertThrows(IllegalStateException.class, clock::step);
+        Thread.sleep(20);
+        clock.stop();
+        clock.await();
+        assertFalse(clock.isRunning());
+        assertTrue(clock.getCycle() > 0);
+        assertTrue(clock.getAchievedHz() > 0);
+    }
+
+    @Test
+    void pacedThreadKeepsToItsFrequency() throws InterruptedException {
+        Clock clock = machine("freq=2000");
+        clock.start();
+        Thread.sleep(250);
+        clock.stop();
+        clock.await();
+        // Half a second's worth would mean it isn't paced at all.
+        assertTrue(clock.getCycle() < 1000, "ran " + clock.getCycle() + " cycles");
+        assertTrue(clock.getCycle() >= 2, "ran " + clock.getCycle() + " cycles");
+    }
+
+    @Test
+    void lockStepClocksStayTogether() throws InterruptedException {
+        Clock first = machine("sync=lockstep quantum=4");
+        Clock second = machine("sync=lockstep quantum=4");
+        Phaser phaser = new Phaser(1);
+        first.synchronise(phaser);
+        second.synchronise(phaser);
+        first.start();
+        second.start();
+        phaser.arriveAndDeregister();
+        Thread.sleep(20);
+        first.stop();
+        second.stop();
+        first.await();
+        second.await();
+        assertTrue(Math.abs(first.getCycle() - second.getCycle()) <= 4,
+                first.getCycle() + " and " + second.getCycle() + " cycles");
+    }
 }
@@ -0,0 +1,85 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.Instruction;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CountersTest {
+
+    // Counts r1 down from 3, then halts.
+    private static final byte[] COUNTDOWN = {
+            0x01, (byte)0xF0, 0, 0, 0, 3,
+            (byte)0xFA, (byte)0xF3, 0, 0, 0, 17, (byte)0xF2, 0, 0, 0, 6,
+            (byte)0xFF
+    };
+
+    // Spins at 0, while the timer's handler at 5 ends each interrupt.
+    private static final byte[] TICKS = {
+            (byte)0xF2, 0, 0, 0, 0,
+            (byte)0xF1, 0, 0, 0x0F, (byte)0x9C, 0x3F
+    };
+
+    private static Machine machine(String cpu, String... extra) {
+        List<String> lines = new ArrayList<>(List.of(
+                "RAM: size=4096 counters=true",
+                "CLOCK: name=Clock0 address=4088 range=8",
+                "PC: name=$PC address=4084 range=4",
+                "CPU: name=CPU0 address=4052 range=32 counters=true " + cpu
+        ));
+        lines.addAll(List.of(extra));
+        return new Machine(Machine.parse(lines));
+    }
+
+    @Test
+    void countsAreOffByDefault() {
+        Machine machine = new Machine(MachineTest.CONFIG);
+        machine.bootstrap(COUNTDOWN);
+        assertTrue(machine.runFor(100));
+        assertNull(machine.getCPUs().get(0).getCounters());
+    }
+
+    @Test
+    void instructionsAndBranchesAreCountedOnEveryEngine() {
+        for (String engine: new String[]{"", "engine=blocks", "engine=blocks exact=false", "engine=jit threshold=1"}) {
+            Machine machine = machine(engine);
+            machine.bootstrap(COUNTDOWN);
+            assertTrue(machine.runFor(100));
+            Counters counters = machine.getCPUs().get(0).getCounters();
+            assertEquals(11, counters.getInstructions(), engine);
+            assertEquals(Map.of(
+                    Instruction.SEL, 1L, Instruction.LDN, 1L, Instruction.DEC, 3L,
+                    Instruction.JZ, 3L, Instruction.J, 2L, Instruction.HLT, 1L
+            ), counters.getInstructionCounts(), engine);
+            assertEquals(1, counters.getBranchesTaken(), engine);
+            assertEquals(2, counters.getBranchesNotTaken(), engine);
+        }
+    }
+
+    @Test
+    void batchesAreAddedWhenTheBudgetRunsOut() {
+        Machine machine = machine("");
+        machine.bootstrap(MachineTest.SPIN);
+        assertFalse(machine.runFor(Counters.BATCH + 10));
+        assertEquals(Counters.BATCH + 10, machine.getCPUs().get(0).getCounters().getInstructions());
+    }
+
+    @Test
+    void interruptsAreCountedByUnit() {
+        Machine machine = machine(
+                "",
+                "INTERRUPTS: name=IRQ0 address=3988 range=48 eoi=manual",
+                "TIMER: name=Timer0 address=4044 range=8 interrupt=5 priority=1 freq=10 enabled=true"
+        );
+        machine.bootstrap(TICKS);
+        machine.runFor(1000);
+        long interrupts = machine.getCPUs().get(0).getCounters().getInterrupts().get("Timer0");
+        assertTrue(interrupts >= 90 && interrupts <= 100, "interrupts: " + interrupts);
+        // Each handler ends its interrupt with a single write.
+        assertTrue(Math.abs(machine.getMemory().getMMIOWrites().get("IRQ0") - interrupts) <= 1);
+    }
+}
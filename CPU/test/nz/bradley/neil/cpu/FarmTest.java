@@ -0,0 +1,83 @@
+package nz.bradley.neil.cpu;
+
+import org.junit.jupiter.api.*;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FarmTest {
+
+    @Test
+    void everyJobGetsItsOwnResult() throws InterruptedException {
+        List<Farm.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            jobs.add(new Farm.Job("job" + i, MachineTest.CONFIG, i % 2 == 0 ? MachineTest.ANSWER : MachineTest.SPIN));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<Farm.Result> results = new Farm(pool).run(jobs, 1000);
+            assertEquals(64, results.size());
+            for (int i = 0; i < 64; i++) {
+                Farm.Result result = results.get(i);
+                assertEquals("job" + i, result.name());
+                assertNull(result.failure());
+                if (i % 2 == 0) {
+                    assertTrue(result.halted());
+                    assertEquals("101010\t0000002A\t42\n", result.output());
+                } else {
+                    assertFalse(result.halted());
+                    assertEquals(1000, result.cycles());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void failuresAreReported() {
+        // Jumps past the end of RAM.
+        byte[] program = {(byte)0xF2, 0, 1, 0, 0};
+        Farm.Result result = Farm.run(new Farm.Job("broken", MachineTest.CONFIG, program), 10_000);
+        assertFalse(result.halted());
+        assertNotNull(result.failure());
+    }
+
+    @Test
+    void errorsAreReported() throws InterruptedException {
+        List<Map.Entry<String, String>> config = new AbstractList<>() {
+            @Override
+            public Map.Entry<String, String> get(int index) {
+                throw new StackOverflowError();
+            }
+
+            @Override
+            public int size() {
+                return 1;
+            }
+        };
+        List<Farm.Result> results = new Farm().run(List.of(new Farm.Job("overflow", config, MachineTest.ANSWER)), 100);
+        assertTrue(results.get(0).failure() instanceof StackOverflowError);
+    }
+
+    @Test
+    void monitoredMachinesAreClosedOnceRun() {
+        List<String> lines = new ArrayList<>(List.of(
+                "RAM: size=4096",
+                "CLOCK: name=Clock0 address=4088 range=8",
+                "PC: name=$PC address=4084 range=4",
+                "CPU: name=CPU0 address=4052 range=32",
+                "FILE_WRITER: name=FileWriter0 address=4040 range=4",
+                "MONITOR: name=Farmed"
+        ));
+        Farm.Job job = new Farm.Job("monitored", Machine.parse(lines), MachineTest.ANSWER);
+        for (int i = 0; i < 2; i++) {
+            assertNull(Farm.run(job, 100).failure());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package nz.bradley.neil.cpu;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InstrumentationTest {
+
+    private static Machine machine(String name) {
+        List<String> lines = new ArrayList<>(List.of(
+                "RAM: size=4096 counters=true",
+                "CLOCK: name=Clock0 address=4088 range=8",
+                "PC: name=$PC address=4084 range=4",
+                "CPU: name=CPU0 address=4052 range=32 counters=true",
+                "FILE_WRITER: name=FileWriter0 address=4040 range=4",
+                "MONITOR: name=" + name
+        ));
+        return new Machine(Machine.parse(lines));
+    }
+
+    @Test
+    void countsArePublishedOverJmx() throws Exception {
+        Machine machine = machine("Published");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("nz.bradley.neil.cpu:type=Machine,name=Published");
+        Instrumentation instrumentation = machine.getInstrumentation();
+        try {
+            machine.bootstrap(MachineTest.ANSWER);
+            assertTrue(machine.runFor(100));
+            assertEquals(Long.valueOf(4), server.getAttribute(name, "Instructions"));
+            assertEquals(1, (long)instrumentation.getMMIOWrites().get("FileWriter0"));
+            assertEquals(Map.of("HLT", 1L, "LDN", 1L, "SEL", 1L, "STN", 1L), instrumentation.getInstructionCounts());
+            assertEquals(4, instrumentation.getHotInstructions().size());
+        } finally {
+            instrumentation.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    void namesMustBeUnique() {
+        try (Instrumentation first = machine("Unique").getInstrumentation()) {
+            assertNotNull(first);
+            assertThrows(IllegalStateException.class, () -> machine("Unique"));
+        }
+    }
+
+    @Test
+    void closingTheMachineFreesItsName() {
+        try (Machine machine = machine("Reused")) {
+            assertNotNull(machine.getInstrumentation());
+        }
+        try (Machine machine = machine("Reused")) {
+            assertNotNull(machine.getInstrumentation());
+        }
+    }
+
+    @Test
+    void forksAreNotMonitored() {
+        try (Machine machine = machine("Forked")) {
+            machine.bootstrap(MachineTest.ANSWER);
+            try (Machine fork = machine.fork()) {
+                assertNull(fork.getInstrumentation());
+                assertTrue(fork.runFor(100));
+            }
+        }
+    }
+
+    @Test
+    void countsAreRecordedByJfr() throws Exception {
+        Path file = Files.createTempFile("instrumentation", ".jfr");
+        try (Machine machine = machine("Recorded"); Recording recording = new Recording()) {
+            recording.enable("nz.bradley.neil.cpu.Execution").withPeriod(Duration.ofMillis(10));
+            recording.enable("nz.bradley.neil.cpu.Instructions");
+            recording.start();
+            machine.bootstrap(MachineTest.SPIN);
+            machine.runFor(10_000);
+            Thread.sleep(100);
+            recording.stop();
+            recording.dump(file);
+
+            long instructions = 0, jumps = 0;
+            for (RecordedEvent event: RecordingFile.readAllEvents(file)) {
+                if (!"Recorded".equals(event.getString("machine"))) {
+                    continue;
+                }
+                switch (event.getEventType().getName()) {
+                    case "nz.bradley.neil.cpu.Execution" -> instructions += event.getLong("instructions");
+                    case "nz.bradley.neil.cpu.Instructions" -> jumps += event.getLong("count");
+                }
+            }
+            assertEquals(10_000, instructions);
+            assertEquals(10_000, jumps);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
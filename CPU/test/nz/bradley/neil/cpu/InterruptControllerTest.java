@@ -0,0 +1,126 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.api.InterruptLine;
+import nz.bradley.neil.cpu.impl.MMIOBase;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InterruptControllerTest {
+
+    private static class Source extends MMIOBase {
+
+        private final int vector, priority;
+        private InterruptLine line;
+
+        Source(int vector, int priority) {
+            this.vector = vector;
+            this.priority = priority;
+        }
+
+        @Override
+        public Integer getInterruptAddress() {
+            return vector;
+        }
+
+        @Override
+        public int getInterruptPriority() {
+            return priority;
+        }
+
+        @Override
+        public boolean connect(InterruptLine line) {
+            this.line = line;
+            return true;
+        }
+
+        @Override
+        public byte readByte(int offset) {
+            return 0;
+        }
+
+        @Override
+        public int readInteger(int offset) {
+            return 0;
+        }
+
+        @Override
+        public void writeByte(int offset, byte data) {
+        }
+
+        @Override
+        public void writeInteger(int offset, int data) {
+        }
+
+        @Override
+        public void sendClock() {
+        }
+
+        @Override
+        public void sendReset() {
+        }
+    }
+
+    private static InterruptController controller(String config, Source... sources) {
+        InterruptController interrupts = new InterruptController();
+        interrupts.configure("name=IRQ0 address=0 range=48 " + config);
+        for (Source source: sources) {
+            interrupts.registerMMIO(source);
+        }
+        return interrupts;
+    }
+
+    @Test
+    void simultaneousInterruptsAreServicedByPriorityThenLine() {
+        Source a = new Source(100, 1), b = new Source(200, 3), c = new Source(300, 1);
+        InterruptController interrupts = controller("eoi=auto", a, b, c);
+        c.line.raise();
+        a.line.raise();
+        b.line.raise();
+        assertTrue(interrupts.isReady());
+        assertEquals(200, interrupts.acknowledge());
+        assertEquals(100, interrupts.acknowledge());
+        assertEquals(300, interrupts.acknowledge());
+        assertFalse(interrupts.isReady());
+    }
+
+    @Test
+    void maskedLinesStayPending() {
+        Source a = new Source(100, 0);
+        InterruptController interrupts = controller("", a);
+        interrupts.writeInteger(4, 0);
+        a.line.raise();
+        assertFalse(interrupts.isReady());
+        assertEquals(1, interrupts.readInteger(0));
+        interrupts.writeInteger(4, -1);
+        assertTrue(interrupts.isReady());
+    }
+
+    @Test
+    void onlyHigherPrioritiesNest() {
+        Source low = new Source(100, 1), same = new Source(200, 1), high = new Source(300, 2);
+        InterruptController interrupts = controller("eoi=manual", low, same, high);
+        low.line.raise();
+        assertEquals(100, interrupts.acknowledge());
+        same.line.raise();
+        assertFalse(interrupts.isReady());
+        high.line.raise();
+        assertTrue(interrupts.isReady());
+        assertEquals(300, interrupts.acknowledge());
+        assertEquals(0b101, interrupts.readInteger(8));
+    }
+
+    @Test
+    void endOfInterruptWaitsForTheNextInstruction() {
+        Source a = new Source(100, 1), b = new Source(200, 1);
+        InterruptController interrupts = controller("eoi=manual", a, b);
+        a.line.raise();
+        b.line.raise();
+        assertEquals(100, interrupts.acknowledge());
+        interrupts.writeInteger(8, 0);
+        // The handler's JR $RETURN executes on this cycle.
+        assertFalse(interrupts.isReady());
+        assertTrue(interrupts.isReady());
+        assertEquals(200, interrupts.acknowledge());
+    }
+}
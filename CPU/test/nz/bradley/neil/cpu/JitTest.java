@@ -0,0 +1,97 @@
+package nz.bradley.neil.cpu;
+
+import nz.bradley.neil.cpu.impl.MMIOBase;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JitTest {
+
+    private static final int SEL = 0x00, LDR = 0x10, ADD = 0x80, SHL = 0xC0, LDN = 0xF0,
+            JZ = 0xF3, INC = 0xF9, CLR = 0xFB, HLT = 0xFF;
+
+    private static class Constant extends MMIOBase {
+
+        Constant() {
+            configure("name=Constant address=32 range=4");
+        }
+
+        @Override
+        public byte readByte(int offset) {
+            return 0;
+        }
+
+        @Override
+        public int readInteger(int offset) {
+            return 42;
+        }
+
+        @Override
+        public void writeByte(int offset, byte data) {
+        }
+
+        @Override
+        public void writeInteger(int offset, int data) {
+        }
+
+        @Override
+        public void sendClock() {
+        }
+
+        @Override
+        public void sendReset() {
+        }
+    }
+
+    private final RegisterFile registers = new RegisterFile(16);
+    private final Clock clock = new Clock();
+    private Memory memory;
+
+    private long run(int... program) {
+        byte[] bytes = new byte[program.length];
+        for (int i = 0; i < program.length; i++) {
+            bytes[i] = (byte)program[i];
+        }
+        memory = new Memory().configure("size=64");
+        memory.registerMMIO(new Constant());
+        memory.bootstrap(bytes);
+        CompiledBlock compiled = new Jit(1).compile(new BlockCache(memory).get(0));
+        assertNotNull(compiled);
+        return compiled.run(registers, memory, clock, 0);
+    }
+
+    @Test
+    void compiledBlocksRunToTheEnd() {
+        clock.startStepping();
+        long result = run(SEL | 2, CLR, INC, INC, SEL | 1, LDN, 0, 0, 0, 7, ADD | 2, SHL | 1, HLT);
+        assertEquals(9, Jit.executed(result));
+        assertEquals(13, Jit.next(result));
+        assertEquals(1, Jit.target(result));
+        assertEquals(2, registers.get(2));
+        assertEquals(18, registers.get(1));
+        assertFalse(clock.isRunning());
+    }
+
+    @Test
+    void conditionalJumpsReturnEitherAddress() {
+        registers.set(1, 0);
+        assertEquals(40, Jit.next(run(SEL | 1, JZ, 0, 0, 0, 40)));
+        registers.set(1, 1);
+        assertEquals(6, Jit.next(run(SEL | 1, JZ, 0, 0, 0, 40)));
+    }
+
+    @Test
+    void loadsFromMmioDeoptimise() {
+        long result = run(SEL | 1, LDN, 0, 0, 0, 32, LDR | 1, HLT);
+        assertEquals(2, Jit.executed(result));
+        assertEquals(1, Jit.target(result));
+        assertEquals(32, registers.get(1));
+    }
+
+    @Test
+    void loadsFromRamDoNot() {
+        long result = run(SEL | 1, LDN, 0, 0, 0, 8, LDR | 1, HLT, 0x12, 0x34, 0x56, 0x78);
+        assertEquals(4, Jit.executed(result));
+        assertEquals(0x1234_5678, registers.get(1));
+    }
+}
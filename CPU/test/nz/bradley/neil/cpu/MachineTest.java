@@ -0,0 +1,130 @@
+package nz.bradley.neil.cpu;
+
+import org.junit.jupiter.api.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MachineTest {
+
+    static final Set<Map.Entry<String, String>> CONFIG = Machine.parse(List.of(
+            "# A minimal machine.",
+            "RAM: size=4096",
+            "CLOCK: name=Clock0 address=4088 range=8",
+            "PC: name=$PC address=4084 range=4",
+            "CPU: name=CPU0 address=4052 range=32",
+            "FILE_WRITER: name=FileWriter0 address=4040 range=4"
+    ));
+
+    // Writes 42 to the file writer, then halts.
+    static final byte[] ANSWER = {
+            0x01, (byte)0xF0, 0, 0, 0, 42, (byte)0xF1, 0, 0, 0x0F, (byte)0xC8, (byte)0xFF
+    };
+
+    // Never halts.
+    static final byte[] SPIN = {(byte)0xF2, 0, 0, 0, 0};
+
+    @Test
+    void parseSkipsCommentsAndKeepsOrder() {
+        assertEquals(5, CONFIG.size());
+        assertEquals("RAM", CONFIG.iterator().next().getKey());
+    }
+
+    @Test
+    void outputIsCaptured() {
+        Machine machine = new Machine(CONFIG);
+        machine.bootstrap(ANSWER);
+        assertTrue(machine.runFor(100));
+        assertEquals("101010\t0000002A\t42\n", machine.getOutput());
+        assertEquals(4, machine.getCycles());
+    }
+
+    @Test
+    void budgetStopsMachinesThatNeverHalt() {
+        Machine machine = new Machine(CONFIG);
+        machine.bootstrap(SPIN);
+        assertFalse(machine.runFor(500));
+        assertEquals(500, machine.getCycles());
+        assertFalse(machine.runFor(250));
+        assertEquals(750, machine.getCycles());
+    }
+
+    @Test
+    void budgetsCountCyclesNotBlocks() {
+        // Thirty INCs, then J 0: a block of 31 instructions.
+        byte[] loop = new byte[35];
+        Arrays.fill(loop, 0, 30, (byte)0xF9);
+        loop[30] = (byte)0xF2;
+        for (String engine: new String[]{"", "engine=blocks", "engine=blocks exact=false", "engine=jit threshold=1"}) {
+            List<Map.Entry<String, String>> config = MachineTest.CONFIG.stream()
+                    .map(entry -> entry.getKey().equals("CPU") ? Map.entry("CPU", entry.getValue() + " " + engine) : entry)
+                    .toList();
+            Machine machine = new Machine(config);
+            machine.bootstrap(loop);
+            assertFalse(machine.runFor(1000));
+            assertEquals(1000, machine.getCycles(), engine);
+            assertFalse(machine.runFor(45));
+            assertEquals(1045, machine.getCycles(), engine);
+        }
+    }
+
+    @Test
+    void machinesAreIndependent() throws InterruptedException {
+        Machine first = new Machine(CONFIG);
+        Machine second = new Machine(CONFIG);
+        first.bootstrap(ANSWER);
+        second.bootstrap(SPIN);
+        first.run();
+        assertTrue(first.isHalted());
+        assertEquals(0, second.getCycles());
+        assertEquals("", second.getOutput());
+    }
+
+    @Test
+    void interruptsEndWithoutAnInterruptsLine() {
+        List<Map.Entry<String, String>> config = SnapshotTest.CONFIG.stream()
+                .filter(entry -> !entry.getKey().equals("INTERRUPTS"))
+                .toList();
+        Machine machine = new Machine(config);
+        machine.bootstrap(SnapshotTest.COUNTDOWN);
+        assertTrue(machine.runFor(10_000));
+        assertEquals("10100\t00000014\t20\n", machine.getOutput());
+    }
+
+    @Test
+    void forksCarryOnWhereTheyWereForked() {
+        Machine reference = new Machine(SnapshotTest.CONFIG);
+        reference.bootstrap(SnapshotTest.COUNTDOWN);
+        assertTrue(reference.runFor(10_000));
+
+        Machine parent = new Machine(SnapshotTest.CONFIG);
+        parent.bootstrap(SnapshotTest.COUNTDOWN);
+        assertFalse(parent.runFor(437));
+        Machine child = parent.fork();
+        assertFalse(child.runFor(200));
+        Machine grandchild = child.fork();
+        for (Machine machine: List.of(grandchild, child, parent)) {
+            assertTrue(machine.runFor(10_000));
+            assertEquals(reference.getCycles(), machine.getCycles());
+            assertEquals(reference.getOutput(), machine.getOutput());
+        }
+    }
+
+    @Test
+    void forksDontSeeEachOthersWrites() {
+        Machine parent = new Machine(CONFIG);
+        parent.bootstrap(SPIN);
+        assertFalse(parent.runFor(10));
+        Machine child = parent.fork();
+        parent.getMemory().bootstrap(ANSWER);
+        assertFalse(child.runFor(100));
+        assertEquals("", child.getOutput());
+        assertEquals(110, child.getCycles());
+        assertTrue(parent.runFor(100));
+        assertEquals("101010\t0000002A\t42\n", parent.getOutput());
+    }
+}
@@ -1,4 +1,237 @@
 package nz.bradley.neil.cpu;
 
+import nz.bradley.neil.cpu.api.MMIOException;
+import nz.bradley.neil.cpu.impl.MMIOBase;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class MemoryTest {
+
+    private static class Latch extends MMIOBase {
+
+        private int lastOffset = -1;
+        private int lastValue;
+
+        Latch(String name, int address, int range) {
+            configure("name=" + name + " address=" + address + " range=" + range);
+        }
+
+        @Override
+        public byte readByte(int offset) {
+            lastOffset = offset;
+            return (byte)lastValue;
+        }
+
+        @Override
+        public int readInteger(int offset) {
+            lastOffset = offset;
+            return lastValue;
+        }
+
+        @Override
+        public void writeByte(int offset, byte data) {
+            lastOffset = offset;
+            lastValue = data;
+        }
+
+        @Override
+        public void writeInteger(int offset, int data) {
+            lastOffset = offset;
+            lastValue = data;
+        }
+
+        @Override
+        public void sendClock() {
+        }
+
+        @Override
+        public void sendReset() {
+        }
+    }
+
+    @Test
+    void plainRamReadsBackWrites() {
+        Memory memory = new Memory().configure("size=64");
+        memory.writeByte(3, (byte)0x7F);
+        assertEquals(0x7F, memory.readByte(3));
+        memory.writeInteger(8, 0xCAFE_BABE);
+        assertEquals(0xCAFE_BABE, memory.readInteger(8));
+        assertEquals((byte)0xCA, memory.readByte(8));
+    }
+
+    @Test
+    void integersAreBigEndianAndMayBeUnaligned() {
+        Memory memory = new Memory().configure("size=64");
+        memory.writeInteger(5, 0x0102_0304);
+        assertEquals(0x01, memory.readByte(5));
+        assertEquals(0x04, memory.readByte(8));
+        assertEquals(0x0102_0304, memory.readInteger(5));
+        assertEquals(0x0203_0400, memory.readInteger(6));
+    }
+
+    @Test
+    void integersRunningOffTheEndOfRamAreTruncated() {
+        Memory memory = new Memory().configure("size=64");
+        memory.writeInteger(62, 0xAABB_CCDD);
+        assertEquals((byte)0xAA, memory.readByte(62));
+        assertEquals((byte)0xBB, memory.readByte(63));
+        assertEquals(0xAABB_0000, memory.readInteger(62));
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> memory.readInteger(64));
+    }
+
+    @Test
+    void pagedRamAddressesTheFullSpace() {
+        Memory memory = new Memory().configure("size=4294967296");
+        assertEquals(0, memory.readInteger(0xFFFF_0000));
+        memory.writeInteger(0xFFFF_FFF0, 0x1234_5678);
+        assertEquals(0x1234_5678, memory.readInteger(0xFFFF_FFF0));
+        memory.writeInteger(0xFFFF_FFFE, 0xAABB_CCDD);
+        assertEquals(0xAABB_0000, memory.readInteger(0xFFFF_FFFE));
+    }
+
+    @Test
+    void pagedRamOnlyAllocatesTouchedPages() {
+        PagedRAM ram = new PagedRAM(RAM.MAX_SIZE, false);
+        assertEquals(0, ram.readByte(0x8000_0000));
+        ram.writeInteger(0x4000_0000, 0);
+        assertEquals(0, ram.pageCount());
+        ram.writeInteger(PagedRAM.PAGE_SIZE - 2, 0x0102_0304);
+        assertEquals(2, ram.pageCount());
+        assertEquals(0x0102_0304, ram.readInteger(PagedRAM.PAGE_SIZE - 2));
+        assertEquals(0x03, ram.readByte(PagedRAM.PAGE_SIZE));
+    }
+
+    @Test
+    void forkedPagesAreSharedUntilWritten() {
+        PagedRAM parent = new PagedRAM(RAM.MAX_SIZE, false);
+        parent.writeInteger(0, 1);
+        parent.writeInteger(0x8000_0000, 2);
+        PagedRAM child = parent.fork();
+        assertEquals(2, child.pageCount());
+        assertEquals(0, child.privatePageCount());
+        assertEquals(0, parent.privatePageCount());
+
+        child.writeInteger(0, 3);
+        parent.writeInteger(0x8000_0000, 4);
+        assertEquals(1, child.privatePageCount());
+        assertEquals(1, parent.privatePageCount());
+        PagedRAM grandchild = child.fork();
+        grandchild.writeInteger(PagedRAM.PAGE_SIZE, 5);
+        assertEquals(0, child.privatePageCount());
+        assertEquals(1, grandchild.privatePageCount());
+        assertEquals(1, parent.readInteger(0));
+        assertEquals(3, child.readInteger(0));
+        assertEquals(3, grandchild.readInteger(0));
+        assertEquals(4, parent.readInteger(0x8000_0000));
+        assertEquals(2, child.readInteger(0x8000_0000));
+        assertEquals(0, child.readInteger(PagedRAM.PAGE_SIZE));
+        assertEquals(5, grandchild.readInteger(PagedRAM.PAGE_SIZE));
+    }
+
+    @Test
+    void denseRamIsPagedToFork() {
+        Memory parent = new Memory().configure("size=6000");
+        Memory child = new Memory().configure("size=6000 paged=true");
+        parent.writeInteger(5996, 0x0102_0304);
+        child.forkFrom(parent);
+        child.writeInteger(5996, 7);
+        parent.writeByte(0, (byte)9);
+        assertEquals(0x0102_0304, parent.readInteger(5996));
+        assertEquals(7, child.readInteger(5996));
+        assertEquals(0, child.readByte(0));
+        assertEquals(9, parent.readByte(0));
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> parent.readByte(6000));
+    }
+
+    @Test
+    void pagedRamMatchesDenseRamAtTheEnd() {
+        for (String config: new String[]{"size=64", "size=64 paged=true", "size=64 offheap=true"}) {
+            Memory memory = new Memory().configure(config);
+            memory.writeInteger(62, 0xAABB_CCDD);
+            assertEquals(0xAABB_0000, memory.readInteger(62));
+            assertThrows(ArrayIndexOutOfBoundsException.class, () -> memory.readByte(64));
+        }
+    }
+
+    @Test
+    void mappedAddressesDispatchWithOffset() {
+        Memory memory = new Memory().configure("size=4096");
+        Latch latch = new Latch("Latch0", 4000, 8);
+        memory.registerMMIO(latch);
+        memory.writeInteger(4004, 1234);
+        assertEquals(4, latch.lastOffset);
+        assertEquals(1234, memory.readInteger(4004));
+        memory.writeInteger(3996, 99);
+        assertEquals(99, memory.readInteger(3996));
+        assertEquals(1234, latch.lastValue);
+    }
+
+    @Test
+    void mappingsOnSeparatePagesAreIndependent() {
+        Memory memory = new Memory().configure("size=4096");
+        Latch low = new Latch("Low", 16, 4);
+        Latch high = new Latch("High", 4092, 4);
+        memory.registerMMIO(low);
+        memory.registerMMIO(high);
+        memory.writeInteger(4092, 7);
+        memory.writeInteger(16, 9);
+        memory.writeInteger(2048, 11);
+        assertEquals(7, high.lastValue);
+        assertEquals(9, low.lastValue);
+        assertEquals(11, memory.readInteger(2048));
+    }
+
+    @Test
+    void distantMappingsDispatchThroughASparseTable() {
+        Memory memory = new Memory().configure("size=" + RAM.MAX_SIZE);
+        Latch low = new Latch("Low", 16, 4);
+        Latch middle = new Latch("Middle", 0x8000_00FE, 8);
+        Latch high = new Latch("High", 0xFFFF_FFF0, 16);
+        memory.registerMMIO(low);
+        memory.registerMMIO(middle);
+        memory.registerMMIO(high);
+        memory.writeInteger(16, 1);
+        memory.writeInteger(0x8000_0102, 2);
+        memory.writeInteger(0xFFFF_FFFC, 3);
+        memory.writeInteger(0x8000_0200, 4);
+        assertEquals(1, low.lastValue);
+        assertEquals(2, middle.lastValue);
+        assertEquals(4, middle.lastOffset);
+        assertEquals(3, high.lastValue);
+        assertEquals(12, high.lastOffset);
+        assertEquals(4, memory.readInteger(0x8000_0200));
+        assertTrue(memory.isRam(0x8000_00FD));
+        assertFalse(memory.isRam(0x8000_0105));
+        assertTrue(memory.isRam(0x8000_0106));
+    }
+
+    @Test
+    void mmioAccessesAreCountedWhenEnabled() {
+        Memory counted = new Memory().configure("size=4096 counters=true");
+        Memory uncounted = new Memory().configure("size=4096");
+        for (Memory memory: new Memory[]{counted, uncounted}) {
+            memory.registerMMIO(new Latch("Low", 16, 4));
+            memory.registerMMIO(new Latch("High", 4092, 4));
+            memory.writeInteger(16, 1);
+            memory.writeByte(17, (byte)2);
+            memory.readInteger(4092);
+            memory.writeInteger(2048, 3);
+            memory.readInteger(2048);
+        }
+        assertEquals(2, (long)counted.getMMIOWrites().get("Low"));
+        assertEquals(0, (long)counted.getMMIOWrites().get("High"));
+        assertEquals(1, (long)counted.getMMIOReads().get("High"));
+        assertEquals(0, (long)uncounted.getMMIOWrites().get("Low"));
+    }
+
+    @Test
+    void overlappingMappingsAreRejected() {
+        Memory memory = new Memory().configure("size=4096");
+        memory.registerMMIO(new Latch("First", 100, 8));
+        assertThrows(MMIOException.class, () -> memory.registerMMIO(new Latch("Second", 104, 8)));
+        assertThrows(MMIOException.class, () -> memory.registerMMIO(new Latch("Third", 96, 8)));
+        assertThrows(MMIOException.class, () -> memory.registerMMIO(new Latch("Fourth", 90, 40)));
+        assertDoesNotThrow(() -> memory.registerMMIO(new Latch("Fifth", 108, 8)));
+    }
 }
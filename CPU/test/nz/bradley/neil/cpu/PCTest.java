@@ -1,4 +1,21 @@
 package nz.bradley.neil.cpu;
 
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class PCTest {
+
+    @Test
+    void startsFromConfiguredAddress() {
+        PC pc = new PC();
+        pc.configure("name=$PC address=0 range=4 start=32");
+        pc.sendClock();
+        assertEquals(32, pc.readInteger(0));
+        pc.sendClock();
+        assertEquals(33, pc.readInteger(0));
+        pc.sendReset();
+        pc.sendClock();
+        assertEquals(32, pc.readInteger(0));
+    }
 }
@@ -0,0 +1,90 @@
+package nz.bradley.neil.cpu;
+
+import org.junit.jupiter.api.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfilerTest {
+
+    // Puts 100 in $RETURN, then spins at 6.
+    private static final byte[] CALLED = {
+            0x0F, (byte)0xF0, 0, 0, 0, 100, (byte)0xF2, 0, 0, 0, 6
+    };
+
+    private static final NavigableMap<Integer, String> LABELS = new TreeMap<>(Map.of(
+            0, "main", 6, "loop", 100, "caller"
+    ));
+
+    private static Map<String, Long> profile(byte[] program, int link) throws InterruptedException {
+        Machine machine = new Machine(MachineTest.CONFIG);
+        machine.bootstrap(program);
+        Thread runner = new Thread(() -> {
+            try {
+                machine.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Profiler profiler = new Profiler(machine, LABELS, 100, link);
+        runner.start();
+        Thread.sleep(200);
+        machine.stop();
+        runner.join();
+        profiler.close();
+        return profiler.getStacks();
+    }
+
+    @Test
+    void samplesAreLabelled() throws InterruptedException {
+        Map<String, Long> stacks = profile(MachineTest.SPIN, Profiler.RETURN);
+        assertEquals(List.of("CPU0;main"), List.copyOf(stacks.keySet()));
+    }
+
+    @Test
+    void callersComeFromTheLinkRegister() throws InterruptedException {
+        Map<String, Long> stacks = profile(CALLED, Profiler.RETURN);
+        assertTrue(stacks.containsKey("CPU0;caller;loop"), stacks.toString());
+        assertFalse(profile(CALLED, -1).keySet().stream().anyMatch(stack -> stack.contains("caller")));
+    }
+
+    @Test
+    void labelsAreReadFromMapFiles() throws Exception {
+        Path file = Files.createTempFile("labels", ".map");
+        try {
+            Files.write(file, List.of("00000000 program", "0000003C loop", "FFFFFFF0 top"));
+            NavigableMap<Integer, String> labels = Profiler.readLabels(file);
+            assertEquals("loop", labels.floorEntry(0x40).getValue());
+            assertEquals("top", labels.floorEntry(0xFFFF_FFF4).getValue());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void collapsedStacksHaveACountEach() throws Exception {
+        Machine machine = new Machine(MachineTest.CONFIG);
+        machine.bootstrap(MachineTest.ANSWER);
+        Path file = Files.createTempFile("profile", ".collapsed");
+        try {
+            Profiler profiler = new Profiler(machine, LABELS, 100);
+            try {
+                machine.run();
+            } finally {
+                profiler.close();
+            }
+            profiler.writeCollapsed(file);
+            for (String line: Files.readAllLines(file)) {
+                assertTrue(line.matches("CPU0(;\\w+)+ \\d+"), line);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package nz.bradley.neil.cpu;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegisterFileTest {
+
+    @Test
+    void registersAreIndependent() {
+        RegisterFile registers = new RegisterFile(16);
+        registers.set(3, 30);
+        registers.set(4, 40);
+        registers.addTo(3, 4);
+        assertEquals(34, registers.get(3));
+        assertEquals(40, registers.get(4));
+    }
+
+    @Test
+    void flagsArePackedPerRegister() {
+        RegisterFile registers = new RegisterFile(16);
+        registers.set(0, Integer.MAX_VALUE);
+        registers.set(15, 5);
+        registers.addTo(0, 1);
+        registers.divideBy(15, 0);
+        assertTrue(registers.hadCarry(0));
+        assertFalse(registers.hadOverflow(0));
+        assertTrue(registers.hadCarry(15));
+        assertTrue(registers.hadOverflow(15));
+        registers.set(0, 1);
+        assertFalse(registers.hadCarry(0));
+        assertTrue(registers.hadCarry(15));
+    }
+
+    @Test
+    void resetClearsEveryRegister() {
+        RegisterFile registers = new RegisterFile(16);
+        registers.set(7, 70);
+        registers.divideBy(7, 0);
+        registers.reset();
+        assertTrue(registers.isZero(7));
+        assertFalse(registers.hadCarry(7));
+    }
+}
@@ -0,0 +1,122 @@
+package nz.bradley.neil.cpu;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTest {
+
+    static final Set<Map.Entry<String, String>> CONFIG = Machine.parse(List.of(
+            "RAM: size=65536",
+            "CLOCK: name=Clock0 address=4088 range=8",
+            "PC: name=$PC address=4084 range=4",
+            "CPU: name=CPU0 address=4052 range=32",
+            "INTERRUPTS: name=IRQ0 address=3988 range=48 eoi=manual",
+            "TIMER: name=Timer0 address=4044 range=8 interrupt=5 priority=1 freq=50 enabled=true",
+            "FILE_WRITER: name=FileWriter0 address=4040 range=4"
+    ));
+
+    // Counts down from 300 in $1, while the timer's handler counts its
+    // interrupts in $2, then writes the count and halts.
+    static final byte[] COUNTDOWN = {
+            (byte)0xF2, 0x00, 0x00, 0x00, 0x0E,
+            0x02, (byte)0xF9, (byte)0xF1, 0x00, 0x00, 0x0F, (byte)0x9C, 0x01, 0x3F,
+            0x01, (byte)0xF0, 0x00, 0x00, 0x01, 0x2C,
+            (byte)0xFA, (byte)0xF3, 0x00, 0x00, 0x00, 0x1F, (byte)0xF2, 0x00, 0x00, 0x00, 0x14,
+            0x02, (byte)0xF1, 0x00, 0x00, 0x0F, (byte)0xC8, (byte)0xFF
+    };
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("snapshot");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file: files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void restoredMachinesCarryOnWhereTheSnapshotWasTaken() throws IOException {
+        Machine reference = new Machine(CONFIG);
+        reference.bootstrap(COUNTDOWN);
+        assertTrue(reference.runFor(10_000));
+
+        Machine machine = new Machine(CONFIG);
+        machine.bootstrap(COUNTDOWN);
+        assertFalse(machine.runFor(437));
+        Path file = directory.resolve("countdown.snp");
+        machine.snapshot(file);
+
+        Snapshot snapshot = Snapshot.open(file);
+        for (int i = 0; i < 3; i++) {
+            Machine restored = snapshot.restore();
+            assertEquals(437, restored.getCycles());
+            assertTrue(restored.runFor(10_000));
+            assertEquals(reference.getCycles(), restored.getCycles());
+            assertEquals(reference.getOutput(), restored.getOutput());
+        }
+        assertTrue(machine.runFor(10_000));
+        assertEquals(reference.getOutput(), machine.getOutput());
+    }
+
+    @Test
+    void haltedMachinesStayHalted() throws IOException {
+        Machine machine = new Machine(CONFIG);
+        machine.bootstrap(COUNTDOWN);
+        assertTrue(machine.runFor(10_000));
+        Path file = directory.resolve("halted.snp");
+        machine.snapshot(file);
+
+        Machine restored = Snapshot.open(file).restore();
+        assertTrue(restored.isHalted());
+        assertTrue(restored.runFor(100));
+        assertEquals(machine.getCycles(), restored.getCycles());
+        assertEquals("", restored.getOutput());
+    }
+
+    @Test
+    void pagesAreSharedUntilWritten() throws IOException {
+        Machine machine = new Machine(CONFIG);
+        machine.bootstrap(COUNTDOWN);
+        machine.getMemory().writeInteger(8192, 0x1234_5678);
+        Path file = directory.resolve("pages.snp");
+        machine.snapshot(file);
+
+        Snapshot snapshot = Snapshot.open(file);
+        assertEquals(2, snapshot.getPageCount());
+        Memory first = snapshot.restore().getMemory();
+        Memory second = snapshot.restore().getMemory();
+        first.writeByte(0, (byte)0xFF);
+        first.writeInteger(8192, 0);
+        first.writeInteger(40_000, 7);
+        assertEquals((byte)0xFF, first.readByte(0));
+        assertEquals((byte)0xF2, second.readByte(0));
+        assertEquals(0, first.readInteger(8192));
+        assertEquals(0x1234_5678, second.readInteger(8192));
+        assertEquals(7, first.readInteger(40_000));
+        assertEquals(0, second.readInteger(40_000));
+        assertEquals((byte)0xC8, second.readByte(36));
+    }
+
+    @Test
+    void otherFilesAreRejected() throws IOException {
+        Path file = Files.write(directory.resolve("other.snp"), new byte[]{'8', 'O', 'B', 'J', 0, 0, 0, 1, 0, 0, 0, 0});
+        assertThrows(IOException.class, () -> Snapshot.open(file));
+    }
+}
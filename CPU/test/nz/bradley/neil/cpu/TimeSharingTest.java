@@ -0,0 +1,94 @@
+package nz.bradley.neil.cpu;
+
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimeSharingTest {
+
+    private static Machine machine(byte[] program) {
+        Machine machine = new Machine(MachineTest.CONFIG);
+        machine.bootstrap(program);
+        return machine;
+    }
+
+    @Test
+    void shortGuestsAreNotStarvedBySpinners() throws Exception {
+        try (TimeSharing sharing = new TimeSharing(1, 1000)) {
+            List<TimeSharing.Guest> spinners = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                spinners.add(sharing.submit("spin" + i, machine(MachineTest.SPIN), 1));
+            }
+            Thread.sleep(20);
+            Farm.Result result = sharing.submit("answer", machine(MachineTest.ANSWER), 1)
+                    .result().get(5, TimeUnit.SECONDS);
+            assertTrue(result.halted());
+            assertEquals("101010\t0000002A\t42\n", result.output());
+            for (TimeSharing.Guest spinner: spinners) {
+                assertTrue(spinner.getCycles() > 0);
+                assertFalse(spinner.result().isDone());
+            }
+        }
+    }
+
+    @Test
+    void prioritiesShareCyclesInProportion() throws Exception {
+        AtomicLong low = new AtomicLong();
+        long fastStart, slowStart;
+        try (TimeSharing sharing = new TimeSharing(1, 1000)) {
+            TimeSharing.Guest slow = sharing.submit("slow", machine(MachineTest.SPIN), 1, 1_000_000);
+            TimeSharing.Guest fast = sharing.submit("fast", machine(MachineTest.SPIN), 3, 300_000);
+            // The slow guest runs alone until the fast one is queued, so
+            // only count from the fast one's first quantum.
+            while (fast.getCycles() == 0) {
+                Thread.onSpinWait();
+            }
+            fastStart = fast.getCycles();
+            slowStart = slow.getCycles();
+            Farm.Result result = fast.result().thenApply(r -> {
+                low.set(slow.getCycles() - slowStart);
+                return r;
+            }).get(10, TimeUnit.SECONDS);
+            assertFalse(result.halted());
+            assertEquals(300_000, result.cycles());
+        }
+        long expected = (300_000 - fastStart) / 3;
+        assertTrue(Math.abs(low.get() - expected) <= 3000, low.get() + " cycles at priority 1, not " + expected);
+    }
+
+    @Test
+    void blocksStopAtTheQuantumAndBudget() throws Exception {
+        // Thirty INCs, then J 0: a block of 31 instructions.
+        byte[] loop = new byte[35];
+        Arrays.fill(loop, 0, 30, (byte)0xF9);
+        loop[30] = (byte)0xF2;
+        List<Map.Entry<String, String>> config = MachineTest.CONFIG.stream()
+                .map(entry -> entry.getKey().equals("CPU") ? Map.entry("CPU", entry.getValue() + " engine=blocks") : entry)
+                .toList();
+        Machine machine = new Machine(config);
+        machine.bootstrap(loop);
+        try (TimeSharing sharing = new TimeSharing(1, 1000)) {
+            Farm.Result result = sharing.submit("blocks", machine, 1, 1500).result().get(5, TimeUnit.SECONDS);
+            assertFalse(result.halted());
+            assertEquals(1500, result.cycles());
+            assertEquals(1500, machine.getCycles());
+        }
+    }
+
+    @Test
+    void closeCancelsUnfinishedGuests() throws Exception {
+        TimeSharing sharing = new TimeSharing(2, 1000);
+        TimeSharing.Guest spinner = sharing.submit("spin", machine(MachineTest.SPIN), 1);
+        sharing.close();
+        Farm.Result result = spinner.result().get(5, TimeUnit.SECONDS);
+        assertFalse(result.halted());
+        assertNotNull(result.failure());
+    }
+}
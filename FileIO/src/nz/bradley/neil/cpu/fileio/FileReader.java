@@ -1,5 +1,6 @@
 package nz.bradley.neil.cpu.fileio;
 
+import nz.bradley.neil.cpu.api.Scheduler;
 import nz.bradley.neil.cpu.impl.MMIOBase;
 
 public class FileReader extends MMIOBase {
@@ -24,6 +25,12 @@ public class FileReader extends MMIOBase {
 
     }
 
+    @Override
+    public boolean attach(Scheduler scheduler) {
+        // Never needs clocking.
+        return true;
+    }
+
     @Override
     public void sendClock() {
 
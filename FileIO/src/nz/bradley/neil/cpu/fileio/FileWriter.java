@@ -1,9 +1,23 @@
 package nz.bradley.neil.cpu.fileio;
 
+import nz.bradley.neil.cpu.api.Scheduler;
 import nz.bradley.neil.cpu.impl.MMIOBase;
 
+import java.io.PrintStream;
+
 public class FileWriter extends MMIOBase {
 
+    private PrintStream output = System.out;
+
+    /**
+     * Sends what the guest writes somewhere other than standard output.
+     *
+     * @param output    The stream to write to.
+     */
+    public void setOutput(PrintStream output) {
+        this.output = output;
+    }
+
     @Override
     public byte readByte(int offset) {
         return 0;
@@ -21,7 +35,13 @@ public class FileWriter extends MMIOBase {
 
     @Override
     public void writeInteger(int offset, int data) {
-        System.out.printf("%s\t%08X\t%d\n", Integer.toBinaryString(data), data, data);
+        output.printf("%s\t%08X\t%d\n", Integer.toBinaryString(data), data, data);
+    }
+
+    @Override
+    public boolean attach(Scheduler scheduler) {
+        // Never needs clocking.
+        return true;
     }
 
     @Override
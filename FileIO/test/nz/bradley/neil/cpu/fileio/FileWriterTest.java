@@ -1,4 +1,20 @@
 package nz.bradley.neil.cpu.fileio;
 
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class FileWriterTest {
+
+    @Test
+    void integersAreWrittenToTheGivenOutput() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FileWriter writer = new FileWriter();
+        writer.setOutput(new PrintStream(bytes, true));
+        writer.writeInteger(0, -13);
+        assertEquals("11111111111111111111111111110011\tFFFFFFF3\t-13\n", bytes.toString());
+    }
 }
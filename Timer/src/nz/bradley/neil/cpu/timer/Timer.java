@@ -1,15 +1,31 @@
 package nz.bradley.neil.cpu.timer;
 
+import nz.bradley.neil.cpu.api.InterruptLine;
 import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.api.Scheduler;
 import nz.bradley.neil.cpu.impl.MMIOBase;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Raises an interrupt every <code>freq</code> cycles while enabled.
+ * When attached to a {@link Scheduler}, the timer is only clocked on
+ * the cycles it fires, and brings its count up to date when read.
+ */
 public class Timer extends MMIOBase {
 
     private int count, freq;
     private boolean interrupted;
     private boolean enabled;
 
-    private int interrupt;
+    private int interrupt, priority;
+    private InterruptLine line;
+
+    private Scheduler scheduler;
+    // First cycle not yet counted, when scheduled.
+    private long counted;
 
     @Override
     public MMIO configure(String config) {
@@ -18,6 +34,7 @@ public class Timer extends MMIOBase {
         for (int i = 0; i < configs.length; i += 2) {
             switch (configs[i]) {
                 case "interrupt" -> interrupt = Integer.parseInt(configs[i + 1]);
+                case "priority" -> priority = Integer.parseInt(configs[i + 1]);
                 case "freq" -> freq = Integer.parseInt(configs[i + 1]);
                 case "enabled" -> enabled = Boolean.parseBoolean(configs[i + 1]);
             }
@@ -25,6 +42,56 @@ public class Timer extends MMIOBase {
         return this;
     }
 
+    @Override
+    public boolean attach(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        counted = scheduler.getCycle();
+        reschedule();
+        return true;
+    }
+
+    // Counts every cycle up to and including the current one.
+    private void catchUp() {
+        if (scheduler != null) {
+            long now = scheduler.getCycle();
+            if (enabled && now >= counted) {
+                long total = count + (now - counted + 1);
+                if (freq > 0 && total >= freq) {
+                    fire();
+                    total %= freq;
+                }
+                count = (int)total;
+            }
+            counted = Math.max(counted, now + 1);
+        }
+    }
+
+    private void reschedule() {
+        if (enabled && freq > 0) {
+            scheduler.schedule(this, counted + (freq - count) - 1);
+        } else {
+            scheduler.schedule(this, Scheduler.NEVER);
+        }
+    }
+
+    @Override
+    public int getInterruptPriority() {
+        return priority;
+    }
+
+    @Override
+    public boolean connect(InterruptLine line) {
+        this.line = line;
+        return true;
+    }
+
+    private void fire() {
+        interrupted = true;
+        if (line != null) {
+            line.raise();
+        }
+    }
+
     @Override
     public Integer getInterruptAddress() {
         interrupted = false;
@@ -43,6 +110,7 @@ public class Timer extends MMIOBase {
 
     @Override
     public int readInteger(int offset) {
+        catchUp();
         return count;
     }
 
@@ -57,19 +125,45 @@ public class Timer extends MMIOBase {
 
     @Override
     public void sendClock() {
-        if (enabled) {
+        if (scheduler != null) {
+            catchUp();
+            reschedule();
+        } else if (enabled) {
             count++;
             if (count == freq) {
-                interrupted = true;
+                fire();
                 count = 0;
             }
         }
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(count);
+        out.writeBoolean(interrupted);
+        out.writeBoolean(enabled);
+        out.writeLong(counted);
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        count = in.readInt();
+        interrupted = in.readBoolean();
+        enabled = in.readBoolean();
+        counted = in.readLong();
+        if (scheduler != null) {
+            reschedule();
+        }
+    }
+
     @Override
     public void sendReset() {
         count = 0;
         interrupted = false;
         enabled = false;
+        if (scheduler != null) {
+            counted = scheduler.getCycle() + 1;
+            reschedule();
+        }
     }
 }
@@ -1,4 +1,71 @@
 package nz.bradley.neil.cpu.timer;
 
+import nz.bradley.neil.cpu.api.MMIO;
+import nz.bradley.neil.cpu.api.Scheduler;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class TimerTest {
+
+    private static class TestScheduler implements Scheduler {
+
+        private long cycle;
+        private long deadline = NEVER;
+
+        @Override
+        public long getCycle() {
+            return cycle;
+        }
+
+        @Override
+        public void schedule(MMIO mmio, long cycle) {
+            deadline = cycle;
+        }
+    }
+
+    private static final String CONFIG = "name=Timer0 address=0 range=8 interrupt=5 freq=100 enabled=true";
+
+    @Test
+    void firesEveryFreqCycles() {
+        Timer timer = (Timer)new Timer().configure(CONFIG);
+        for (int cycle = 0; cycle < 250; cycle++) {
+            timer.sendClock();
+            boolean expected = cycle == 99 || cycle == 199;
+            assertEquals(expected, timer.hasInterrupt());
+            if (timer.hasInterrupt()) {
+                assertEquals(5, (int)timer.getInterruptAddress());
+            }
+        }
+    }
+
+    @Test
+    void scheduledTimerMatchesClockedTimer() {
+        Timer clocked = (Timer)new Timer().configure(CONFIG);
+        Timer scheduled = (Timer)new Timer().configure(CONFIG);
+        TestScheduler scheduler = new TestScheduler();
+        assertTrue(scheduled.attach(scheduler));
+        for (; scheduler.cycle < 1000; scheduler.cycle++) {
+            clocked.sendClock();
+            if (scheduler.deadline == scheduler.cycle) {
+                scheduled.sendClock();
+            }
+            assertEquals(clocked.hasInterrupt(), scheduled.hasInterrupt());
+            assertEquals(clocked.readInteger(0), scheduled.readInteger(0));
+            if (clocked.hasInterrupt()) {
+                clocked.getInterruptAddress();
+                scheduled.getInterruptAddress();
+            }
+        }
+    }
+
+    @Test
+    void resetStopsScheduling() {
+        Timer timer = (Timer)new Timer().configure(CONFIG);
+        TestScheduler scheduler = new TestScheduler();
+        timer.attach(scheduler);
+        assertEquals(99, scheduler.deadline);
+        timer.sendReset();
+        assertEquals(Scheduler.NEVER, scheduler.deadline);
+    }
 }
@@ -0,0 +1,78 @@
+; CRC-32, one bit at a time.  Runs 2048 pseudo-random words through the
+; CRC, least significant byte first, writing out the CRC so far after
+; every 256 words.
+
+.int     poly   EDB88320
+
+:program
+    J   start
+_0x05:
+    STN 3996    ; Timer: end of interrupt.  Any value will do.
+    JR  15
+:start
+    SEL 14
+    LDN 4040    ; FileWriter0.
+    SEL 2
+    LDN poly
+    LDR 2
+    SEL 6
+    LDN 7       ; Seed.
+    SEL 7
+    LDN 1103515245
+    SEL 8
+    LDN 12345
+    SEL 9
+    UNO
+    SEL 10
+    LDN 255
+    SEL 11
+    LDN 2147483647
+    SEL 3
+    LDN 2048    ; Words left.
+    SEL 1
+    CLR
+    COM
+:word
+    SEL 6
+    MUL 7
+    ADD 8
+    SEL 1
+    XOR 6
+    SEL 4
+    LDN 32      ; Bits left.
+:bit
+    SEL 1
+    CP  5
+    SEL 5
+    AND 9
+    SEL 1
+    SHR 1
+    AND 11      ; SHR copies the sign bit down, so mask it off.
+    SEL 5
+    JZ  shifted
+    SEL 1
+    XOR 2
+:shifted
+    SEL 4
+    DEC
+    JZ  done
+    J   bit
+:done
+    SEL 3
+    DEC
+    CP  5
+    SEL 5
+    AND 10
+    JZ  report
+    J   word
+:report
+    SEL 1
+    CP  5
+    SEL 5
+    COM
+    STR 14
+    SEL 3
+    JZ  finish
+    J   word
+:finish
+    HLT
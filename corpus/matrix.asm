@@ -0,0 +1,101 @@
+; Matrix multiply.  Fills two 32x32 matrices of words with pseudo-random
+; bytes, A from 8192 and B from 12288, and writes out the sum of each
+; row of A x B.
+
+:program
+    J   start
+_0x05:
+    STN 3996    ; Timer: end of interrupt.  Any value will do.
+    JR  15
+:start
+    SEL 14
+    LDN 4040    ; FileWriter0.
+    SEL 6
+    LDN 4
+    SEL 7
+    LDN 128     ; Bytes per row.
+    SEL 3
+    LDN 8192
+    SEL 4
+    LDN 16384   ; End of B.
+    SEL 10
+    LDN 99      ; Seed.
+    SEL 11
+    LDN 1103515245
+    SEL 12
+    LDN 12345
+    SEL 13
+    LDN 255
+:fill
+    SEL 10
+    MUL 11
+    ADD 12
+    CP  5
+    SEL 5
+    SHR 12
+    SHR 12
+    AND 13      ; SHR copies the sign bit down, so mask it off.
+    STR 3
+    SEL 3
+    ADD 6
+    CP  5
+    SEL 5
+    SUB 4
+    JN  fill
+    SEL 1
+    LDN 8192    ; Row of A.
+    SEL 13
+    LDN 32      ; Rows left.
+:row
+    SEL 9
+    CLR         ; Row sum.
+    SEL 2
+    LDN 12288   ; Column of B.
+    SEL 12
+    LDN 32      ; Columns left.
+:column
+    SEL 8
+    CLR         ; Element.
+    SEL 1
+    CP  3
+    SEL 2
+    CP  4
+    SEL 5
+    LDN 32      ; Terms left.
+:term
+    SEL 10
+    LDR 3
+    SEL 11
+    LDR 4
+    SEL 10
+    MUL 11
+    SEL 8
+    ADD 10
+    SEL 3
+    ADD 6
+    SEL 4
+    ADD 7
+    SEL 5
+    DEC
+    JZ  element
+    J   term
+:element
+    SEL 9
+    ADD 8
+    SEL 2
+    ADD 6
+    SEL 12
+    DEC
+    JZ  rowDone
+    J   column
+:rowDone
+    SEL 9
+    STR 14
+    SEL 1
+    ADD 7
+    SEL 13
+    DEC
+    JZ  finish
+    J   row
+:finish
+    HLT
@@ -0,0 +1,73 @@
+; Sieve of Eratosthenes.  Writes out how many primes there are below
+; 10000, and the largest.  Numbers are whole words from 8192 up, 0 while
+; they may be prime.
+
+:program
+    J   start
+_0x05:
+    STN 3996    ; Timer: end of interrupt.  Any value will do.
+    JR  15
+:start
+    SEL 14
+    LDN 4040    ; FileWriter0.
+    SEL 2
+    LDN 10000   ; Limit.
+    SEL 3
+    LDN 8192    ; Numbers.
+    SEL 8
+    LDN 48192   ; End of the numbers.
+    SEL 6
+    LDN 4
+    SEL 9
+    UNO
+    SEL 10
+    CLR         ; Primes found.
+    SEL 1
+    LDN 2       ; Candidate.
+:candidate
+    SEL 1
+    CP  5
+    SEL 5
+    SUB 2
+    JN  check
+    SEL 10
+    STR 14
+    SEL 11
+    STR 14
+    HLT
+:check
+    SEL 1
+    CP  4
+    SEL 4
+    MUL 6
+    ADD 3       ; Its number.
+    SEL 5
+    LDR 4
+    JZ  prime
+:next
+    SEL 1
+    INC
+    J   candidate
+:prime
+    SEL 10
+    INC
+    SEL 1
+    CP  11      ; Largest so far.
+    CP  7
+    SEL 7
+    MUL 6       ; Step between its multiples.
+    SEL 4
+    ADD 7
+:cross
+    SEL 4
+    CP  5
+    SEL 5
+    SUB 8
+    JN  mark
+    J   next
+:mark
+    SEL 9
+    STR 4
+    SEL 4
+    ADD 7
+    J   cross
@@ -0,0 +1,98 @@
+; Bubble sort.  Fills 300 words from 8192 up with pseudo-random 16-bit
+; numbers, sorts them, and writes them out in order.
+
+:program
+    J   start
+_0x05:
+    STN 3996    ; Timer: end of interrupt.  Any value will do.
+    JR  15
+:start
+    SEL 14
+    LDN 4040    ; FileWriter0.
+    SEL 3
+    LDN 42      ; Seed.
+    SEL 4
+    LDN 1103515245
+    SEL 5
+    LDN 12345
+    SEL 6
+    LDN 4
+    SEL 11
+    LDN 9392    ; End of the numbers.
+    SEL 1
+    LDN 65535
+    SEL 7
+    LDN 8192
+:fill
+    SEL 3
+    MUL 4
+    ADD 5
+    CP  9
+    SEL 9
+    SHR 8
+    SHR 8
+    AND 1       ; SHR copies the sign bit down, so mask it off.
+    STR 7
+    SEL 7
+    ADD 6
+    CP  10
+    SEL 10
+    SUB 11
+    JN  fill
+    SEL 13
+    LDN 9388    ; Last pair to compare.
+:pass
+    SEL 12
+    CLR         ; Nothing swapped yet.
+    SEL 7
+    LDN 8192
+:compare
+    SEL 7
+    CP  10
+    SEL 10
+    SUB 13
+    JN  pair
+    SEL 13
+    SUB 6       ; The largest is now in place.
+    SEL 12
+    JZ  sorted
+    J   pass
+:pair
+    SEL 7
+    CP  8
+    SEL 8
+    ADD 6
+    SEL 9
+    LDR 7
+    SEL 10
+    LDR 8
+    CP  2
+    SEL 2
+    SUB 9
+    JN  swap
+    J   advance
+:swap
+    SEL 10
+    STR 7
+    SEL 9
+    STR 8
+    SEL 12
+    UNO
+:advance
+    SEL 7
+    ADD 6
+    J   compare
+:sorted
+    SEL 7
+    LDN 8192
+:print
+    SEL 9
+    LDR 7
+    STR 14
+    SEL 7
+    ADD 6
+    CP  10
+    SEL 10
+    SUB 11
+    JN  print
+    HLT
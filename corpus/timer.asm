@@ -0,0 +1,30 @@
+; Interrupts.  The main loop counts as fast as it can, and the timer's
+; handler writes out the count at each of 250 ticks, then halts.  The
+; count shows exactly which cycle each interrupt was taken on.
+;
+; $TARGET isn't saved by an interrupt, so the handler selects the
+; register the main loop uses before returning.
+
+:program
+    J   start
+_0x05:
+    SEL 1
+    STR 14      ; Count so far.
+    SEL 12
+    DEC
+    JZ  stop
+    STN 3996    ; End of interrupt.
+    SEL 1
+    JR  15
+:stop
+    HLT
+:start
+    SEL 14
+    LDN 4040    ; FileWriter0.
+    SEL 12
+    LDN 250     ; Ticks left.
+    SEL 1
+    CLR
+:count
+    INC
+    J   count